@@ -0,0 +1,771 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.highgui.Highgui;
+import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import com.nummist.goldgesture.FaceDetections;
+import com.nummist.goldgesture.FacePipeline;
+import com.nummist.goldgesture.FrameClock;
+import com.nummist.goldgesture.FrameReplayer;
+import com.nummist.goldgesture.GestureRecognizer;
+
+// Analyzes recorded sessions in batch, off the phone, with the
+// pipeline set up as the app's synchronous path, and writes every
+// face, eye and mouth that it finds, and every gesture that the
+// faces make, to a CSV or JSON Lines file.
+//
+// A session is a video file, a recording that the app made with
+// FrameRecorder (.rec), or a directory of images, which are taken as
+// frames in file name order at a fixed frame rate. Each input is
+// such a session, or a directory whose videos, recordings and
+// directories of images are sessions.
+//
+// A session's frames depend on each other through tracking and
+// gestures, so each session is analyzed in order on one thread, and
+// the sessions are spread over all cores by a work-stealing pool.
+// The longest sessions are taken first, so that one is not left
+// running alone at the end. Each thread holds one frame and one
+// pipeline at a time, and hands its output to the shared writer in
+// small blocks, so memory does not grow with the size of the corpus.
+//
+// CSV has one row per face, eye, mouth or gesture:
+//     session,frame,time_us,kind,track,x,y,width,height,gesture
+// where eyes and mouths have their face's track. JSON Lines has one
+// object per frame, with its faces and each face's eyes and mouths,
+// and one per gesture. Exits with status 1 if any session could not
+// be read.
+//
+// Usage: BatchAnalyze [-threads n] [-fps n] [-orient]
+//        output.csv|output.jsonl inputFileOrDirectory...
+//
+// -orient rotates the frames to portrait, as the app does with the
+// camera's frames, and -fps sets the frame rate of image directories
+// and of videos whose frames have no times.
+public final class BatchAnalyze {
+
+    // The same parameters as the app's pipeline, and the same gesture
+    // distances, relative to the smaller side of the frame.
+    private static final int FULL_FACE_SCAN_INTERVAL = 10;
+    private static final double MIN_SHAKE_DIST_PROPORTIONAL = 0.04;
+    private static final double MIN_NOD_DIST_PROPORTIONAL = 0.005;
+    private static final double MIN_TILT_DIST_PROPORTIONAL = 0.08;
+
+    private static final double DEFAULT_FPS = 30.0;
+    private static final double MICROS_PER_SECOND = 1000000.0;
+
+    // The size at which a session's output is handed to the writer.
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    private static final String CSV_HEADER =
+            "session,frame,time_us,kind,track,x,y,width,height,gesture";
+
+    private static final String RECORDING_EXTENSION = ".rec";
+    private static final String[] VIDEO_EXTENSIONS = {
+        ".mp4", ".avi", ".mov", ".mkv", ".3gp", ".webm"
+    };
+    private static final String[] IMAGE_EXTENSIONS = {
+        ".png", ".jpg", ".jpeg", ".bmp", ".pgm", ".ppm"
+    };
+
+    private enum Kind { VIDEO, RECORDING, IMAGES }
+
+    // A session to analyze, and its size in bytes, by which the
+    // longest sessions are taken first.
+    private static final class Session {
+        final File mFile;
+        final Kind mKind;
+        final long mSize;
+
+        Session(final File file, final Kind kind, final long size) {
+            mFile = file;
+            mKind = kind;
+            mSize = size;
+        }
+    }
+
+    // The cascades of each thread. A cascade must not be used by two
+    // threads at once, and loading them once per thread rather than
+    // once per session saves time on corpora of short sessions.
+    private static final ThreadLocal<CascadeClassifier[]> sCascades =
+            new ThreadLocal<CascadeClassifier[]>() {
+        @Override
+        protected CascadeClassifier[] initialValue() {
+            return new CascadeClassifier[] {
+                loadCascade("haarcascade_frontalface_alt"),
+                loadCascade("haarcascade_eye"),
+                loadCascade("haarcascade_mcs_nose")
+            };
+        }
+    };
+
+    private final List<Session> mSessions;
+    private final Writer mWriter;
+    private final boolean mJson;
+    private final boolean mOrienting;
+    private final double mFps;
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+
+    private BatchAnalyze(final List<Session> sessions, final Writer writer,
+            final boolean json, final boolean orienting, final double fps) {
+        mSessions = sessions;
+        mWriter = writer;
+        mJson = json;
+        mOrienting = orienting;
+        mFps = fps;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double fps = DEFAULT_FPS;
+        boolean orienting = false;
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("-")) {
+            final String option = args[arg++];
+            if (option.equals("-orient")) {
+                orienting = true;
+            } else if (arg == args.length) {
+                throw new IllegalArgumentException(
+                        "Missing value for " + option);
+            } else if (option.equals("-threads")) {
+                threads = Integer.parseInt(args[arg++]);
+            } else if (option.equals("-fps")) {
+                fps = Double.parseDouble(args[arg++]);
+            } else {
+                throw new IllegalArgumentException(
+                        "Unknown option: " + option);
+            }
+        }
+        if (args.length - arg < 2) {
+            System.err.println("Usage: BatchAnalyze [-threads n] " +
+                    "[-fps n] [-orient] output.csv|output.jsonl " +
+                    "inputFileOrDirectory...");
+            System.exit(2);
+        }
+        if (threads < 1 || fps <= 0.0) {
+            throw new IllegalArgumentException(
+                    "Threads and fps must be positive");
+        }
+        final File output = new File(args[arg++]);
+        final boolean json;
+        if (output.getName().endsWith(".jsonl")) {
+            json = true;
+        } else if (output.getName().endsWith(".csv")) {
+            json = false;
+        } else {
+            throw new IllegalArgumentException(
+                    "The output must be a .csv or .jsonl file: " + output);
+        }
+
+        final List<Session> sessions = new ArrayList<Session>();
+        for (; arg < args.length; arg++) {
+            collectSessions(new File(args[arg]), sessions);
+        }
+        if (sessions.isEmpty()) {
+            throw new IllegalArgumentException("No sessions to analyze");
+        }
+        Collections.sort(sessions, new Comparator<Session>() {
+            @Override
+            public int compare(final Session a, final Session b) {
+                return Long.compare(b.mSize, a.mSize);
+            }
+        });
+        FrameCorpus.loadLibrary();
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output), "UTF-8"));
+        final BatchAnalyze batch;
+        final long start = System.nanoTime();
+        try {
+            if (!json) {
+                writer.write(CSV_HEADER);
+                writer.write('\n');
+            }
+            batch = new BatchAnalyze(sessions, writer, json, orienting,
+                    fps);
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(batch.new AnalyzeTask(0, sessions.size()));
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            writer.close();
+        }
+
+        final long frames = batch.mFrameCount.get();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(sessions.size() + " sessions, " + frames +
+                " frames in " + String.format("%.2f", seconds) + " s (" +
+                String.format("%.1f", frames / seconds) +
+                " frames/s) on " + threads + " threads");
+        final int failed = batch.mFailedCount.get();
+        if (failed > 0) {
+            System.out.println(failed + " sessions could not be read");
+            System.exit(1);
+        }
+    }
+
+    // Adds the sessions of an input: the input itself, if it is a
+    // video, a recording or a directory of images, and the sessions
+    // that a directory holds.
+    private static void collectSessions(final File input,
+            final List<Session> sessions) {
+        if (!input.isDirectory()) {
+            final Kind kind = getKind(input);
+            if (kind == null) {
+                throw new IllegalArgumentException(
+                        "Not a video, recording or directory: " + input);
+            }
+            sessions.add(new Session(input, kind, input.length()));
+            return;
+        }
+        final File[] files = input.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("Cannot list " + input);
+        }
+        Arrays.sort(files);
+        long imagesSize = 0L;
+        for (File file : files) {
+            if (file.isHidden()) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                final long size = getImagesSize(file);
+                if (size > 0L) {
+                    sessions.add(new Session(file, Kind.IMAGES, size));
+                }
+            } else if (hasExtension(file, IMAGE_EXTENSIONS)) {
+                imagesSize += file.length();
+            } else {
+                final Kind kind = getKind(file);
+                if (kind != null) {
+                    sessions.add(new Session(file, kind, file.length()));
+                }
+            }
+        }
+        if (imagesSize > 0L) {
+            sessions.add(new Session(input, Kind.IMAGES, imagesSize));
+        }
+    }
+
+    private static Kind getKind(final File file) {
+        if (file.getName().toLowerCase(Locale.US).endsWith(
+                RECORDING_EXTENSION)) {
+            return Kind.RECORDING;
+        } else if (hasExtension(file, VIDEO_EXTENSIONS)) {
+            return Kind.VIDEO;
+        }
+        return null;
+    }
+
+    // Returns the size of the images in a directory, or 0 if it has
+    // none.
+    private static long getImagesSize(final File dir) {
+        long size = 0L;
+        for (File file : listImages(dir)) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static File[] listImages(final File dir) {
+        final List<File> images = new ArrayList<File>();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.isHidden() &&
+                        hasExtension(file, IMAGE_EXTENSIONS)) {
+                    images.add(file);
+                }
+            }
+        }
+        final File[] sorted = images.toArray(new File[images.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static boolean hasExtension(final File file,
+            final String[] extensions) {
+        final String name = file.getName().toLowerCase(Locale.US);
+        for (String extension : extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static CascadeClassifier loadCascade(final String name) {
+        final CascadeClassifier cascade =
+                new CascadeClassifier(FrameCorpus.getCascadePath(name));
+        if (cascade.empty()) {
+            throw new IllegalStateException("Failed to load " + name);
+        }
+        return cascade;
+    }
+
+    // Analyzes a range of the sessions, by splitting it in halves
+    // until each task has one session. Idle threads steal the halves
+    // that busy threads have not started.
+    private final class AnalyzeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+
+        AnalyzeTask(final int start, final int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart == 1) {
+                analyze(mSessions.get(mStart));
+                return;
+            }
+            final int middle = (mStart + mEnd) >>> 1;
+            invokeAll(new AnalyzeTask(mStart, middle),
+                    new AnalyzeTask(middle, mEnd));
+        }
+    }
+
+    // Analyzes one session. A session that cannot be read is reported
+    // and counted, and the others go on.
+    private void analyze(final Session session) {
+        try {
+            final FrameSource source = openSource(session);
+            try {
+                new SessionRun(session, source).run();
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            mFailedCount.incrementAndGet();
+            System.err.println(session.mFile + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            mFailedCount.incrementAndGet();
+            System.err.println(session.mFile + ": " + e);
+        }
+    }
+
+    private FrameSource openSource(final Session session)
+            throws IOException {
+        switch (session.mKind) {
+        case VIDEO:
+            return new VideoSource(session.mFile, mFps);
+        case RECORDING:
+            return new RecordingSource(session.mFile);
+        default:
+            return new ImageSource(session.mFile, mFps);
+        }
+    }
+
+    // The frames of one session, with their times, one at a time.
+    private abstract static class FrameSource {
+
+        // Moves to the next frame. Returns false at the end.
+        abstract boolean next() throws IOException;
+
+        // The dimensions of the frames, which are known once the
+        // first frame has been read.
+        abstract int getWidth();
+        abstract int getHeight();
+
+        abstract long getTimeMicros();
+
+        // Feeds the current frame through the pipeline.
+        abstract FaceDetections process(FacePipeline pipeline);
+
+        abstract void close() throws IOException;
+    }
+
+    // The frames of a video file, converted to gray.
+    private static final class VideoSource extends FrameSource {
+
+        // The capture property of the current position in
+        // milliseconds, CV_CAP_PROP_POS_MSEC, which the 2.4 Java
+        // Highgui class does not name.
+        private static final int CAP_PROP_POS_MSEC = 0;
+
+        private final VideoCapture mCapture;
+        private final double mFps;
+        private final Mat mFrame = new Mat();
+        private final Mat mGray = new Mat();
+        private long mIndex = -1L;
+        private long mTimeMicros;
+
+        VideoSource(final File file, final double fps) throws IOException {
+            mCapture = new VideoCapture(file.getPath());
+            if (!mCapture.isOpened()) {
+                throw new IOException("Cannot open the video");
+            }
+            mFps = fps;
+        }
+
+        @Override
+        boolean next() {
+            if (!mCapture.read(mFrame) || mFrame.empty()) {
+                return false;
+            }
+            mIndex++;
+            if (mFrame.channels() == 1) {
+                mFrame.copyTo(mGray);
+            } else {
+                Imgproc.cvtColor(mFrame, mGray, Imgproc.COLOR_BGR2GRAY);
+            }
+            // Some backends give no times, so the frame rate stands in.
+            final double millis = mCapture.get(CAP_PROP_POS_MSEC);
+            if (millis > 0.0 || mIndex == 0L) {
+                mTimeMicros = Math.round(millis * 1000.0);
+            } else {
+                mTimeMicros = Math.round(mIndex * MICROS_PER_SECOND / mFps);
+            }
+            return true;
+        }
+
+        @Override
+        int getWidth() {
+            return mGray.cols();
+        }
+
+        @Override
+        int getHeight() {
+            return mGray.rows();
+        }
+
+        @Override
+        long getTimeMicros() {
+            return mTimeMicros;
+        }
+
+        @Override
+        FaceDetections process(final FacePipeline pipeline) {
+            return pipeline.processGray(mGray);
+        }
+
+        @Override
+        void close() {
+            mCapture.release();
+        }
+    }
+
+    // The frames of a recording that the app made, with their
+    // recorded times.
+    private static final class RecordingSource extends FrameSource {
+
+        private final FrameReplayer mReplayer;
+
+        RecordingSource(final File file) throws IOException {
+            mReplayer = new FrameReplayer(file);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            return mReplayer.next();
+        }
+
+        @Override
+        int getWidth() {
+            return mReplayer.getWidth();
+        }
+
+        @Override
+        int getHeight() {
+            return mReplayer.getHeight();
+        }
+
+        @Override
+        long getTimeMicros() {
+            return mReplayer.getTimeMicros();
+        }
+
+        @Override
+        FaceDetections process(final FacePipeline pipeline) {
+            return mReplayer.process(pipeline);
+        }
+
+        @Override
+        void close() throws IOException {
+            mReplayer.close();
+        }
+    }
+
+    // The images of a directory, in file name order, at a fixed frame
+    // rate. Images of another size than the first are resized to it.
+    private static final class ImageSource extends FrameSource {
+
+        private final File[] mImages;
+        private final double mFps;
+        private final Mat mGray = new Mat();
+        private int mIndex = -1;
+
+        ImageSource(final File dir, final double fps) {
+            mImages = listImages(dir);
+            mFps = fps;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (mIndex + 1 >= mImages.length) {
+                return false;
+            }
+            mIndex++;
+            final Mat image = Highgui.imread(mImages[mIndex].getPath(),
+                    Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+            if (image.empty()) {
+                throw new IOException("Cannot read " + mImages[mIndex]);
+            }
+            if (mIndex == 0 || image.size().equals(mGray.size())) {
+                image.copyTo(mGray);
+            } else {
+                Imgproc.resize(image, mGray, mGray.size(), 0.0, 0.0,
+                        Imgproc.INTER_AREA);
+            }
+            image.release();
+            return true;
+        }
+
+        @Override
+        int getWidth() {
+            return mGray.cols();
+        }
+
+        @Override
+        int getHeight() {
+            return mGray.rows();
+        }
+
+        @Override
+        long getTimeMicros() {
+            return Math.round(mIndex * MICROS_PER_SECOND / mFps);
+        }
+
+        @Override
+        FaceDetections process(final FacePipeline pipeline) {
+            return pipeline.processGray(mGray);
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    // The analysis of one session on one thread. The pipeline is timed
+    // by the frames' own times, so tracking and gestures behave as
+    // they did when the session was recorded, however fast it is
+    // analyzed.
+    private final class SessionRun implements FrameClock,
+            GestureRecognizer.Listener {
+
+        private final FrameSource mSource;
+        private final String mName;
+        private final StringBuilder mOut = new StringBuilder();
+        private final Rect mRect = new Rect();
+        private long mFrame = -1L;
+
+        SessionRun(final Session session, final FrameSource source) {
+            mSource = source;
+            mName = mJson ? quoteJson(session.mFile.getPath()) :
+                    quoteCsv(session.mFile.getPath());
+        }
+
+        void run() throws IOException {
+            FacePipeline pipeline = null;
+            while (mSource.next()) {
+                mFrame++;
+                if (pipeline == null) {
+                    pipeline = createPipeline();
+                }
+                writeFrame(mSource.process(pipeline));
+                mFrameCount.incrementAndGet();
+                if (mOut.length() >= FLUSH_SIZE) {
+                    flush();
+                }
+            }
+            flush();
+        }
+
+        private FacePipeline createPipeline() {
+            final int width = mSource.getWidth();
+            final int height = mSource.getHeight();
+            final CascadeClassifier[] cascades = sCascades.get();
+            final FacePipeline pipeline = new FacePipeline(width, height,
+                    cascades[0], cascades[1], cascades[2]);
+            pipeline.setOrientingFrames(mOrienting);
+            pipeline.setSearchingPartsInFaces(true);
+            pipeline.setTrackingFaces(true);
+            pipeline.setFullFaceScanInterval(FULL_FACE_SCAN_INTERVAL);
+            pipeline.setGatingByMotion(true);
+            pipeline.setEqualizingRegions(true);
+            pipeline.setFaceDetectionScale(
+                    pipeline.chooseFaceDetectionScale());
+            pipeline.setScheduler(null, this);
+            final int smallerSide = Math.min(width, height);
+            pipeline.setGestureDistances(
+                    smallerSide * MIN_SHAKE_DIST_PROPORTIONAL,
+                    smallerSide * MIN_NOD_DIST_PROPORTIONAL,
+                    smallerSide * MIN_TILT_DIST_PROPORTIONAL);
+            pipeline.setGestureListener(this);
+            return pipeline;
+        }
+
+        @Override
+        public long nowMicros() {
+            return mSource.getTimeMicros();
+        }
+
+        @Override
+        public void onGesture(final int trackId,
+                final GestureRecognizer.Gesture gesture,
+                final long timeMicros) {
+            if (mJson) {
+                mOut.append("{\"session\":").append(mName)
+                        .append(",\"frame\":").append(mFrame)
+                        .append(",\"time_us\":").append(timeMicros)
+                        .append(",\"track\":").append(trackId)
+                        .append(",\"gesture\":\"").append(gesture.name())
+                        .append("\"}\n");
+            } else {
+                mOut.append(mName).append(',').append(mFrame).append(',')
+                        .append(timeMicros).append(",gesture,")
+                        .append(trackId).append(",,,,,")
+                        .append(gesture.name()).append('\n');
+            }
+        }
+
+        private void writeFrame(final FaceDetections detections) {
+            final long time = mSource.getTimeMicros();
+            final int faceCount = detections.getFaceCount();
+            if (mJson) {
+                mOut.append("{\"session\":").append(mName)
+                        .append(",\"frame\":").append(mFrame)
+                        .append(",\"time_us\":").append(time)
+                        .append(",\"faces\":[");
+                for (int face = 0; face < faceCount; face++) {
+                    if (face > 0) {
+                        mOut.append(',');
+                    }
+                    detections.getFace(face, mRect);
+                    mOut.append("{\"track\":")
+                            .append(detections.getFaceId(face))
+                            .append(",\"rect\":");
+                    appendJsonRect();
+                    mOut.append(",\"eyes\":[");
+                    final int eyeCount = detections.getEyeCount(face);
+                    for (int eye = 0; eye < eyeCount; eye++) {
+                        if (eye > 0) {
+                            mOut.append(',');
+                        }
+                        detections.getEye(face, eye, mRect);
+                        appendJsonRect();
+                    }
+                    mOut.append("],\"mouths\":[");
+                    final int mouthCount = detections.getMouthCount(face);
+                    for (int mouth = 0; mouth < mouthCount; mouth++) {
+                        if (mouth > 0) {
+                            mOut.append(',');
+                        }
+                        detections.getMouth(face, mouth, mRect);
+                        appendJsonRect();
+                    }
+                    mOut.append("]}");
+                }
+                mOut.append("]}\n");
+                return;
+            }
+            for (int face = 0; face < faceCount; face++) {
+                final int track = detections.getFaceId(face);
+                detections.getFace(face, mRect);
+                appendCsvRow(time, "face", track);
+                final int eyeCount = detections.getEyeCount(face);
+                for (int eye = 0; eye < eyeCount; eye++) {
+                    detections.getEye(face, eye, mRect);
+                    appendCsvRow(time, "eye", track);
+                }
+                final int mouthCount = detections.getMouthCount(face);
+                for (int mouth = 0; mouth < mouthCount; mouth++) {
+                    detections.getMouth(face, mouth, mRect);
+                    appendCsvRow(time, "mouth", track);
+                }
+            }
+        }
+
+        private void appendJsonRect() {
+            mOut.append('[').append(mRect.x).append(',')
+                    .append(mRect.y).append(',')
+                    .append(mRect.width).append(',')
+                    .append(mRect.height).append(']');
+        }
+
+        private void appendCsvRow(final long time, final String kind,
+                final int track) {
+            mOut.append(mName).append(',').append(mFrame).append(',')
+                    .append(time).append(',').append(kind).append(',')
+                    .append(track).append(',').append(mRect.x).append(',')
+                    .append(mRect.y).append(',').append(mRect.width)
+                    .append(',').append(mRect.height).append(",\n");
+        }
+
+        // Hands the buffered output to the shared writer. Each block
+        // ends with a whole line, so the sessions' lines interleave
+        // but never mix.
+        private void flush() throws IOException {
+            if (mOut.length() == 0) {
+                return;
+            }
+            synchronized (mWriter) {
+                mWriter.append(mOut);
+            }
+            mOut.setLength(0);
+        }
+    }
+
+    private static String quoteCsv(final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+                value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String quoteJson(final String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.nummist.goldgesture.benchmarks;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import com.nummist.goldgesture.CalibratingDetector;
+import com.nummist.goldgesture.CascadeDetector;
+import com.nummist.goldgesture.FrameClock;
+import com.nummist.goldgesture.ObjectDetector;
+
+// Runs the face detector calibration that CameraActivity does at
+// startup on a replayed corpus instead, and prints how each backend
+// did and which one would be chosen on this machine.
+//
+// Usage: CalibrateFaceDetectors [resolution [minRecall]]
+public final class CalibrateFaceDetectors {
+
+    private static final String[] FACE_CASCADES = {
+        "haarcascade_frontalface_alt", "lbpcascade_frontalface"
+    };
+    private static final int REFERENCE_FACE_DETECTOR = 0;
+    private static final double DEFAULT_MIN_RECALL = 0.9;
+    private static final int MIN_CALIBRATION_FACES = 20;
+
+    // The face detection parameters of FacePipeline.
+    private static final double SCALE_FACTOR = 1.2;
+    private static final int MIN_NEIGHBORS = 3;
+    private static final double MIN_SIZE_PROPORTIONAL = 0.25;
+    private static final int MAX_DETECTIONS = 64;
+
+    private CalibrateFaceDetectors() {
+    }
+
+    public static void main(final String[] args) {
+        final String resolution = (args.length > 0) ? args[0] : "640x480";
+        final double minRecall = (args.length > 1) ?
+                Double.parseDouble(args[1]) : DEFAULT_MIN_RECALL;
+
+        final Size size = FrameCorpus.parseResolution(resolution);
+        final FrameCorpus corpus = new FrameCorpus(size);
+
+        final ObjectDetector[] backends =
+                new ObjectDetector[FACE_CASCADES.length];
+        for (int i = 0; i < FACE_CASCADES.length; i++) {
+            backends[i] = new CascadeDetector(FACE_CASCADES[i],
+                    new CascadeClassifier(
+                            FrameCorpus.getCascadePath(FACE_CASCADES[i])));
+        }
+        // Search every frame of the corpus once before choosing.
+        final CalibratingDetector detector = new CalibratingDetector(
+                backends, REFERENCE_FACE_DETECTOR, minRecall,
+                corpus.size(), MIN_CALIBRATION_FACES, FrameClock.SYSTEM);
+
+        final double smallerSide = Math.min(size.width, size.height);
+        final Size minSize = new Size(MIN_SIZE_PROPORTIONAL * smallerSide,
+                MIN_SIZE_PROPORTIONAL * smallerSide);
+        final Size maxSize = new Size(smallerSide, smallerSide);
+        final int[] rects = new int[MAX_DETECTIONS * 4];
+        final Mat gray = new Mat();
+        for (int i = 0; i < corpus.size() && detector.isCalibrating();
+                i++) {
+            Core.transpose(corpus.get(i), gray);
+            Core.flip(gray, gray, -1);
+            Imgproc.equalizeHist(gray, gray);
+            detector.detect(gray, SCALE_FACTOR, MIN_NEIGHBORS, minSize,
+                    maxSize, rects);
+        }
+
+        for (int i = 0; i < backends.length; i++) {
+            System.out.printf("%s: %.0f us per search, recall %.3f%n",
+                    backends[i].getName(), detector.getMeanMicros(i),
+                    detector.getRecall(i));
+        }
+        System.out.println("Chosen: " + detector.getName());
+    }
+}
@@ -0,0 +1,95 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One full-frame detectMultiScale call per frame, swept over the
+// cascade, the detection parameters that FacePipeline hard-codes
+// (SCALE_FACTOR, MIN_NEIGHBORS and MIN_SIZE_PROPORTIONAL) and the
+// frame resolution. Frames are oriented and equalized as in the
+// pipeline before timing starts.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CascadeBenchmark {
+
+    @Param({"haarcascade_frontalface_alt", "lbpcascade_frontalface",
+            "haarcascade_eye", "haarcascade_mcs_nose",
+            "haarcascade_mcs_mouth"})
+    public String cascade;
+
+    @Param({"1.1", "1.2", "1.3"})
+    public double scaleFactor;
+
+    @Param({"2", "3", "4"})
+    public int minNeighbors;
+
+    @Param({"0.1", "0.25", "0.4"})
+    public double minSizeProportional;
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private CascadeClassifier mDetector;
+    private Mat[] mFrames;
+    private int mNextFrame;
+    private Size mMinSize;
+    private Size mMaxSize;
+    private MatOfRect mDetections;
+
+    @Setup
+    public void setUp() {
+        final Size size = FrameCorpus.parseResolution(resolution);
+        final FrameCorpus corpus = new FrameCorpus(size);
+        mFrames = new Mat[corpus.size()];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new Mat();
+            Core.transpose(corpus.get(i), mFrames[i]);
+            Core.flip(mFrames[i], mFrames[i], -1);
+            Imgproc.equalizeHist(mFrames[i], mFrames[i]);
+        }
+
+        mDetector = new CascadeClassifier(
+                FrameCorpus.getCascadePath(cascade));
+        if (mDetector.empty()) {
+            throw new IllegalStateException("Failed to load " + cascade);
+        }
+
+        final double smallerSide = Math.min(size.width, size.height);
+        final double minSizeSide = minSizeProportional * smallerSide;
+        mMinSize = new Size(minSizeSide, minSizeSide);
+        mMaxSize = new Size(smallerSide, smallerSide);
+        mDetections = new MatOfRect();
+    }
+
+    @Benchmark
+    public int detectMultiScale() {
+        final Mat frame = mFrames[mNextFrame];
+        mNextFrame = (mNextFrame + 1) % mFrames.length;
+        mDetector.detectMultiScale(frame, mDetections, scaleFactor,
+                minNeighbors, Objdetect.CASCADE_SCALE_IMAGE, mMinSize,
+                mMaxSize);
+        return mDetections.rows();
+    }
+}
@@ -0,0 +1,128 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+import com.nummist.goldgesture.DetectionScheduler;
+import com.nummist.goldgesture.FacePipeline;
+import com.nummist.goldgesture.FrameClock;
+
+// Checks that FacePipeline allocates nothing on the Java heap once
+// its buffers have grown to fit the scene. The corpus is replayed
+// through the pipeline to warm it up, and then replayed again while
+// the bytes that this thread allocates are counted. The part searches
+// run on this thread, so every allocation of the frame path is
+// counted.
+//
+// Each of the pipeline's setups is checked: the plain one, in which
+// every frame runs every cascade over the whole frame, and the app's,
+// with tracking, filtering, scheduling, motion gating, and the
+// equalization of only the searched regions. Exits with status 1 if
+// any setup allocates, so CI can guard the frame path.
+//
+// Usage: CheckFrameAllocations [resolution [warmUpPasses]]
+public final class CheckFrameAllocations {
+
+    private static final int DEFAULT_WARM_UP_PASSES = 2;
+
+    // The app's pipeline parameters.
+    private static final int FULL_FACE_SCAN_INTERVAL = 10;
+    private static final long TARGET_FRAME_MICROS = 50000L;
+    private static final double MIN_FACE_DETECTION_SCALE = 0.25;
+    private static final double MAX_FACE_DETECTION_SCALE = 1.0;
+    private static final double MIN_FACE_SCALE_FACTOR = 1.1;
+    private static final double MAX_FACE_SCALE_FACTOR = 1.4;
+
+    private static final String[] SETUPS = { "plain", "app" };
+
+    private CheckFrameAllocations() {
+    }
+
+    public static void main(final String[] args) {
+        final String resolution = (args.length > 0) ? args[0] : "640x480";
+        final int warmUpPasses = (args.length > 1) ?
+                Integer.parseInt(args[1]) : DEFAULT_WARM_UP_PASSES;
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM cannot count allocated bytes");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+
+        final Size size = FrameCorpus.parseResolution(resolution);
+        final FrameCorpus corpus = new FrameCorpus(size);
+        final CascadeClassifier faceCascade =
+                loadCascade("haarcascade_frontalface_alt");
+        final CascadeClassifier eyesCascade =
+                loadCascade("haarcascade_eye");
+        final CascadeClassifier mouthCascade =
+                loadCascade("haarcascade_mcs_nose");
+
+        int failedSetups = 0;
+        for (String setup : SETUPS) {
+            final FacePipeline pipeline = new FacePipeline(
+                    (int)size.width, (int)size.height, faceCascade,
+                    eyesCascade, mouthCascade);
+            if (setup.equals("app")) {
+                setUpAsApp(pipeline);
+            }
+            for (int pass = 0; pass < warmUpPasses; pass++) {
+                for (int i = 0; i < corpus.size(); i++) {
+                    pipeline.processGray(corpus.get(i));
+                }
+            }
+
+            // Reading the counter may allocate, so that is measured
+            // first and taken off.
+            final long overheadStart =
+                    threads.getThreadAllocatedBytes(threadId);
+            final long overhead = threads.getThreadAllocatedBytes(threadId) -
+                    overheadStart;
+            final long start = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < corpus.size(); i++) {
+                pipeline.processGray(corpus.get(i));
+            }
+            final long allocated = threads.getThreadAllocatedBytes(threadId) -
+                    start - overhead;
+
+            final boolean failed = allocated > 0L;
+            if (failed) {
+                failedSetups++;
+            }
+            System.out.println(setup + ": " + allocated + " bytes in " +
+                    corpus.size() + " frames" + (failed ? " FAILED" : " ok"));
+        }
+        if (failedSetups > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void setUpAsApp(final FacePipeline pipeline) {
+        pipeline.setSearchingPartsInFaces(true);
+        pipeline.setTrackingFaces(true);
+        pipeline.setFilteringDetections(true);
+        pipeline.setFullFaceScanInterval(FULL_FACE_SCAN_INTERVAL);
+        pipeline.setGatingByMotion(true);
+        pipeline.setEqualizingRegions(true);
+        pipeline.setFaceDetectionScale(pipeline.chooseFaceDetectionScale());
+        pipeline.setScheduler(new DetectionScheduler(TARGET_FRAME_MICROS,
+                MIN_FACE_DETECTION_SCALE, MAX_FACE_DETECTION_SCALE,
+                MIN_FACE_SCALE_FACTOR, MAX_FACE_SCALE_FACTOR),
+                FrameClock.SYSTEM);
+    }
+
+    private static CascadeClassifier loadCascade(final String name) {
+        final CascadeClassifier cascade =
+                new CascadeClassifier(FrameCorpus.getCascadePath(name));
+        if (cascade.empty()) {
+            throw new IllegalStateException("Failed to load " + name);
+        }
+        return cascade;
+    }
+}
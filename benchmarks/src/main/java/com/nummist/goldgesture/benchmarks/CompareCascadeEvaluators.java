@@ -0,0 +1,119 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import com.nummist.goldgesture.CascadeDetector;
+import com.nummist.goldgesture.CascadeModel;
+import com.nummist.goldgesture.JavaCascadeDetector;
+import com.nummist.goldgesture.ObjectDetector;
+
+// Runs every shipped cascade through both OpenCV's detectMultiScale
+// and the pure-Java CascadeEvaluator on each frame of the corpus, and
+// reports the frames on which their rects differ. Frames are oriented
+// and equalized as in the pipeline. Exits with status 1 if any frame
+// differs, so CI can gate changes to the evaluator on it.
+//
+// Usage: CompareCascadeEvaluators [resolution [scaleFactor
+//         [minNeighbors [minSizeProportional]]]]
+public final class CompareCascadeEvaluators {
+
+    private static final String[] CASCADES = {
+        "haarcascade_frontalface_alt", "lbpcascade_frontalface",
+        "haarcascade_eye", "haarcascade_eye_tree_eyeglasses",
+        "haarcascade_mcs_nose", "haarcascade_mcs_mouth",
+        "haarcascade_fullbody"
+    };
+    private static final int MAX_DETECTIONS = 256;
+    private static final int RECT_SIZE = 4;
+
+    private CompareCascadeEvaluators() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final String resolution = (args.length > 0) ? args[0] : "640x480";
+        final double scaleFactor = (args.length > 1) ?
+                Double.parseDouble(args[1]) : 1.1;
+        final int minNeighbors = (args.length > 2) ?
+                Integer.parseInt(args[2]) : 3;
+        final double minSizeProportional = (args.length > 3) ?
+                Double.parseDouble(args[3]) : 0.0;
+
+        final Size size = FrameCorpus.parseResolution(resolution);
+        final FrameCorpus corpus = new FrameCorpus(size);
+        final Mat[] frames = new Mat[corpus.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Mat();
+            Core.transpose(corpus.get(i), frames[i]);
+            Core.flip(frames[i], frames[i], -1);
+            Imgproc.equalizeHist(frames[i], frames[i]);
+        }
+        final double smallerSide = Math.min(size.width, size.height);
+        final Size minSize = new Size(minSizeProportional * smallerSide,
+                minSizeProportional * smallerSide);
+        final Size maxSize = new Size();
+
+        final ForkJoinPool pool = new ForkJoinPool();
+        final int[] nativeRects = new int[MAX_DETECTIONS * RECT_SIZE];
+        final int[] javaRects = new int[MAX_DETECTIONS * RECT_SIZE];
+        int differingFrames = 0;
+        try {
+            for (String cascade : CASCADES) {
+                final String path = FrameCorpus.getCascadePath(cascade);
+                final ObjectDetector nativeDetector = new CascadeDetector(
+                        cascade, new CascadeClassifier(path));
+                final ObjectDetector javaDetector =
+                        new JavaCascadeDetector(cascade, readModel(path),
+                                pool);
+                int differing = 0;
+                int objects = 0;
+                for (int i = 0; i < frames.length; i++) {
+                    final int nativeCount = nativeDetector.detect(
+                            frames[i], scaleFactor, minNeighbors, minSize,
+                            maxSize, nativeRects);
+                    final int javaCount = javaDetector.detect(frames[i],
+                            scaleFactor, minNeighbors, minSize, maxSize,
+                            javaRects);
+                    objects += nativeCount;
+                    if (nativeCount != javaCount || !Arrays.equals(
+                            Arrays.copyOf(nativeRects,
+                                    nativeCount * RECT_SIZE),
+                            Arrays.copyOf(javaRects,
+                                    javaCount * RECT_SIZE))) {
+                        differing++;
+                        System.out.printf(
+                                "%s: frame %d: native %d, java %d%n",
+                                cascade, i, nativeCount, javaCount);
+                    }
+                }
+                System.out.printf("%s: %d objects, %d of %d frames differ%n",
+                        cascade, objects, differing, frames.length);
+                differingFrames += differing;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (differingFrames > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static CascadeModel readModel(final String path)
+            throws IOException {
+        final InputStream input = new FileInputStream(path);
+        try {
+            return CascadeModel.parse(input);
+        } finally {
+            input.close();
+        }
+    }
+}
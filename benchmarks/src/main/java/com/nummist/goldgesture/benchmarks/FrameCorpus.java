@@ -0,0 +1,101 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+// A fixed set of recorded gray frames, as the camera delivers them
+// (landscape and not yet oriented), resized to a benchmark
+// resolution. The frames are read from the directory named by the
+// goldgesture.corpus system property, in file name order.
+final class FrameCorpus {
+
+    static final String CORPUS_PROPERTY = "goldgesture.corpus";
+    static final String CASCADES_PROPERTY = "goldgesture.cascades";
+    private static final String DEFAULT_CASCADES = "../res/raw";
+
+    private static boolean sLibraryLoaded;
+
+    private final Mat[] mFrames;
+    private int mNextFrame;
+
+    static synchronized void loadLibrary() {
+        if (!sLibraryLoaded) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            sLibraryLoaded = true;
+        }
+    }
+
+    // Returns the path of a cascade that ships in res/raw.
+    static String getCascadePath(final String name) {
+        final String dir = System.getProperty(CASCADES_PROPERTY,
+                DEFAULT_CASCADES);
+        final File file = new File(dir, name + ".xml");
+        if (!file.isFile()) {
+            throw new IllegalStateException("Missing cascade " + file +
+                    "; set -D" + CASCADES_PROPERTY);
+        }
+        return file.getAbsolutePath();
+    }
+
+    // Parses a resolution such as "640x480".
+    static Size parseResolution(final String resolution) {
+        final int x = resolution.indexOf('x');
+        return new Size(Integer.parseInt(resolution.substring(0, x)),
+                Integer.parseInt(resolution.substring(x + 1)));
+    }
+
+    FrameCorpus(final Size resolution) {
+        loadLibrary();
+        final String dirName = System.getProperty(CORPUS_PROPERTY);
+        if (dirName == null) {
+            throw new IllegalStateException("Set -D" + CORPUS_PROPERTY +
+                    " to a directory of recorded frames");
+        }
+        final File[] files = new File(dirName).listFiles();
+        if (files == null) {
+            throw new IllegalStateException("Not a directory: " +
+                    dirName);
+        }
+        Arrays.sort(files);
+
+        final List<Mat> frames = new ArrayList<Mat>();
+        for (final File file : files) {
+            final Mat image = Highgui.imread(file.getAbsolutePath(),
+                    Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+            if (image.empty()) {
+                continue;
+            }
+            final Mat frame = new Mat();
+            Imgproc.resize(image, frame, resolution, 0.0, 0.0,
+                    Imgproc.INTER_AREA);
+            frames.add(frame);
+        }
+        if (frames.isEmpty()) {
+            throw new IllegalStateException("No frames in " + dirName);
+        }
+        mFrames = frames.toArray(new Mat[frames.size()]);
+    }
+
+    int size() {
+        return mFrames.length;
+    }
+
+    Mat get(final int index) {
+        return mFrames[index];
+    }
+
+    // Returns the frames in turn, starting over after the last one.
+    Mat next() {
+        final Mat frame = mFrames[mNextFrame];
+        mNextFrame = (mNextFrame + 1) % mFrames.length;
+        return frame;
+    }
+}
@@ -0,0 +1,108 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nummist.goldgesture.CascadeEvaluator;
+import com.nummist.goldgesture.CascadeModel;
+
+// One full-frame search per frame with the pure-Java cascade
+// evaluator, swept over the cascade, the resolution and the number of
+// fork/join threads (0 searches on the benchmark thread). Compare
+// with CascadeBenchmark for the native cost of the same search.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JavaCascadeBenchmark {
+
+    private static final double SCALE_FACTOR = 1.2;
+    private static final int MIN_NEIGHBORS = 3;
+    private static final double MIN_SIZE_PROPORTIONAL = 0.25;
+    private static final int MAX_DETECTIONS = 64;
+
+    @Param({"haarcascade_frontalface_alt", "lbpcascade_frontalface",
+            "haarcascade_mcs_nose"})
+    public String cascade;
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    @Param({"0", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool mPool;
+    private CascadeEvaluator mEvaluator;
+    private byte[][] mFrames;
+    private int mWidth;
+    private int mHeight;
+    private int mNextFrame;
+    private int mMinSize;
+    private final int[] mRects = new int[MAX_DETECTIONS * 4];
+
+    @Setup
+    public void setUp() throws IOException {
+        final Size size = FrameCorpus.parseResolution(resolution);
+        final FrameCorpus corpus = new FrameCorpus(size);
+        // Orient and equalize as the pipeline does.
+        mWidth = (int) size.height;
+        mHeight = (int) size.width;
+        mFrames = new byte[corpus.size()][mWidth * mHeight];
+        final Mat frame = new Mat();
+        for (int i = 0; i < mFrames.length; i++) {
+            Core.transpose(corpus.get(i), frame);
+            Core.flip(frame, frame, -1);
+            Imgproc.equalizeHist(frame, frame);
+            frame.get(0, 0, mFrames[i]);
+        }
+        mMinSize = (int) (MIN_SIZE_PROPORTIONAL * mWidth);
+
+        final InputStream input = new FileInputStream(
+                FrameCorpus.getCascadePath(cascade));
+        final CascadeModel model;
+        try {
+            model = CascadeModel.parse(input);
+        } finally {
+            input.close();
+        }
+        mPool = (threads > 0) ? new ForkJoinPool(threads) : null;
+        mEvaluator = new CascadeEvaluator(model, mPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int detect() {
+        final byte[] frame = mFrames[mNextFrame];
+        mNextFrame = (mNextFrame + 1) % mFrames.length;
+        return mEvaluator.detect(frame, mWidth, mHeight, SCALE_FACTOR,
+                MIN_NEIGHBORS, mMinSize, mMinSize, mWidth, mWidth, mRects);
+    }
+}
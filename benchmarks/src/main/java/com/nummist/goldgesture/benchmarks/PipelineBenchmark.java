@@ -0,0 +1,88 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nummist.goldgesture.FaceDetections;
+import com.nummist.goldgesture.FacePipeline;
+
+// The whole FacePipeline, with the cascades that CameraActivity
+// uses, in each of its detection, orientation and equalization
+// modes. Tracking is off, so every frame runs the cascades.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    @Param({"false", "true"})
+    public boolean searchPartsInFaces;
+
+    @Param({"false", "true"})
+    public boolean downscaleFaceSearch;
+
+    @Param({"true", "false"})
+    public boolean orientingFrames;
+
+    @Param({"1", "10"})
+    public int fullFaceScanInterval;
+
+    @Param({"false", "true"})
+    public boolean equalizingRegions;
+
+    private FrameCorpus mCorpus;
+    private FacePipeline mPipeline;
+
+    @Setup
+    public void setUp() {
+        final Size size = FrameCorpus.parseResolution(resolution);
+        mCorpus = new FrameCorpus(size);
+        mPipeline = new FacePipeline((int)size.width, (int)size.height,
+                loadCascade("haarcascade_frontalface_alt"),
+                loadCascade("haarcascade_eye"),
+                loadCascade("haarcascade_mcs_nose"));
+        mPipeline.setOrientingFrames(orientingFrames);
+        mPipeline.setSearchingPartsInFaces(searchPartsInFaces);
+        mPipeline.setFullFaceScanInterval(fullFaceScanInterval);
+        mPipeline.setEqualizingRegions(equalizingRegions);
+        if (downscaleFaceSearch) {
+            mPipeline.setFaceDetectionScale(
+                    mPipeline.chooseFaceDetectionScale());
+        }
+    }
+
+    private static CascadeClassifier loadCascade(final String name) {
+        final CascadeClassifier cascade =
+                new CascadeClassifier(FrameCorpus.getCascadePath(name));
+        if (cascade.empty()) {
+            throw new IllegalStateException("Failed to load " + name);
+        }
+        return cascade;
+    }
+
+    @Benchmark
+    public int processGray() {
+        final Mat frame = mCorpus.next();
+        final FaceDetections detections = mPipeline.processGray(frame);
+        return detections.getFaceCount();
+    }
+}
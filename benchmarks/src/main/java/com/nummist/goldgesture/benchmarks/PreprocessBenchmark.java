@@ -0,0 +1,96 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The preprocessing steps that FacePipeline runs on every frame.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreprocessBenchmark {
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private FrameCorpus mCorpus;
+    private Mat[] mRgbaFrames;
+    private int mNextFrame;
+
+    private Mat mGray;
+    private Mat mTransposed;
+    private Mat mEqualized;
+
+    @Setup
+    public void setUp() {
+        final Size size = FrameCorpus.parseResolution(resolution);
+        mCorpus = new FrameCorpus(size);
+        mRgbaFrames = new Mat[mCorpus.size()];
+        for (int i = 0; i < mRgbaFrames.length; i++) {
+            mRgbaFrames[i] = new Mat();
+            Imgproc.cvtColor(mCorpus.get(i), mRgbaFrames[i],
+                    Imgproc.COLOR_GRAY2RGBA);
+        }
+        final int width = (int)size.width;
+        final int height = (int)size.height;
+        mGray = new Mat(height, width, CvType.CV_8UC1);
+        mTransposed = new Mat(width, height, CvType.CV_8UC1);
+        mEqualized = new Mat(width, height, CvType.CV_8UC1);
+    }
+
+    private Mat nextRgba() {
+        final Mat rgba = mRgbaFrames[mNextFrame];
+        mNextFrame = (mNextFrame + 1) % mRgbaFrames.length;
+        return rgba;
+    }
+
+    @Benchmark
+    public Mat cvtColor() {
+        Imgproc.cvtColor(nextRgba(), mGray, Imgproc.COLOR_RGBA2GRAY);
+        return mGray;
+    }
+
+    @Benchmark
+    public Mat transpose() {
+        Core.transpose(mCorpus.next(), mTransposed);
+        return mTransposed;
+    }
+
+    @Benchmark
+    public Mat flip() {
+        Core.transpose(mCorpus.next(), mTransposed);
+        Core.flip(mTransposed, mTransposed, -1);
+        return mTransposed;
+    }
+
+    @Benchmark
+    public Mat equalizeHist() {
+        Imgproc.equalizeHist(mCorpus.next(), mEqualized);
+        return mEqualized;
+    }
+
+    @Benchmark
+    public Mat mirror() {
+        final Mat rgba = nextRgba();
+        Core.flip(rgba, rgba, 1);
+        return rgba;
+    }
+}
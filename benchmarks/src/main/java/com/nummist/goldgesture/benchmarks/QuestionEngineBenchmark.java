@@ -0,0 +1,85 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nummist.goldgesture.CharacterTable;
+import com.nummist.goldgesture.QuestionEngine;
+
+// The QuestionEngine on random tables with many more characters than
+// the game ships with: one answer from the start of a game, which
+// eliminates candidates and chooses the next question, and a whole
+// game played as a random character.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuestionEngineBenchmark {
+
+    private static final int QUESTION_COUNT = 48;
+
+    // The chance that a character would answer yes to a question.
+    private static final double YES_PROBABILITY = 0.3;
+
+    @Param({"1000", "10000", "50000"})
+    public int characterCount;
+
+    private CharacterTable mTable;
+    private QuestionEngine mStart;
+    private QuestionEngine mEngine;
+    private final Random mRandom = new Random(1);
+
+    @Setup
+    public void setUp() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int q = 0; q < QUESTION_COUNT; q++) {
+            text.append("question q").append(q).append('\n');
+        }
+        for (int c = 0; c < characterCount; c++) {
+            text.append("character c").append(c);
+            for (int q = 0; q < QUESTION_COUNT; q++) {
+                if (mRandom.nextDouble() < YES_PROBABILITY) {
+                    text.append(" q").append(q);
+                }
+            }
+            text.append('\n');
+        }
+        mTable = CharacterTable.parse(new ByteArrayInputStream(
+                text.toString().getBytes("UTF-8")));
+        mStart = new QuestionEngine(mTable);
+        mEngine = new QuestionEngine(mTable);
+    }
+
+    @Benchmark
+    public int firstAnswer() {
+        mEngine.copyFrom(mStart);
+        mEngine.answer(mRandom.nextBoolean());
+        return mEngine.getQuestion();
+    }
+
+    @Benchmark
+    public int wholeGame() {
+        final int character = mRandom.nextInt(characterCount);
+        mEngine.reset();
+        while (mEngine.getQuestion() >= 0) {
+            mEngine.answer(mTable.hasYes(character, mEngine.getQuestion()));
+        }
+        return mEngine.getGuess();
+    }
+}
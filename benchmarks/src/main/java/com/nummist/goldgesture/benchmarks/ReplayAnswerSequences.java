@@ -0,0 +1,156 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.nummist.goldgesture.CharacterTable;
+import com.nummist.goldgesture.QuestionEngine;
+
+// Checks a character table and replays sequences of answers through
+// the QuestionEngine.
+//
+// First, each character is played by answering every question as the
+// character would, and must be the one guessed. Then each sequence
+// file is replayed. A sequence file has one game per line, as the
+// answers ("yes" or "no") followed by "=" and the character that the
+// engine should guess, or "lose" if it should guess none. Lines
+// starting with # are comments. Exits with status 1 if any game ends
+// otherwise, so CI can gate changes to the table or the engine. The
+// sequences in the module's sequences directory cover wins, losses
+// and answers that contradict themselves, for the app's table.
+//
+// Usage: ReplayAnswerSequences tableFile [sequenceFileOrDirectory...]
+public final class ReplayAnswerSequences {
+
+    private static final String LOSE = "lose";
+
+    private ReplayAnswerSequences() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayAnswerSequences tableFile " +
+                    "[sequenceFileOrDirectory...]");
+            System.exit(2);
+        }
+        final CharacterTable table;
+        final InputStream input = new FileInputStream(args[0]);
+        try {
+            table = CharacterTable.parse(input);
+        } finally {
+            input.close();
+        }
+        final QuestionEngine engine = new QuestionEngine(table);
+
+        int games = 0;
+        int failedGames = 0;
+        for (int c = 0; c < table.getCharacterCount(); c++) {
+            engine.reset();
+            final List<String> answers = new ArrayList<String>();
+            while (engine.getQuestion() >= 0) {
+                final boolean yes = table.hasYes(c, engine.getQuestion());
+                answers.add(yes ? "yes" : "no");
+                engine.answer(yes);
+            }
+            games++;
+            if (engine.getGuess() != c) {
+                failedGames++;
+                System.out.println(table.getCharacter(c) + ": " + answers +
+                        " FAILED, guessed " + getGuess(engine));
+            }
+        }
+        System.out.println(table.getCharacterCount() + " characters, " +
+                failedGames + " not guessed");
+
+        final List<File> files = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            final File file = new File(args[i]);
+            if (file.isDirectory()) {
+                final File[] sequences = file.listFiles();
+                Arrays.sort(sequences);
+                for (File sequence : sequences) {
+                    if (sequence.isFile() && !sequence.isHidden()) {
+                        files.add(sequence);
+                    }
+                }
+            } else {
+                files.add(file);
+            }
+        }
+        for (File file : files) {
+            final BufferedReader reader =
+                    new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    games++;
+                    final String result = replay(engine, line);
+                    if (result != null) {
+                        failedGames++;
+                        System.out.println(file.getName() + ":" +
+                                lineNumber + ": " + line + " FAILED, " +
+                                result);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        System.out.println(games + " games, " + failedGames + " failed");
+        if (failedGames > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Replays one game, and returns null if it ends as expected, or
+    // else what went wrong.
+    private static String replay(final QuestionEngine engine,
+            final String line) {
+        final int separator = line.indexOf('=');
+        if (separator < 0) {
+            return "no expected guess";
+        }
+        final String expected = line.substring(separator + 1).trim();
+        engine.reset();
+        for (String answer :
+                line.substring(0, separator).trim().split("\\s+")) {
+            if (answer.isEmpty()) {
+                continue;
+            }
+            if (engine.getQuestion() < 0) {
+                return "the game ended before the answer " + answer;
+            }
+            if (answer.equalsIgnoreCase("yes")) {
+                engine.answer(true);
+            } else if (answer.equalsIgnoreCase("no")) {
+                engine.answer(false);
+            } else {
+                return "unknown answer " + answer;
+            }
+        }
+        if (engine.getQuestion() >= 0) {
+            return "the game asks " +
+                    engine.getTable().getQuestion(engine.getQuestion());
+        }
+        final String guess = getGuess(engine);
+        return guess.equals(expected) ? null : "guessed " + guess;
+    }
+
+    private static String getGuess(final QuestionEngine engine) {
+        final int guess = engine.getGuess();
+        return (guess < 0) ? LOSE : engine.getTable().getCharacter(guess);
+    }
+}
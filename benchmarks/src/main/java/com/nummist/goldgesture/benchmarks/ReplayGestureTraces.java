@@ -0,0 +1,130 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.nummist.goldgesture.GestureRecognizer;
+
+// Replays recorded traces of a face's position through the
+// GestureRecognizer and reports the gestures that it recognizes.
+//
+// A trace is a text file with one sample per line, as the time in
+// microseconds and the x and y of the face in the detection image,
+// separated by commas. Lines starting with # are comments, except for
+// one of the form "# expect: NOD SHAKE", which lists the gestures
+// that the trace should produce, in order. Exits with status 1 if any
+// trace produces other gestures than it expects, so CI can gate
+// changes to the recognizer on a set of recorded traces. The traces in
+// the module's traces directory cover each gesture and the motions
+// that should not make one, in a frame whose smaller side is 480.
+//
+// Usage: ReplayGestureTraces smallerSide traceFileOrDirectory...
+public final class ReplayGestureTraces {
+
+    // The same distances, relative to the smaller side of the camera
+    // frame, as the app uses.
+    private static final double MIN_SHAKE_DIST_PROPORTIONAL = 0.04;
+    private static final double MIN_NOD_DIST_PROPORTIONAL = 0.005;
+    private static final double MIN_TILT_DIST_PROPORTIONAL = 0.08;
+
+    private static final String EXPECT_PREFIX = "# expect:";
+
+    private ReplayGestureTraces() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ReplayGestureTraces smallerSide " +
+                    "traceFileOrDirectory...");
+            System.exit(2);
+        }
+        final double smallerSide = Double.parseDouble(args[0]);
+        final List<File> traces = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            final File file = new File(args[i]);
+            if (file.isDirectory()) {
+                final File[] files = file.listFiles();
+                Arrays.sort(files);
+                for (File trace : files) {
+                    if (trace.isFile() && !trace.isHidden()) {
+                        traces.add(trace);
+                    }
+                }
+            } else {
+                traces.add(file);
+            }
+        }
+
+        final GestureRecognizer recognizer = new GestureRecognizer(
+                smallerSide * MIN_SHAKE_DIST_PROPORTIONAL,
+                smallerSide * MIN_NOD_DIST_PROPORTIONAL,
+                smallerSide * MIN_TILT_DIST_PROPORTIONAL);
+        final List<String> gestures = new ArrayList<String>();
+        recognizer.setListener(new GestureRecognizer.Listener() {
+            @Override
+            public void onGesture(final int trackId,
+                    final GestureRecognizer.Gesture gesture,
+                    final long timeMicros) {
+                gestures.add(gesture.name());
+            }
+        }, 0);
+
+        int failedTraces = 0;
+        for (File trace : traces) {
+            recognizer.reset();
+            gestures.clear();
+            final List<String> expected = replay(trace, recognizer);
+            final boolean failed =
+                    expected != null && !expected.equals(gestures);
+            if (failed) {
+                failedTraces++;
+            }
+            System.out.println(trace.getName() + ": " + gestures +
+                    ((expected == null) ? "" :
+                    (failed ? " FAILED, expected " + expected : " ok")));
+        }
+        System.out.println(traces.size() + " traces, " + failedTraces +
+                " failed");
+        if (failedTraces > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Feeds a trace's samples to the recognizer, and returns the
+    // gestures that the trace expects, or null if it expects none in
+    // particular.
+    private static List<String> replay(final File trace,
+            final GestureRecognizer recognizer) throws IOException {
+        List<String> expected = null;
+        final BufferedReader reader =
+                new BufferedReader(new FileReader(trace));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(EXPECT_PREFIX)) {
+                    expected = new ArrayList<String>();
+                    for (String gesture : line.substring(
+                            EXPECT_PREFIX.length()).trim().split("\\s+")) {
+                        if (!gesture.isEmpty()) {
+                            expected.add(gesture.toUpperCase());
+                        }
+                    }
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    final String[] fields = line.split(",");
+                    recognizer.addSample(Long.parseLong(fields[0].trim()),
+                            Double.parseDouble(fields[1].trim()),
+                            Double.parseDouble(fields[2].trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return expected;
+    }
+}
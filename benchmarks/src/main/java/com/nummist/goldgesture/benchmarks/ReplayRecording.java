@@ -0,0 +1,128 @@
+package com.nummist.goldgesture.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+import com.nummist.goldgesture.FaceDetections;
+import com.nummist.goldgesture.FacePipeline;
+import com.nummist.goldgesture.FrameReplayer;
+import com.nummist.goldgesture.LatencyHistogram;
+import com.nummist.goldgesture.MotionGate;
+import com.nummist.goldgesture.RegionEqualizer;
+
+// Replays a recording that the app made with FrameRecorder through a
+// FacePipeline that is set up as the app's synchronous path, and
+// reports how long each frame took and how often the pipeline found
+// as many faces as were shown on the device. Frames are fed as fast
+// as the pipeline takes them, or at the pace at which they were
+// recorded. The whole frame may be equalized, as by default, or only
+// the searched regions, with one table or adaptively, so that the
+// counts of matching frames can be compared between them.
+//
+// Usage: ReplayRecording recordingFile [paced [whole|regions|adaptive]]
+public final class ReplayRecording {
+
+    private static final int FULL_FACE_SCAN_INTERVAL = 10;
+
+    private ReplayRecording() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayRecording recordingFile " +
+                    "[paced [whole|regions|adaptive]]");
+            System.exit(2);
+        }
+        final boolean paced = args.length > 1 &&
+                Boolean.parseBoolean(args[1]);
+        final String equalization = (args.length > 2) ? args[2] : "whole";
+        if (!equalization.equals("whole") &&
+                !equalization.equals("regions") &&
+                !equalization.equals("adaptive")) {
+            throw new IllegalArgumentException(
+                    "Unknown equalization: " + equalization);
+        }
+        FrameCorpus.loadLibrary();
+
+        final FrameReplayer replayer = new FrameReplayer(new File(args[0]));
+        try {
+            replayer.setPaced(paced);
+            final int width = replayer.getWidth();
+            final int height = replayer.getHeight();
+            final FacePipeline pipeline = new FacePipeline(width, height,
+                    loadCascade("haarcascade_frontalface_alt"),
+                    loadCascade("haarcascade_eye"),
+                    loadCascade("haarcascade_mcs_nose"));
+            pipeline.setSearchingPartsInFaces(true);
+            pipeline.setTrackingFaces(true);
+            pipeline.setFullFaceScanInterval(FULL_FACE_SCAN_INTERVAL);
+            pipeline.setGatingByMotion(true);
+            if (!equalization.equals("whole")) {
+                pipeline.setEqualizingRegions(true);
+                pipeline.getEqualizer().setAdaptive(
+                        equalization.equals("adaptive"));
+            }
+            pipeline.setFaceDetectionScale(
+                    pipeline.chooseFaceDetectionScale());
+
+            final LatencyHistogram frameTimes = new LatencyHistogram();
+            int matchingFrames = 0;
+            final long start = System.nanoTime();
+            while (replayer.next()) {
+                final long frameStart = System.nanoTime();
+                final FaceDetections detections =
+                        replayer.process(pipeline);
+                frameTimes.record(
+                        (System.nanoTime() - frameStart) / 1000L);
+                if (detections.getFaceCount() ==
+                        replayer.getDetections().getFaceCount()) {
+                    matchingFrames++;
+                }
+            }
+            final long frames = replayer.getFrameCount();
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(frames + " frames of " + width + "x" +
+                    height + " in " + String.format("%.2f", seconds) +
+                    " s (" + String.format("%.1f", frames / seconds) +
+                    " frames/s)");
+            System.out.println("Frame time: p50 " +
+                    Math.round(frameTimes.getPercentile(0.5)) +
+                    " us, p99 " +
+                    Math.round(frameTimes.getPercentile(0.99)) +
+                    " us, max " + frameTimes.getMax() + " us");
+            System.out.println("Frames copied " +
+                    (pipeline.isCopyingBuffersDirectly() ? "once" :
+                    "twice, through an array") +
+                    ", from the recording into the pipeline");
+            System.out.println("Frames with the recorded face count: " +
+                    matchingFrames + " of " + frames);
+            final MotionGate gate = pipeline.getMotionGate();
+            System.out.println("Motion gate: " +
+                    gate.getReusedFrameCount() + " of " +
+                    gate.getCheckedFrameCount() +
+                    " detections reused whole; reused " +
+                    gate.getReusedFaceCount() + " face searches, " +
+                    gate.getReusedEyeSearchCount() + " eye searches, " +
+                    gate.getReusedMouthSearchCount() + " mouth searches");
+            final RegionEqualizer equalizer = pipeline.getEqualizer();
+            if (equalizer != null && !equalizer.isAdaptive()) {
+                System.out.println("Equalization table built " +
+                        equalizer.getTableBuildCount() + " times in " +
+                        equalizer.getFrameCount() + " frames");
+            }
+        } finally {
+            replayer.close();
+        }
+    }
+
+    private static CascadeClassifier loadCascade(final String name) {
+        final CascadeClassifier cascade =
+                new CascadeClassifier(FrameCorpus.getCascadePath(name));
+        if (cascade.empty()) {
+            throw new IllegalStateException("Failed to load " + name);
+        }
+        return cascade;
+    }
+}
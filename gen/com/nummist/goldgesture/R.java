@@ -59,37 +59,38 @@ containing a value of this type.
         public static final int activity_camera=0x7f030000;
     }
     public static final class raw {
-        public static final int haarcascade_eye=0x7f040000;
-        public static final int haarcascade_eye_tree_eyeglasses=0x7f040001;
-        public static final int haarcascade_frontalface_alt=0x7f040002;
-        public static final int haarcascade_fullbody=0x7f040003;
-        public static final int haarcascade_mcs_mouth=0x7f040004;
-        public static final int haarcascade_mcs_nose=0x7f040005;
-        public static final int intro=0x7f040006;
-        public static final int lbpcascade_frontalface=0x7f040007;
-        public static final int lose=0x7f040008;
-        public static final int q_abbreviate=0x7f040009;
-        public static final int q_angora=0x7f04000a;
-        public static final int q_bond_friend=0x7f04000b;
-        public static final int q_bond_girl=0x7f04000c;
-        public static final int q_chief=0x7f04000d;
-        public static final int q_cia=0x7f04000e;
-        public static final int q_criminal=0x7f04000f;
-        public static final int q_dentures=0x7f040010;
-        public static final int q_kgb=0x7f040011;
-        public static final int q_martinis=0x7f040012;
-        public static final int q_mi6=0x7f040013;
-        public static final int q_secretary=0x7f040014;
-        public static final int win_007=0x7f040015;
-        public static final int win_blofeld=0x7f040016;
-        public static final int win_gogol=0x7f040017;
-        public static final int win_jaws=0x7f040018;
-        public static final int win_leiter=0x7f040019;
-        public static final int win_m=0x7f04001a;
-        public static final int win_moneypenny=0x7f04001b;
-        public static final int win_q=0x7f04001c;
-        public static final int win_rublevitch=0x7f04001d;
-        public static final int win_tanner=0x7f04001e;
+        public static final int characters=0x7f040000;
+        public static final int haarcascade_eye=0x7f040001;
+        public static final int haarcascade_eye_tree_eyeglasses=0x7f040002;
+        public static final int haarcascade_frontalface_alt=0x7f040003;
+        public static final int haarcascade_fullbody=0x7f040004;
+        public static final int haarcascade_mcs_mouth=0x7f040005;
+        public static final int haarcascade_mcs_nose=0x7f040006;
+        public static final int intro=0x7f040007;
+        public static final int lbpcascade_frontalface=0x7f040008;
+        public static final int lose=0x7f040009;
+        public static final int q_abbreviate=0x7f04000a;
+        public static final int q_angora=0x7f04000b;
+        public static final int q_bond_friend=0x7f04000c;
+        public static final int q_bond_girl=0x7f04000d;
+        public static final int q_chief=0x7f04000e;
+        public static final int q_cia=0x7f04000f;
+        public static final int q_criminal=0x7f040010;
+        public static final int q_dentures=0x7f040011;
+        public static final int q_kgb=0x7f040012;
+        public static final int q_martinis=0x7f040013;
+        public static final int q_mi6=0x7f040014;
+        public static final int q_secretary=0x7f040015;
+        public static final int win_007=0x7f040016;
+        public static final int win_blofeld=0x7f040017;
+        public static final int win_gogol=0x7f040018;
+        public static final int win_jaws=0x7f040019;
+        public static final int win_leiter=0x7f04001a;
+        public static final int win_m=0x7f04001b;
+        public static final int win_moneypenny=0x7f04001c;
+        public static final int win_q=0x7f04001d;
+        public static final int win_rublevitch=0x7f04001e;
+        public static final int win_tanner=0x7f04001f;
     }
     public static final class string {
         public static final int app_name=0x7f060000;
@@ -0,0 +1,163 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Runs a FacePipeline on a worker thread. The camera thread hands
+// over gray frames and returns at once; if the worker is still busy,
+// a newer frame replaces the waiting one (latest frame wins). The
+// newest finished detections can be drawn onto later preview frames.
+public final class AsyncFaceDetector {
+
+    // The pipeline, which is used only by the worker thread.
+    private final FacePipeline mPipeline;
+
+    // The single-slot frame buffer. The camera thread fills the
+    // pending frame and the worker swaps it for its working frame.
+    private final Object mFrameLock = new Object();
+    private Mat mPendingGray;
+    private Mat mWorkingGray;
+    private boolean mHasPendingFrame;
+    private boolean mStopped;
+
+    // The newest finished detections.
+    private final Object mDetectionsLock = new Object();
+    private final FaceDetections mLatestDetections =
+            new FaceDetections();
+
+    // The detections that are predicted for the frame being drawn,
+    // if the pipeline filters its detections.
+    private final FaceDetections mPredictedDetections =
+            new FaceDetections();
+
+    // Counters for frames that were handed over, processed, and
+    // replaced before the worker could take them.
+    private long mSubmittedFrameCount;
+    private long mProcessedFrameCount;
+    private long mDroppedFrameCount;
+
+    private Thread mWorker;
+
+    public AsyncFaceDetector(final int width, final int height,
+            final FacePipeline pipeline) {
+        mPipeline = pipeline;
+        mPendingGray = new Mat(height, width, CvType.CV_8UC1);
+        mWorkingGray = new Mat(height, width, CvType.CV_8UC1);
+    }
+
+    public void start() {
+        synchronized (mFrameLock) {
+            mStopped = false;
+            mHasPendingFrame = false;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processFrames();
+            }
+        }, "AsyncFaceDetector");
+        mWorker.start();
+    }
+
+    // Stops the worker and waits for it to finish its current frame.
+    public void stop() {
+        synchronized (mFrameLock) {
+            mStopped = true;
+            mFrameLock.notifyAll();
+        }
+        if (mWorker != null) {
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWorker = null;
+        }
+    }
+
+    // Hands over a gray frame that has the camera's dimensions and is
+    // not yet oriented. The frame is copied, so the caller may reuse
+    // it at once.
+    public void submitGray(final Mat gray) {
+        synchronized (mFrameLock) {
+            gray.copyTo(mPendingGray);
+            if (mHasPendingFrame) {
+                mDroppedFrameCount++;
+            }
+            mHasPendingFrame = true;
+            mSubmittedFrameCount++;
+            mFrameLock.notifyAll();
+        }
+    }
+
+    // Draws the newest finished detections onto an RGBA frame that
+    // is not yet oriented or mirrored. If the pipeline filters its
+    // detections, they are predicted for the current time instead, so
+    // that the boxes keep moving between finished frames.
+    public void drawLatestDetections(final Mat rgba) {
+        final DetectionFilter filter = mPipeline.getFilter();
+        if (filter != null) {
+            filter.predict(mPipeline.getClock().nowMicros(),
+                    mPredictedDetections);
+            mPipeline.drawDetections(rgba, mPredictedDetections);
+            return;
+        }
+        synchronized (mDetectionsLock) {
+            mPipeline.drawDetections(rgba, mLatestDetections);
+        }
+    }
+
+    // Copies the newest finished detections into the given holder.
+    public void getLatestDetections(final FaceDetections detections) {
+        synchronized (mDetectionsLock) {
+            detections.copyFrom(mLatestDetections);
+        }
+    }
+
+    public long getSubmittedFrameCount() {
+        synchronized (mFrameLock) {
+            return mSubmittedFrameCount;
+        }
+    }
+
+    public long getDroppedFrameCount() {
+        synchronized (mFrameLock) {
+            return mDroppedFrameCount;
+        }
+    }
+
+    public long getProcessedFrameCount() {
+        synchronized (mDetectionsLock) {
+            return mProcessedFrameCount;
+        }
+    }
+
+    private void processFrames() {
+        while (true) {
+            synchronized (mFrameLock) {
+                while (!mHasPendingFrame && !mStopped) {
+                    try {
+                        mFrameLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+                final Mat swapGray = mWorkingGray;
+                mWorkingGray = mPendingGray;
+                mPendingGray = swapGray;
+                mHasPendingFrame = false;
+            }
+
+            final FaceDetections detections =
+                    mPipeline.processGray(mWorkingGray);
+
+            synchronized (mDetectionsLock) {
+                mLatestDetections.copyFrom(detections);
+                mProcessedFrameCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.nummist.goldgesture;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.util.Log;
+
+// A small, bounded pool of audio clips that are prepared ahead of
+// time, so that a clip that was expected starts at once instead of
+// after its resource is opened and decoded. Clips are prepared
+// asynchronously. When the pool is full, the clip that was least
+// recently asked for is released to make room, so only a few clips
+// are ever held open.
+//
+// The pool is synchronized, since clips finish preparing, or fail,
+// on the main thread.
+final class AudioClipPool {
+
+    private static final String TAG = "AudioClipPool";
+
+    // A clip and its player, which may still be preparing.
+    static final class Clip implements OnPreparedListener,
+            OnErrorListener {
+
+        private final AudioClipPool mPool;
+        final int mResource;
+        final MediaPlayer mPlayer;
+        boolean mPrepared;
+        boolean mStartWhenPrepared;
+        boolean mReleased;
+        long mLastUse;
+
+        Clip(final AudioClipPool pool, final int resource,
+                final MediaPlayer player) {
+            mPool = pool;
+            mResource = resource;
+            mPlayer = player;
+        }
+
+        // Returns whether the clip is playing or about to play.
+        boolean isPlaying() {
+            synchronized (mPool) {
+                return !mReleased &&
+                        (mStartWhenPrepared || mPlayer.isPlaying());
+            }
+        }
+
+        void release() {
+            synchronized (mPool) {
+                if (!mReleased) {
+                    mReleased = true;
+                    mStartWhenPrepared = false;
+                    mPlayer.release();
+                }
+            }
+        }
+
+        @Override
+        public void onPrepared(final MediaPlayer player) {
+            synchronized (mPool) {
+                mPrepared = true;
+                if (mStartWhenPrepared && !mReleased) {
+                    mStartWhenPrepared = false;
+                    mPlayer.start();
+                }
+            }
+        }
+
+        // A clip that fails, whether while it prepares or while it
+        // plays, is released and leaves the pool, so that it is not
+        // taken as playing forever and is prepared again if it is
+        // asked for.
+        @Override
+        public boolean onError(final MediaPlayer player, final int what,
+                final int extra) {
+            Log.e(TAG, "Audio clip failed. Error: " + what + ", " +
+                  extra);
+            synchronized (mPool) {
+                mPool.remove(this);
+                release();
+            }
+            return true;
+        }
+    }
+
+    private final Context mContext;
+    private final Clip[] mClips;
+    private int mCount;
+    private long mUseCount;
+
+    // Counters for clips that were played at once, because they were
+    // prepared ahead, and clips that had to be prepared when played.
+    private long mHitCount;
+    private long mMissCount;
+
+    AudioClipPool(final Context context, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "capacity must be positive: " + capacity);
+        }
+        mContext = context;
+        mClips = new Clip[capacity];
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    // Starts preparing a clip that may be played soon, unless it is
+    // already in the pool.
+    synchronized void prepare(final int resource) {
+        final int i = indexOf(resource);
+        if (i >= 0) {
+            mClips[i].mLastUse = ++mUseCount;
+            return;
+        }
+        final Clip clip = createClip(resource);
+        if (clip == null) {
+            return;
+        }
+        if (mCount == mClips.length) {
+            // Make room by releasing the least recently used clip.
+            int oldest = 0;
+            for (int j = 1; j < mCount; j++) {
+                if (mClips[j].mLastUse < mClips[oldest].mLastUse) {
+                    oldest = j;
+                }
+            }
+            mClips[oldest].release();
+            removeAt(oldest);
+        }
+        clip.mLastUse = ++mUseCount;
+        mClips[mCount++] = clip;
+    }
+
+    // Takes a clip out of the pool, or creates it if it was not
+    // prepared, and plays it as soon as it is ready. The caller owns
+    // the clip, and must release it. Returns null if the clip could
+    // not be opened.
+    synchronized Clip play(final int resource,
+            final OnCompletionListener listener) {
+        Clip clip;
+        final int i = indexOf(resource);
+        if (i >= 0) {
+            clip = mClips[i];
+            removeAt(i);
+            mHitCount++;
+        } else {
+            clip = createClip(resource);
+            mMissCount++;
+            if (clip == null) {
+                return null;
+            }
+        }
+        clip.mPlayer.setOnCompletionListener(listener);
+        if (clip.mPrepared) {
+            clip.mPlayer.start();
+        } else {
+            clip.mStartWhenPrepared = true;
+        }
+        return clip;
+    }
+
+    // Releases every clip in the pool.
+    synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mClips[i].release();
+            mClips[i] = null;
+        }
+        mCount = 0;
+    }
+
+    // Takes a clip out of the pool, if it is there.
+    private void remove(final Clip clip) {
+        for (int i = 0; i < mCount; i++) {
+            if (mClips[i] == clip) {
+                removeAt(i);
+                return;
+            }
+        }
+    }
+
+    private int indexOf(final int resource) {
+        for (int i = 0; i < mCount; i++) {
+            if (mClips[i].mResource == resource) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(final int i) {
+        mCount--;
+        mClips[i] = mClips[mCount];
+        mClips[mCount] = null;
+    }
+
+    private Clip createClip(final int resource) {
+        final MediaPlayer player = new MediaPlayer();
+        final Clip clip = new Clip(this, resource, player);
+        try {
+            final AssetFileDescriptor fd =
+                    mContext.getResources().openRawResourceFd(resource);
+            try {
+                player.setDataSource(fd.getFileDescriptor(),
+                        fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open audio clip. Exception thrown: " +
+                  e);
+            player.release();
+            return null;
+        }
+        player.setOnPreparedListener(clip);
+        player.setOnErrorListener(clip);
+        player.prepareAsync();
+        return clip;
+    }
+}
@@ -0,0 +1,237 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Rect;
+
+// A bank of alpha-beta filters, one per box. Each box is filtered as
+// its center and size, with a rate of change for each, and can be
+// predicted to any time between measurements. The state is kept in
+// primitive arrays that only grow, so filtering allocates nothing
+// once they are large enough.
+final class BoxFilter {
+
+    // The state of each box: center x, center y, width and height,
+    // followed by their rates of change per second.
+    private static final int STATE_SIZE = 8;
+    private static final int MEASUREMENT_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final double MICROS_PER_SECOND = 1000000.0;
+
+    // The smallest filtered width or height.
+    private static final double MIN_SIDE = 1.0;
+
+    // The gains by which measurements correct the filtered position
+    // and its rate of change, and the filtered size and its rate of
+    // change.
+    private final double mPositionAlpha;
+    private final double mPositionBeta;
+    private final double mSizeAlpha;
+    private final double mSizeBeta;
+
+    private int mCount;
+    private double[] mStates = new double[INITIAL_CAPACITY * STATE_SIZE];
+
+    // The time of each box's last measurement, the number of
+    // measurement frames in a row in which it was missed, the box to
+    // which it belongs (or -1), the ID of the track that it follows
+    // (or -1), and whether it was matched in the current measurement
+    // frame.
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private int[] mMisses = new int[INITIAL_CAPACITY];
+    private int[] mParents = new int[INITIAL_CAPACITY];
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    private boolean[] mMatched = new boolean[INITIAL_CAPACITY];
+
+    BoxFilter(final double positionAlpha, final double positionBeta,
+            final double sizeAlpha, final double sizeBeta) {
+        mPositionAlpha = positionAlpha;
+        mPositionBeta = positionBeta;
+        mSizeAlpha = sizeAlpha;
+        mSizeBeta = sizeBeta;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    int getParent(final int box) {
+        return mParents[box];
+    }
+
+    int getId(final int box) {
+        return mIds[box];
+    }
+
+    void setId(final int box, final int id) {
+        mIds[box] = id;
+    }
+
+    boolean isMatched(final int box) {
+        return mMatched[box];
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    // Marks every box as not yet matched in a new measurement frame.
+    void beginMatching() {
+        for (int box = 0; box < mCount; box++) {
+            mMatched[box] = false;
+        }
+    }
+
+    // Starts filtering a newly measured box, and returns its index.
+    // The box counts as matched.
+    int add(final int parent, final Rect rect, final long timeMicros) {
+        if (mCount == mTimes.length) {
+            grow();
+        }
+        final int box = mCount;
+        final int s = box * STATE_SIZE;
+        mStates[s] = rect.x + 0.5 * rect.width;
+        mStates[s + 1] = rect.y + 0.5 * rect.height;
+        mStates[s + 2] = rect.width;
+        mStates[s + 3] = rect.height;
+        for (int i = MEASUREMENT_SIZE; i < STATE_SIZE; i++) {
+            mStates[s + i] = 0.0;
+        }
+        mTimes[box] = timeMicros;
+        mMisses[box] = 0;
+        mParents[box] = parent;
+        mIds[box] = -1;
+        mMatched[box] = true;
+        mCount = box + 1;
+        return box;
+    }
+
+    // Corrects a box with a measurement, and marks it as matched.
+    void correct(final int box, final Rect rect, final long timeMicros) {
+        final int s = box * STATE_SIZE;
+        final double dt = (timeMicros - mTimes[box]) / MICROS_PER_SECOND;
+        correct(s, rect.x + 0.5 * rect.width, dt,
+                mPositionAlpha, mPositionBeta);
+        correct(s + 1, rect.y + 0.5 * rect.height, dt,
+                mPositionAlpha, mPositionBeta);
+        correct(s + 2, rect.width, dt, mSizeAlpha, mSizeBeta);
+        correct(s + 3, rect.height, dt, mSizeAlpha, mSizeBeta);
+        mStates[s + 2] = Math.max(mStates[s + 2], MIN_SIDE);
+        mStates[s + 3] = Math.max(mStates[s + 3], MIN_SIDE);
+        mTimes[box] = timeMicros;
+        mMisses[box] = 0;
+        mMatched[box] = true;
+    }
+
+    private void correct(final int i, final double measurement,
+            final double dt, final double alpha, final double beta) {
+        final double predicted =
+                mStates[i] + mStates[i + MEASUREMENT_SIZE] * dt;
+        final double residual = measurement - predicted;
+        mStates[i] = predicted + alpha * residual;
+        if (dt > 0.0) {
+            mStates[i + MEASUREMENT_SIZE] += beta * residual / dt;
+        }
+    }
+
+    // Counts a measurement frame in which a box was not matched, and
+    // returns how many such frames there have been in a row.
+    int miss(final int box) {
+        return ++mMisses[box];
+    }
+
+    // Returns the squared distance between a box's predicted center
+    // and a rect's center.
+    double getCenterDistanceSquared(final int box, final Rect rect,
+            final long timeMicros) {
+        final int s = box * STATE_SIZE;
+        final double dt = (timeMicros - mTimes[box]) / MICROS_PER_SECOND;
+        final double dx = rect.x + 0.5 * rect.width -
+                (mStates[s] + mStates[s + 4] * dt);
+        final double dy = rect.y + 0.5 * rect.height -
+                (mStates[s + 1] + mStates[s + 5] * dt);
+        return dx * dx + dy * dy;
+    }
+
+    // Returns the larger side of a box, as last corrected.
+    double getLargerSide(final int box) {
+        final int s = box * STATE_SIZE;
+        return Math.max(mStates[s + 2], mStates[s + 3]);
+    }
+
+    // Predicts a box at the given time, extrapolating at most the
+    // given interval past its last measurement.
+    void predict(final int box, final long timeMicros,
+            final long maxIntervalMicros, final Rect rect) {
+        final int s = box * STATE_SIZE;
+        final long interval = Math.max(0L,
+                Math.min(timeMicros - mTimes[box], maxIntervalMicros));
+        final double dt = interval / MICROS_PER_SECOND;
+        final double width =
+                Math.max(mStates[s + 2] + mStates[s + 6] * dt, MIN_SIDE);
+        final double height =
+                Math.max(mStates[s + 3] + mStates[s + 7] * dt, MIN_SIDE);
+        final double centerX = mStates[s] + mStates[s + 4] * dt;
+        final double centerY = mStates[s + 1] + mStates[s + 5] * dt;
+        rect.x = (int)Math.round(centerX - 0.5 * width);
+        rect.y = (int)Math.round(centerY - 0.5 * height);
+        rect.width = (int)Math.round(width);
+        rect.height = (int)Math.round(height);
+    }
+
+    // Stops filtering a box. The last box takes its index, and the
+    // index that it had is returned.
+    int remove(final int box) {
+        final int last = mCount - 1;
+        if (box != last) {
+            System.arraycopy(mStates, last * STATE_SIZE, mStates,
+                    box * STATE_SIZE, STATE_SIZE);
+            mTimes[box] = mTimes[last];
+            mMisses[box] = mMisses[last];
+            mParents[box] = mParents[last];
+            mIds[box] = mIds[last];
+            mMatched[box] = mMatched[last];
+        }
+        mCount = last;
+        return last;
+    }
+
+    // Stops filtering every box that belongs to the given parent.
+    void removeChildren(final int parent) {
+        for (int box = mCount - 1; box >= 0; box--) {
+            if (mParents[box] == parent) {
+                remove(box);
+            }
+        }
+    }
+
+    // Moves every box that belongs to one parent to another.
+    void replaceParent(final int fromParent, final int toParent) {
+        for (int box = 0; box < mCount; box++) {
+            if (mParents[box] == fromParent) {
+                mParents[box] = toParent;
+            }
+        }
+    }
+
+    private void grow() {
+        final int capacity = 2 * mTimes.length;
+        final double[] states = new double[capacity * STATE_SIZE];
+        System.arraycopy(mStates, 0, states, 0, mCount * STATE_SIZE);
+        mStates = states;
+        final long[] times = new long[capacity];
+        System.arraycopy(mTimes, 0, times, 0, mCount);
+        mTimes = times;
+        final int[] misses = new int[capacity];
+        System.arraycopy(mMisses, 0, misses, 0, mCount);
+        mMisses = misses;
+        final int[] parents = new int[capacity];
+        System.arraycopy(mParents, 0, parents, 0, mCount);
+        mParents = parents;
+        final int[] ids = new int[capacity];
+        System.arraycopy(mIds, 0, ids, 0, mCount);
+        mIds = ids;
+        final boolean[] matched = new boolean[capacity];
+        System.arraycopy(mMatched, 0, matched, 0, mCount);
+        mMatched = matched;
+    }
+}
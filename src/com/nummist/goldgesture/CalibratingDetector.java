@@ -0,0 +1,202 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+// Chooses among several detector backends on the images that it is
+// actually given. While calibrating, every search runs on every
+// backend. The reference backend's results are returned and also
+// serve as the ground truth, against which each backend's recall and
+// time are measured. Afterwards, the fastest backend whose recall
+// meets the required level does all the searching.
+//
+// Searches are timed by a frame clock, so a replayed clock and corpus
+// reproduce the same choice offline.
+public final class CalibratingDetector implements ObjectDetector {
+
+    private static final int RECT_SIZE = 4;
+
+    // The least overlap, as intersection over union, at which a
+    // backend's result counts as finding a reference result.
+    private static final double MIN_MATCH_OVERLAP = 0.5;
+
+    // The most searches for which calibration waits to see enough
+    // reference results. If it sees too few, it keeps the reference.
+    private static final int MAX_CALIBRATION_SEARCHES_FACTOR = 10;
+
+    private final ObjectDetector[] mBackends;
+    private final int mReferenceBackend;
+    private final double mMinRecall;
+    private final int mCalibrationSearches;
+    private final int mMinReferenceDetections;
+    private final FrameClock mClock;
+
+    // The measurements of each backend.
+    private final long[] mMicros;
+    private final int[] mMatchedDetections;
+    private int mReferenceDetections;
+    private int mSearches;
+
+    // A buffer for the results of the backends other than the
+    // reference, which grows to the size of the caller's buffer.
+    private int[] mBackendRects = new int[0];
+
+    // The chosen backend, or null while calibrating.
+    private volatile ObjectDetector mSelected;
+    private volatile int mSelectedBackend = -1;
+
+    public CalibratingDetector(final ObjectDetector[] backends,
+            final int referenceBackend, final double minRecall,
+            final int calibrationSearches,
+            final int minReferenceDetections, final FrameClock clock) {
+        if (backends.length == 0 || referenceBackend < 0 ||
+                referenceBackend >= backends.length) {
+            throw new IllegalArgumentException(
+                    "Reference backend out of range: " + referenceBackend);
+        }
+        mBackends = backends.clone();
+        mReferenceBackend = referenceBackend;
+        mMinRecall = minRecall;
+        mCalibrationSearches = calibrationSearches;
+        mMinReferenceDetections = minReferenceDetections;
+        mClock = clock;
+        mMicros = new long[backends.length];
+        mMatchedDetections = new int[backends.length];
+        if (backends.length == 1) {
+            select(0);
+        }
+    }
+
+    @Override
+    public String getName() {
+        final ObjectDetector selected = mSelected;
+        if (selected == null) {
+            return "calibrating";
+        }
+        return selected.getName();
+    }
+
+    public boolean isCalibrating() {
+        return mSelected == null;
+    }
+
+    // Returns the chosen backend, or null while calibrating.
+    public ObjectDetector getSelected() {
+        return mSelected;
+    }
+
+    // Returns the index of the chosen backend, or -1 while
+    // calibrating.
+    public int getSelectedBackend() {
+        return mSelectedBackend;
+    }
+
+    public int getBackendCount() {
+        return mBackends.length;
+    }
+
+    public ObjectDetector getBackend(final int backend) {
+        return mBackends[backend];
+    }
+
+    // Returns a backend's mean time per search so far.
+    public double getMeanMicros(final int backend) {
+        if (mSearches == 0) {
+            return 0.0;
+        }
+        return (double)mMicros[backend] / mSearches;
+    }
+
+    // Returns the portion of the reference results that a backend
+    // found so far.
+    public double getRecall(final int backend) {
+        if (mReferenceDetections == 0) {
+            return 0.0;
+        }
+        return (double)mMatchedDetections[backend] / mReferenceDetections;
+    }
+
+    @Override
+    public int detect(final Mat gray, final double scaleFactor,
+            final int minNeighbors, final Size minSize,
+            final Size maxSize, final int[] rects) {
+
+        final ObjectDetector selected = mSelected;
+        if (selected != null) {
+            return selected.detect(gray, scaleFactor, minNeighbors,
+                    minSize, maxSize, rects);
+        }
+
+        long start = mClock.nowMicros();
+        final int count = mBackends[mReferenceBackend].detect(gray,
+                scaleFactor, minNeighbors, minSize, maxSize, rects);
+        mMicros[mReferenceBackend] += mClock.nowMicros() - start;
+        mMatchedDetections[mReferenceBackend] += count;
+        mReferenceDetections += count;
+
+        if (mBackendRects.length < rects.length) {
+            mBackendRects = new int[rects.length];
+        }
+        for (int backend = 0; backend < mBackends.length; backend++) {
+            if (backend == mReferenceBackend) {
+                continue;
+            }
+            start = mClock.nowMicros();
+            final int backendCount = mBackends[backend].detect(gray,
+                    scaleFactor, minNeighbors, minSize, maxSize,
+                    mBackendRects);
+            mMicros[backend] += mClock.nowMicros() - start;
+            mMatchedDetections[backend] +=
+                    countMatches(rects, count, mBackendRects, backendCount);
+        }
+
+        mSearches++;
+        if (mSearches >= mCalibrationSearches &&
+                mReferenceDetections >= mMinReferenceDetections) {
+            selectFastest();
+        } else if (mSearches >= MAX_CALIBRATION_SEARCHES_FACTOR *
+                mCalibrationSearches) {
+            // Too few objects were seen to judge the backends.
+            select(mReferenceBackend);
+        }
+        return count;
+    }
+
+    private void selectFastest() {
+        int fastestBackend = mReferenceBackend;
+        for (int backend = 0; backend < mBackends.length; backend++) {
+            if (getRecall(backend) >= mMinRecall &&
+                    mMicros[backend] < mMicros[fastestBackend]) {
+                fastestBackend = backend;
+            }
+        }
+        select(fastestBackend);
+    }
+
+    private void select(final int backend) {
+        mSelectedBackend = backend;
+        mSelected = mBackends[backend];
+    }
+
+    // Counts the reference rects that some rect of a backend
+    // overlaps enough. Each backend rect matches at most one
+    // reference rect.
+    private static int countMatches(final int[] referenceRects,
+            final int referenceCount, final int[] rects,
+            final int count) {
+        int matches = 0;
+        long usedRects = 0L;
+        for (int i = 0; i < referenceCount * RECT_SIZE; i += RECT_SIZE) {
+            for (int j = 0; j < count && j < Long.SIZE; j++) {
+                if ((usedRects & (1L << j)) == 0L &&
+                        Rects.getOverlap(referenceRects, i, rects,
+                                j * RECT_SIZE) >= MIN_MATCH_OVERLAP) {
+                    usedRects |= 1L << j;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+}
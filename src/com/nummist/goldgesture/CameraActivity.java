@@ -1,10 +1,8 @@
 package com.nummist.goldgesture;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.List;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
@@ -13,23 +11,12 @@ import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.core.MatOfFloat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.MatOfRect;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
-import org.opencv.objdetect.Objdetect;
+
+import com.nummist.goldgesture.StageProfiler.Stage;
 
 import android.app.Activity;
-import android.content.Context;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Window;
@@ -42,91 +29,135 @@ public final class CameraActivity extends Activity
     // A tag for log output.
     private static final String TAG = "CameraActivity";
     
-    // Parameters for face detection.
-    private static final double SCALE_FACTOR = 1.2;
-    private static final int MIN_NEIGHBORS = 3;
-    private static final int FLAGS = Objdetect.CASCADE_SCALE_IMAGE;
-    private static final double MIN_SIZE_PROPORTIONAL = 0.25;
-    private static final double MAX_SIZE_PROPORTIONAL = 1.0;
-    
-    // The portion of the face that is excluded from feature
-    // selection on each side.
-    // (We want to exclude boundary regions containing background.)
-    private static final double MASK_PADDING_PROPORTIONAL = 0.15;
-    
-    // Parameters for face tracking.
-    private static final int MIN_FEATURES = 10;
-    private static final int MAX_FEATURES = 80;
-    private static final double MIN_FEATURE_QUALITY = 0.05;
-    private static final double MIN_FEATURE_DISTANCE = 4.0;
-    private static final float MAX_FEATURE_ERROR = 200f;
-    
     // Parameters for gesture detection
     private static final double MIN_SHAKE_DIST_PROPORTIONAL = 0.04;
     private static final double MIN_NOD_DIST_PROPORTIONAL = 0.005;
-    private static final double MIN_BACK_AND_FORTH_COUNT = 2;
+    private static final double MIN_TILT_DIST_PROPORTIONAL = 0.08;
+    
+    // The most gestures that may wait to be answered.
+    private static final int GESTURE_QUEUE_CAPACITY = 16;
+    
+    // Parameters for the frame pipeline.
+    private static final boolean SEARCH_PARTS_IN_FACES = true;
+    private static final boolean TRACK_FACES = true;
+    private static final boolean DETECT_ASYNCHRONOUSLY = true;
+    private static final boolean FILTER_DETECTIONS = true;
+    private static final int FULL_FACE_SCAN_INTERVAL = 10;
+    
+    // Whether detections are reused where the scene has not changed,
+    // as when the subject holds still.
+    private static final boolean GATE_DETECTION_BY_MOTION = true;
+    
+    // Whether only the regions that are searched are equalized, with
+    // a table that is kept while the lighting holds, and whether they
+    // are equalized adaptively instead, which suits a subject in
+    // front of a bright window.
+    private static final boolean EQUALIZE_REGIONS = true;
+    private static final boolean EQUALIZE_ADAPTIVELY = false;
+    
+    // Whether frames are rotated to portrait for detection, which
+    // suits a device held upright. Otherwise, detection runs on the
+    // camera's own frames, for a device held in landscape, and the
+    // preview is not mirrored, so no full-frame copies are made to
+    // orient or mirror frames.
+    private static final boolean ORIENT_FRAMES = true;
+    
+    // Parameters for fitting the detection work to a frame time.
+    private static final boolean SCHEDULE_DETECTION = true;
+    private static final long TARGET_FRAME_MICROS = 50000L;
+    private static final double MIN_FACE_DETECTION_SCALE = 0.25;
+    private static final double MAX_FACE_DETECTION_SCALE = 1.0;
+    private static final double MIN_FACE_SCALE_FACTOR = 1.1;
+    private static final double MAX_FACE_SCALE_FACTOR = 1.4;
+    
+    // The face detector backends, as cascades and names, of which
+    // the fastest one that finds enough of the reference backend's
+    // faces is chosen while the first faces are detected.
+    private static final int[] FACE_CASCADES = {
+        R.raw.haarcascade_frontalface_alt,
+        R.raw.lbpcascade_frontalface
+    };
+    private static final String[] FACE_DETECTOR_NAMES = { "haar", "lbp" };
+    private static final int REFERENCE_FACE_DETECTOR = 0;
+    private static final double MIN_FACE_DETECTOR_RECALL = 0.9;
+    private static final int FACE_DETECTOR_CALIBRATION_SEARCHES = 30;
+    private static final int MIN_CALIBRATION_FACES = 20;
+    
+    // Parameters for profiling the frame pipeline.
+    private static final boolean PROFILE_STAGES = true;
+    private static final boolean DRAW_STAGE_TIMINGS = false;
+    private static final String STAGE_TIMINGS_FILE = "stage_timings.csv";
+    
+    // Parameters for recording the camera's frames, so that they can
+    // be replayed offline.
+    private static final boolean RECORD_FRAMES = false;
+    private static final String FRAME_RECORDING_FILE = "frames.rec";
     
     // The camera view.
     private CameraBridgeViewBase mCameraView;
     
-    // The dimensions of the image before orientation.
-    private double mImageWidth;
-    private double mImageHeight;
-    
-    // The current gray image before orientation.
-    private Mat mGrayUnoriented;
-    
-    // The current and previous equalized gray images.
-    private Mat mEqualizedGray;
-    private Mat mLastEqualizedGray;
-    private Mat ROI;
-    // The mask, in which the face region is white and the
-    // background is black.
-    private Mat mMask;
-    private Scalar mMaskForegroundColor;
-    private Scalar mMaskBackgroundColor;
-    
-    // The face detector, more detection parameters, and
-    // detected faces.
-    private CascadeClassifier mFaceDetector;
-    private CascadeClassifier mEyesDetector;
-    private CascadeClassifier mMouthDetector;
-    private Size mMinSize;
-    private Size mMaxSize;
-    private Size mMinSize_e;
-    private Size mMaxSize_e;
-    private Size mMinSize_m;
-    private Size mMaxSize_m;
-    private MatOfRect mFaces;
-    private MatOfRect mEyes;
-    private MatOfRect mMouth;
-    // The initial features before tracking.
-    private MatOfPoint mInitialFeatures;
-    
-    // The current and previous features being tracked.
-    private MatOfPoint2f mFeatures;
-    private MatOfPoint2f mLastFeatures;
-    
-    // The status codes and errors for the tracking.
-    private MatOfByte mFeatureStatuses;
-    private MatOfFloat mFeatureErrors;
-    
-    // Whether a face was being tracked last frame.
-    private boolean mWasTrackingFace;
-    
-    // Colors for drawing.
-    private Scalar mFaceRectColor;
-    private Scalar mEyesRectColor;
-    private Scalar mMouthRectColor;
-    private Scalar mFeatureColor;
-    
-    // Gesture detectors.
-    private BackAndForthGesture mNodHeadGesture;
-    private BackAndForthGesture mShakeHeadGesture;
+    // The source of the cascades, and the face detectors. The part
+    // detectors may still be loading.
+    private CascadeRepository mCascadeRepository;
+    private CalibratingDetector mFaceDetector;
+    private LazyCascade mEyesDetector;
+    private LazyCascade mMouthDetector;
+    
+    // The frame-processing engine, which does the detection.
+    private FacePipeline mPipeline;
+    
+    // The worker that runs the pipeline off the camera thread, and
+    // the threads on which the pipeline searches for parts.
+    private AsyncFaceDetector mAsyncDetector;
+    private WorkerThread mEyesWorker;
+    private WorkerThread mMouthWorker;
     
     // The audio tree for the 20 questions game.
     private YesNoAudioTree mAudioTree;
     
+    // The thread on which gestures answer the game's questions, so
+    // that preparing the audio never stalls the frames.
+    private GestureDispatcher mGestureDispatcher;
+    
+    // The recorder of the camera's frames, if they are recorded, and
+    // the detections that are recorded with each frame.
+    private FrameRecorder mFrameRecorder;
+    private final FaceDetections mRecordedDetections =
+            new FaceDetections();
+    
+    // Receives the gestures of any tracked face on the thread that
+    // processes frames, and passes the answers on to the dispatcher.
+    private final GestureRecognizer.Listener mGestureListener =
+            new GestureRecognizer.Listener() {
+        @Override
+        public void onGesture(final int trackId,
+                final GestureRecognizer.Gesture gesture,
+                final long timeMicros) {
+            if (gesture == GestureRecognizer.Gesture.TILT) {
+                // No question is answered by a tilt of the head.
+                return;
+            }
+            // Every face starts over toward its next answer.
+            resetGestures();
+            mGestureDispatcher.onGesture(trackId, gesture, timeMicros);
+        }
+    };
+    
+    // Answers the game's questions on the dispatcher's thread.
+    private final GestureRecognizer.Listener mAnswerListener =
+            new GestureRecognizer.Listener() {
+        @Override
+        public void onGesture(final int trackId,
+                final GestureRecognizer.Gesture gesture,
+                final long timeMicros) {
+            if (gesture == GestureRecognizer.Gesture.SHAKE) {
+                mAudioTree.takeNoBranch();
+            } else if (gesture == GestureRecognizer.Gesture.NOD) {
+                mAudioTree.takeYesBranch();
+            }
+        }
+    };
+    
     // The OpenCV loader callback.
     private BaseLoaderCallback mLoaderCallback =
             new BaseLoaderCallback(this) {
@@ -135,6 +166,8 @@ public final class CameraActivity extends Activity
             switch (status) {
                 case LoaderCallbackInterface.SUCCESS:
                     Log.d(TAG, "OpenCV loaded successfully");
+                    // Load the cascades while the camera starts.
+                    mCascadeRepository.preload(FACE_CASCADES);
                     mCameraView.enableView();
                     break;
                 default:
@@ -157,6 +190,8 @@ public final class CameraActivity extends Activity
                 findViewById(R.id.camera_view);
         //mCameraView.enableFpsMeter();
         mCameraView.setCvCameraViewListener(this);
+        
+        mCascadeRepository = CascadeRepository.getInstance(this);
     }
     
     @Override
@@ -168,6 +203,7 @@ public final class CameraActivity extends Activity
             mAudioTree.stop();
         }
         resetGestures();
+        writeStageTimings();
         super.onPause();
     }
     
@@ -194,395 +230,304 @@ public final class CameraActivity extends Activity
     public void onCameraViewStarted(final int width,
             final int height) {
         
-        mImageWidth = width;
-        mImageHeight = height;
-        Point pt1 = null,pt2 = null;
-        initFaceDetector();
-        mFaces = new MatOfRect();
-        mEyes = new MatOfRect();
-        mMouth = new MatOfRect();
-        final int smallerSide;
-        if (height < width) {
-            smallerSide = height;
-        } else {
-            smallerSide = width;
+        if (mFaceDetector == null) {
+            // Load the detectors once, so that the choice of face
+            // detector backend is kept across camera restarts.
+            initFaceDetector();
+            if (mFaceDetector == null) {
+                return;
+            }
+        }
+        mPipeline = new FacePipeline(width, height, mFaceDetector,
+                mEyesDetector, mMouthDetector);
+        mPipeline.getProfiler().setEnabled(PROFILE_STAGES);
+        mPipeline.setOrientingFrames(ORIENT_FRAMES);
+        mPipeline.setSearchingPartsInFaces(SEARCH_PARTS_IN_FACES);
+        mPipeline.setTrackingFaces(TRACK_FACES);
+        mPipeline.setFilteringDetections(FILTER_DETECTIONS);
+        mPipeline.setFullFaceScanInterval(FULL_FACE_SCAN_INTERVAL);
+        mPipeline.setGatingByMotion(GATE_DETECTION_BY_MOTION);
+        mPipeline.setEqualizingRegions(EQUALIZE_REGIONS);
+        if (EQUALIZE_REGIONS) {
+            mPipeline.getEqualizer().setAdaptive(EQUALIZE_ADAPTIVELY);
+        }
+        mPipeline.setFaceDetectionScale(
+                mPipeline.chooseFaceDetectionScale());
+        if (SCHEDULE_DETECTION) {
+            mPipeline.setScheduler(new DetectionScheduler(
+                    TARGET_FRAME_MICROS,
+                    MIN_FACE_DETECTION_SCALE, MAX_FACE_DETECTION_SCALE,
+                    MIN_FACE_SCALE_FACTOR, MAX_FACE_SCALE_FACTOR),
+                    FrameClock.SYSTEM);
+        }
+        if (DETECT_ASYNCHRONOUSLY) {
+            mEyesWorker = new WorkerThread("EyesWorker");
+            mMouthWorker = new WorkerThread("MouthWorker");
+            mPipeline.setPartWorkers(mEyesWorker, mMouthWorker);
+            mAsyncDetector = new AsyncFaceDetector(width, height,
+                    mPipeline);
+            mAsyncDetector.start();
         }
         
-        final double minSizeSide =
-                MIN_SIZE_PROPORTIONAL * smallerSide;
-        double minSizeSide_e = minSizeSide*0.5;
-        double minSizeSide_m = minSizeSide*0.25;
-        mMinSize = new Size(minSizeSide, minSizeSide);
-        mMinSize_e = new Size(minSizeSide_e,minSizeSide_e);
-        mMinSize_m = new Size(minSizeSide_m,minSizeSide_m);
-        final double maxSizeSide =
-                MAX_SIZE_PROPORTIONAL * smallerSide;
-        double maxSizeSide_e = maxSizeSide*0.5;
-        double maxSizeSide_m = maxSizeSide*0.8;
-        mMaxSize = new Size(maxSizeSide, maxSizeSide);
-        
-        mMaxSize_m = new Size(maxSizeSide_m,maxSizeSide_m);
-        mMaxSize_e = new Size(maxSizeSide_e,maxSizeSide_e);
-        mInitialFeatures = new MatOfPoint();
-        mFeatures = new MatOfPoint2f(new Point());
-        mLastFeatures = new MatOfPoint2f(new Point());
-        mFeatureStatuses = new MatOfByte();
-        mFeatureErrors = new MatOfFloat();
-        
-        mFaceRectColor = new Scalar(0.0, 0.0, 255.0);
-        mEyesRectColor = new Scalar(0.0,255.0,0.0);
-        mMouthRectColor = new Scalar(255.0,0.0,0.0);
-        mFeatureColor = new Scalar(0.0, 255.0, 0.0);
+        final int smallerSide =
+                FacePipeline.getSmallerSide(width, height);
         
         final double minShakeDist =
                 smallerSide * MIN_SHAKE_DIST_PROPORTIONAL;
-        mShakeHeadGesture = new BackAndForthGesture(minShakeDist);
-        
         final double minNodDist =
                 smallerSide * MIN_NOD_DIST_PROPORTIONAL;
-        mNodHeadGesture = new BackAndForthGesture(minNodDist);
+        final double minTiltDist =
+                smallerSide * MIN_TILT_DIST_PROPORTIONAL;
+        // Each tracked face has its own gesture recognizer.
+        mPipeline.setGestureDistances(minShakeDist, minNodDist,
+                minTiltDist);
         
         mAudioTree = new YesNoAudioTree(this);
-        //mAudioTree.start();
-        
-        mGrayUnoriented = new Mat(height, width, CvType.CV_8UC1);
-        
-        // The rest of the matrices are transposed.
+        mAudioTree.start();
+        mGestureDispatcher = new GestureDispatcher(mAnswerListener,
+                GESTURE_QUEUE_CAPACITY, FrameClock.SYSTEM);
+        mGestureDispatcher.start();
+        mPipeline.setGestureListener(mGestureListener);
         
-        mEqualizedGray = new Mat(width, height, CvType.CV_8UC1);
-        mLastEqualizedGray = new Mat(width, height, CvType.CV_8UC1);
-        
-        mMask = new Mat(width, height, CvType.CV_8UC1);
-        mMaskForegroundColor = new Scalar(255.0);
-        mMaskBackgroundColor = new Scalar(0.0);
+        if (RECORD_FRAMES) {
+            startRecording(width, height);
+        }
     }
 
     @Override
     public void onCameraViewStopped() {
+        if (mFaceDetector != null) {
+            logFaceDetectorCalibration();
+        }
+        if (mAsyncDetector != null) {
+            mAsyncDetector.stop();
+            mAsyncDetector = null;
+        }
+        if (mPipeline != null && mPipeline.getMotionGate() != null) {
+            // The frames have stopped, so the counts are final.
+            logMotionGate();
+        }
+        if (mPipeline != null && mPipeline.getEqualizer() != null) {
+            logEqualizer();
+        }
+        if (mGestureDispatcher != null) {
+            // The frames have stopped, so nothing more is posted.
+            mGestureDispatcher.stop();
+            logGestureDispatch();
+            mGestureDispatcher = null;
+        }
+        stopRecording();
+        if (mEyesWorker != null) {
+            mEyesWorker.quit();
+            mEyesWorker = null;
+        }
+        if (mMouthWorker != null) {
+            mMouthWorker.quit();
+            mMouthWorker = null;
+        }
     }
 
     @Override
     public Mat onCameraFrame(final CvCameraViewFrame inputFrame) {
         final Mat rgba = inputFrame.rgba();
+        final long frameMicros = (mFrameRecorder != null) ?
+                FrameClock.SYSTEM.nowMicros() : 0L;
         
-        // For processing, orient the image to portrait and equalize
-        // it.
-        Imgproc.cvtColor(rgba, mGrayUnoriented,
-                         Imgproc.COLOR_RGBA2GRAY);
-        Core.transpose(mGrayUnoriented, mEqualizedGray);
-        Core.flip(mEqualizedGray, mEqualizedGray, -1);
-        Imgproc.equalizeHist(mEqualizedGray, mEqualizedGray);
-        
-        final List<Point> featuresList;
-        
-        mFaceDetector.detectMultiScale(
-                mEqualizedGray, mFaces, SCALE_FACTOR, MIN_NEIGHBORS,
-                FLAGS, mMinSize, mMaxSize);
-       
-        mEyesDetector.detectMultiScale(mEqualizedGray, mEyes, SCALE_FACTOR, MIN_NEIGHBORS, FLAGS, mMinSize_e, mMaxSize_e);
-        mMouthDetector.detectMultiScale(mEqualizedGray, mMouth, SCALE_FACTOR, MIN_NEIGHBORS, FLAGS, mMinSize_m, mMaxSize_m);
-        if (mFaces.rows() > 0) {
-        	 Rect[] facesArray = mFaces.toArray();  
-           for (int i = 0; i <facesArray.length; i++)  {
-                 
-        	   int minX = facesArray[i].x;
-               int minY = facesArray[i].y;
-               int width = facesArray[i].width;
-               int height = facesArray[i].height;
-               int maxX = minX + width;
-               int maxY = minY + height;
-
-
-               Core.rectangle(
-                       rgba, new Point(mImageWidth-minY, mImageHeight-minX),
-                       new Point(mImageWidth-maxY, mImageHeight-maxX),
-                       mFaceRectColor);
-               
-               //eyes
-           
-            if(mEyes.rows() > 0)
-            {
-            	Rect[] eyesArray = mEyes.toArray();  
-            	for(int j = 0;j<eyesArray.length;j++){
-//            	final double[] eyes = mEyes.get(0, 0);
-            	int minX_e = eyesArray[j].x;
-                int minY_e = eyesArray[j].y;
-                int width_e = eyesArray[j].width;
-                int height_e = eyesArray[j].height;
-                int maxX_e = minX_e + width_e;
-                int maxY_e = minY_e + height_e;
-
-               if(minY_e<(minY+0.3*width)){
-                Core.rectangle(
-                        rgba, new Point(mImageWidth-minY_e, mImageHeight-minX_e),
-                        new Point(mImageWidth-maxY_e, mImageHeight-maxX_e),
-                        mEyesRectColor);
-               }
-//                String x1 = Integer.toString((int) (mImageWidth-minY_e));
-//                String y1 = Integer.toString((int) (mImageHeight-minX_e));
-//                String x2 = Integer.toString((int) (mImageWidth-maxY_e));
-//                String y2 = Integer.toString((int) (mImageHeight-maxX_e));
-//                
-//                Log.i("x1", x1);
-//                Log.i("y1", y1);
-//                Log.i("x2", x2);
-//                Log.i("y2", y2);
-                
-                
-            }
-            }
-            
-            //mouth
-           
-            if(mMouth.rows() > 0)
-            {
-            	Rect[] mouthArray = mMouth.toArray();  
-            	for(int m = 0;m<mouthArray.length;m++){
-
-            	int minX_m = mouthArray[m].x;
-                int minY_m = mouthArray[m].y;
-                int width_m = mouthArray[m].width;
-                int height_m= mouthArray[m].height;
-                int maxX_m= minX_m + width_m;
-                int maxY_m = minY_m + height_m;
-                int center_x = minX_m+width_m/2;
-                int center_y = minY_m+height_m/2;
-                
-               if(center_y>(minY+width/2)&&center_y<maxY&&center_x>(minX+width/3)&&center_x<(maxX-width/3)){
-                Core.rectangle(
-                        rgba, new Point(mImageWidth-minY_m, mImageHeight-minX_m),
-                        new Point(mImageWidth-maxY_m, mImageHeight-maxX_m),
-                        mMouthRectColor);
-               }
-            }
-            }
-            // Create a mask for the face region.
-            double smallerSide;
-            if (height < width) {
-                smallerSide = height;
-            } else {
-                smallerSide = width;
-            }
-            double maskPadding =
-                    smallerSide * MASK_PADDING_PROPORTIONAL;
-            mMask.setTo(mMaskBackgroundColor);
-            Core.rectangle(
-                    mMask,
-                    new Point(minX + maskPadding,
-                              minY + maskPadding),
-                    new Point(maxX - maskPadding,
-                              maxY - maskPadding),
-                    mMaskForegroundColor, -1);
-            
-
-            mWasTrackingFace = true;
-            
-        } 
-        }
-        // Draw the current features.
-//        for (int i = 0; i< featuresList.size(); i++) {
-//            final Point p = featuresList.get(i);
-//            final Point pTrans = new Point(
-//                    mImageWidth - p.y,
-//                    mImageHeight - p.x);
-//            Core.circle(rgba, pTrans, 8, mFeatureColor);
-//        }
+        if (mPipeline == null) {
+            // The cascades failed to load, and the activity is
+            // finishing.
+            return rgba;
+        } else if (mAsyncDetector != null) {
+            // Hand the frame to the worker and overlay the newest
+            // detections that it has finished.
+            mAsyncDetector.submitGray(inputFrame.gray());
+            mAsyncDetector.drawLatestDetections(rgba);
+        } else {
+            mPipeline.processRgba(rgba);
+            mPipeline.drawDetections(rgba);
+        }
         
-        // Swap the references to the current and previous images.
-        final Mat swapEqualizedGray = mLastEqualizedGray;
-        mLastEqualizedGray = mEqualizedGray;
-        mEqualizedGray = swapEqualizedGray;
+        if (mFrameRecorder != null) {
+            recordFrame(frameMicros, inputFrame.gray());
+        }
         
-        // Swap the references to the current and previous features.
-        final MatOfPoint2f swapFeatures = mLastFeatures;
-        mLastFeatures = mFeatures;
-        mFeatures = swapFeatures;
+        final StageProfiler profiler = mPipeline.getProfiler();
+        if (ORIENT_FRAMES) {
+            // Mirror (horizontally flip) the preview.
+            final long start = profiler.start();
+            Core.flip(rgba, rgba, 1);
+            profiler.stop(Stage.MIRROR, start);
+        }
         
-        // Mirror (horizontally flip) the preview.
-        Core.flip(rgba, rgba, 1);
+        if (DRAW_STAGE_TIMINGS) {
+            profiler.draw(rgba);
+        }
         
         return rgba;
     }
     
-    private void startGestureDetection() {
-        
-        double[] featuresCenter = Core.mean(mFeatures).val;
-        
-        // Motion in x may indicate a shake of the head.
-        mShakeHeadGesture.start(featuresCenter[0]);
-        
-        // Motion in y may indicate a nod of the head.
-        mNodHeadGesture.start(featuresCenter[1]);
+    // Writes the stage timings to a CSV file in the app's external
+    // files directory, where they can be pulled with adb.
+    private void writeStageTimings() {
+        if (mPipeline == null ||
+                !mPipeline.getProfiler().isEnabled()) {
+            return;
+        }
+        final File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        final File file = new File(dir, STAGE_TIMINGS_FILE);
+        try {
+            final FileWriter writer = new FileWriter(file);
+            try {
+                mPipeline.getProfiler().writeCsv(writer);
+            } finally {
+                writer.close();
+            }
+            Log.i(TAG, "Wrote stage timings to " +
+                  file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write stage timings. " +
+                  "Exception thrown: " + e);
+        }
     }
     
-    private void updateGestureDetection() {
-        
-        final double[] featuresCenter = Core.mean(mFeatures).val;
-        
-        // Motion in x may indicate a shake of the head.
-        mShakeHeadGesture.update(featuresCenter[0]);
-        final int shakeBackAndForthCount =
-                mShakeHeadGesture.getBackAndForthCount();
-        //Log.i(TAG, "shakeBackAndForthCount=" +
-        //        shakeBackAndForthCount);
-        final boolean shakingHead =
-                (shakeBackAndForthCount >=
-                MIN_BACK_AND_FORTH_COUNT);
-        
-        // Motion in y may indicate a nod of the head.
-        mNodHeadGesture.update(featuresCenter[1]);
-        final int nodBackAndForthCount =
-                mNodHeadGesture.getBackAndForthCount();
-        //Log.i(TAG, "nodBackAndForthCount=" +
-        //        nodBackAndForthCount);
-        final boolean noddingHead =
-                (nodBackAndForthCount >=
-                MIN_BACK_AND_FORTH_COUNT);
-        
-        if (shakingHead && noddingHead) {
-            // The gesture is ambiguous. Ignore it.
-            resetGestures();
-        } else if (shakingHead) {
-            mAudioTree.takeNoBranch();
-            resetGestures();
-        } else if (noddingHead) {
-            mAudioTree.takeYesBranch();
-            resetGestures();
+    // Logs the face detector backend that was chosen, and how each
+    // backend did while they were compared.
+    private void logFaceDetectorCalibration() {
+        for (int i = 0; i < mFaceDetector.getBackendCount(); i++) {
+            Log.i(TAG, "Face detector " +
+                  mFaceDetector.getBackend(i).getName() + ": " +
+                  Math.round(mFaceDetector.getMeanMicros(i)) +
+                  " us per search, recall " +
+                  mFaceDetector.getRecall(i));
         }
+        Log.i(TAG, "Face detector chosen: " + mFaceDetector.getName());
+    }
+    
+    // Logs how many gestures were dispatched, how long they waited,
+    // and how long the audio tree took to answer them, all of which
+    // was kept off the thread that processes frames.
+    private void logGestureDispatch() {
+        final LatencyHistogram latency =
+                mGestureDispatcher.getDispatchLatency();
+        final LatencyHistogram handling =
+                mGestureDispatcher.getHandlingTime();
+        Log.i(TAG, "Gestures posted: " +
+              mGestureDispatcher.getPostedCount() + ", dispatched: " +
+              mGestureDispatcher.getDispatchedCount() + ", dropped: " +
+              mGestureDispatcher.getDroppedCount() +
+              ", max queue depth: " +
+              mGestureDispatcher.getMaxQueueDepth());
+        Log.i(TAG, "Gesture dispatch latency: p50 " +
+              Math.round(latency.getPercentile(0.5)) + " us, max " +
+              latency.getMax() + " us; answer time: p50 " +
+              Math.round(handling.getPercentile(0.5)) + " us, max " +
+              handling.getMax() + " us");
+    }
+    
+    // Starts recording frames to a file in the app's external files
+    // directory, where it can be pulled with adb and replayed.
+    private void startRecording(final int width, final int height) {
+        final File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        final File file = new File(dir, FRAME_RECORDING_FILE);
+        try {
+            mFrameRecorder = new FrameRecorder(file, width, height);
+            Log.i(TAG, "Recording frames to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start recording frames. " +
+                  "Exception thrown: " + e);
+        }
+    }
+    
+    // Records a gray frame with the detections that are drawn on it.
+    private void recordFrame(final long frameMicros, final Mat gray) {
+        final FaceDetections detections;
+        if (mAsyncDetector != null) {
+            mAsyncDetector.getLatestDetections(mRecordedDetections);
+            detections = mRecordedDetections;
+        } else {
+            detections = mPipeline.getDetections();
+        }
+        try {
+            mFrameRecorder.record(frameMicros, gray, detections);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record frame. Exception thrown: " +
+                  e);
+            stopRecording();
+        }
+    }
+    
+    private void stopRecording() {
+        if (mFrameRecorder == null) {
+            return;
+        }
+        Log.i(TAG, "Recorded " + mFrameRecorder.getFrameCount() +
+              " frames, " + mFrameRecorder.getByteCount() + " bytes");
+        try {
+            mFrameRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish recording frames. " +
+                  "Exception thrown: " + e);
+        }
+        mFrameRecorder = null;
+    }
+    
+    // Logs how often detections were reused because the scene had not
+    // changed, each of which saved running one or more cascades.
+    private void logMotionGate() {
+        final MotionGate gate = mPipeline.getMotionGate();
+        Log.i(TAG, "Motion gate: " + gate.getReusedFrameCount() +
+              " of " + gate.getCheckedFrameCount() +
+              " detections reused whole; reused " +
+              gate.getReusedFaceCount() + " face searches, " +
+              gate.getReusedEyeSearchCount() + " eye searches, " +
+              gate.getReusedMouthSearchCount() + " mouth searches");
+    }
+    
+    // Logs how often the equalization table had to be rebuilt, rather
+    // than kept from an earlier frame.
+    private void logEqualizer() {
+        final RegionEqualizer equalizer = mPipeline.getEqualizer();
+        if (equalizer.isAdaptive()) {
+            return;
+        }
+        Log.i(TAG, "Equalization table built " +
+              equalizer.getTableBuildCount() + " times in " +
+              equalizer.getFrameCount() + " frames");
     }
     
     private void resetGestures() {
-//        if (mNodHeadGesture != null) {
-//            mNodHeadGesture.resetCounts();
-//        }
-//        if (mShakeHeadGesture != null) {
-//            mShakeHeadGesture.resetCounts();
-//        }
+        if (mPipeline != null) {
+            mPipeline.resetGestures();
+        }
     }
     
     private void initFaceDetector() {
         try {
-            // Load cascade file from application resources.
-            
-            InputStream is = getResources().openRawResource(
-                    R.raw.haarcascade_frontalface_alt);
-            File cascadeDir = getDir(
-                    "cascade", Context.MODE_PRIVATE);
-            File cascadeFile = new File(
-                    cascadeDir, "haarcascade_frontalface_alt.xml");
-            FileOutputStream os = new FileOutputStream(cascadeFile);
-            
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
+            // Load the face cascades now and the part cascades when
+            // they are first needed. All of them are kept across
+            // camera restarts.
+            final ObjectDetector[] faceDetectors =
+                    new ObjectDetector[FACE_CASCADES.length];
+            for (int i = 0; i < FACE_CASCADES.length; i++) {
+                final CascadeClassifier cascade =
+                        mCascadeRepository.get(FACE_CASCADES[i]);
+                faceDetectors[i] = new CascadeDetector(
+                        FACE_DETECTOR_NAMES[i], cascade);
             }
-            is.close();
-            os.close();
-            
-            mFaceDetector = new CascadeClassifier(
-                    cascadeFile.getAbsolutePath());
-            if (mFaceDetector.empty()) {
-                Log.e(TAG, "Failed to load cascade");
-                finish();
-            } else {
-                Log.i(TAG, "Loaded cascade from " +
-                      cascadeFile.getAbsolutePath());
-            }
-
-            cascadeDir.delete();
-            
-            
-            
-            //load eyes
-            InputStream is_e = getResources().openRawResource(
+            mFaceDetector = new CalibratingDetector(faceDetectors,
+                    REFERENCE_FACE_DETECTOR, MIN_FACE_DETECTOR_RECALL,
+                    FACE_DETECTOR_CALIBRATION_SEARCHES,
+                    MIN_CALIBRATION_FACES, FrameClock.SYSTEM);
+            mEyesDetector = mCascadeRepository.getLazily(
                     R.raw.haarcascade_eye);
-            File cascadeDir_e = getDir(
-                    "cascade", Context.MODE_PRIVATE);
-            File cascadeFile_e = new File(
-                    cascadeDir_e, "haarcascade_eye.xml");
-            FileOutputStream os_e = new FileOutputStream(cascadeFile_e);
-            
-            byte[] buffer_e = new byte[4096];
-            int bytesRead_e;
-            while ((bytesRead_e = is_e.read(buffer_e)) != -1) {
-                os_e.write(buffer_e, 0, bytesRead_e);
-            }
-            is_e.close();
-            os_e.close();
-            
-            mEyesDetector = new CascadeClassifier(
-                    cascadeFile_e.getAbsolutePath());
-            if (mEyesDetector.empty()) {
-                Log.e(TAG, "Failed to load cascade e");
-                finish();
-            } else {
-                Log.i(TAG, "Loaded cascade from " +
-                      cascadeFile_e.getAbsolutePath());
-            }
-
-            cascadeDir_e.delete();
-            
-            //load mouth
-            InputStream is_m = getResources().openRawResource(
+            mMouthDetector = mCascadeRepository.getLazily(
                     R.raw.haarcascade_mcs_nose);
-            File cascadeDir_m = getDir(
-                    "cascade", Context.MODE_PRIVATE);
-            File cascadeFile_m = new File(
-                    cascadeDir_m, "haarcascade_mcs_nose.xml");
-            FileOutputStream os_m = new FileOutputStream(cascadeFile_m);
-            
-            byte[] buffer_m = new byte[4096];
-            int bytesRead_m;
-            while ((bytesRead_m = is_m.read(buffer_m)) != -1) {
-                os_m.write(buffer_m, 0, bytesRead_m);
-            }
-            is_m.close();
-            os_m.close();
-            
-            mMouthDetector = new CascadeClassifier(
-                    cascadeFile_m.getAbsolutePath());
-            if (mMouthDetector.empty()) {
-                Log.e(TAG, "Failed to load cascade m");
-                finish();
-            } else {
-                Log.i(TAG, "Loaded cascade from " +
-                      cascadeFile_m.getAbsolutePath());
-            }
-
-            cascadeDir_m.delete();
-            
-            //load left ear
-            InputStream is_le = getResources().openRawResource(
-                    R.raw.haarcascade_mcs_nose);
-            File cascadeDir_le = getDir(
-                    "cascade", Context.MODE_PRIVATE);
-            File cascadeFile_le = new File(
-                    cascadeDir_le, "haarcascade_mcs_nose.xml");
-            FileOutputStream os_le = new FileOutputStream(cascadeFile_le);
-            
-            byte[] buffer_le = new byte[4096];
-            int bytesRead_le;
-            while ((bytesRead_le = is_le.read(buffer_le)) != -1) {
-                os_le.write(buffer_le, 0, bytesRead_le);
-            }
-            is_le.close();
-            os_le.close();
-            
-            mMouthDetector = new CascadeClassifier(
-                    cascadeFile_le.getAbsolutePath());
-            if (mMouthDetector.empty()) {
-                Log.e(TAG, "Failed to load cascade m");
-                finish();
-            } else {
-                Log.i(TAG, "Loaded cascade from " +
-                      cascadeFile_le.getAbsolutePath());
-            }
-
-            cascadeDir_le.delete();
-            
-            
-            
         } catch (IOException e) {
             e.printStackTrace();
             Log.e(TAG, "Failed to load cascade. Exception thrown: "
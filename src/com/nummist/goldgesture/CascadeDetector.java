@@ -0,0 +1,44 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+
+// An OpenCV cascade, of either Haar or LBP features, as a detector
+// backend.
+public final class CascadeDetector implements ObjectDetector {
+
+    private static final int FLAGS = Objdetect.CASCADE_SCALE_IMAGE;
+    private static final int RECT_SIZE = 4;
+
+    private final String mName;
+    private final CascadeClassifier mCascade;
+    private final MatOfRect mDetections = new MatOfRect();
+
+    public CascadeDetector(final String name,
+            final CascadeClassifier cascade) {
+        mName = name;
+        mCascade = cascade;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int detect(final Mat gray, final double scaleFactor,
+            final int minNeighbors, final Size minSize,
+            final Size maxSize, final int[] rects) {
+        mCascade.detectMultiScale(gray, mDetections, scaleFactor,
+                minNeighbors, FLAGS, minSize, maxSize);
+        final int count = Math.min(mDetections.rows(),
+                rects.length / RECT_SIZE);
+        if (count > 0) {
+            mDetections.get(0, 0, rects);
+        }
+        return count;
+    }
+}
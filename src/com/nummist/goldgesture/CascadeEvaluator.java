@@ -0,0 +1,1022 @@
+package com.nummist.goldgesture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Runs a CascadeModel over a gray image at multiple scales, in pure
+// Java. It follows OpenCV 2.4's detectMultiScale with the
+// CASCADE_SCALE_IMAGE flag step by step: the same scale levels, the
+// same fixed-point bilinear resize, the same integral images (in int
+// and long arrays), the same window stepping and arithmetic, and the
+// same grouping of neighboring detections. So, given the same image
+// and parameters, it finds the same rects in the same order.
+//
+// Given an executor, the scale levels are resized and integrated in
+// parallel, and then strips of window rows from every level are
+// searched in parallel. A ForkJoinPool suits this on servers. Each
+// strip keeps its own candidates and they are merged in level and
+// row order, so the output does not depend on the number of threads.
+// Without an executor, everything runs on the calling thread.
+//
+// An evaluator keeps its buffers between calls, so after the first
+// frame of a given size it allocates little. It must be used by one
+// thread at a time.
+public final class CascadeEvaluator {
+
+    private static final int RECT_SIZE = 4;
+
+    // The tolerance with which detections are grouped, as in OpenCV.
+    private static final double GROUP_EPS = 0.2;
+
+    // The number of windows above which a level's rows are split into
+    // more than one strip.
+    private static final int MIN_STRIP_WINDOWS = 4096;
+
+    // The fixed-point precision of the bilinear resize.
+    private static final int RESIZE_COEF_BITS = 11;
+    private static final int RESIZE_COEF_SCALE = 1 << RESIZE_COEF_BITS;
+
+    // The offsets from a window to the corners of an LBP feature's
+    // 3 x 3 blocks, indexed by row * 4 + column.
+    private static final int LBP_POINTS = 16;
+
+    private final CascadeModel mModel;
+    private final ExecutorService mExecutor;
+
+    // The image being searched.
+    private byte[] mGray;
+    private int mWidth;
+    private int mHeight;
+
+    // The levels and strips of the current search, which are reused.
+    private final List<Level> mLevels = new ArrayList<Level>();
+    private final List<Strip> mStrips = new ArrayList<Strip>();
+    private int mLevelCount;
+    private int mStripCount;
+
+    // The merged candidates and the state of grouping them.
+    private int[] mCandidates = new int[64 * RECT_SIZE];
+    private int mCandidateCount;
+    private int[] mParents = new int[64];
+    private int[] mRanks = new int[64];
+    private int[] mLabels = new int[64];
+    private int[] mClassRects = new int[64 * RECT_SIZE];
+    private int[] mClassWeights = new int[64];
+
+    public CascadeEvaluator(final CascadeModel model,
+            final ExecutorService executor) {
+        mModel = model;
+        mExecutor = executor;
+    }
+
+    public CascadeModel getModel() {
+        return mModel;
+    }
+
+    // Searches a continuous 8-bit image, of the given dimensions, for
+    // objects whose size is between the given minimum and maximum (a
+    // maximum of 0 means the image size), and reads them as x, y,
+    // width and height into the given array. Objects that do not fit
+    // in the array are ignored. Returns the number of objects read.
+    public int detect(final byte[] gray, final int width,
+            final int height, final double scaleFactor,
+            final int minNeighbors, final int minWidth,
+            final int minHeight, final int maxWidth, final int maxHeight,
+            final int[] rects) {
+        if (scaleFactor <= 1.0) {
+            throw new IllegalArgumentException(
+                    "The scale factor must be greater than 1");
+        }
+        if (gray.length < width * height) {
+            throw new IllegalArgumentException(
+                    "The image is smaller than its dimensions");
+        }
+        final boolean unbounded = maxWidth == 0 || maxHeight == 0;
+        mGray = gray;
+        mWidth = width;
+        mHeight = height;
+
+        planLevels(scaleFactor, minWidth, minHeight,
+                unbounded ? width : maxWidth,
+                unbounded ? height : maxHeight);
+        run(mLevels, mLevelCount);
+        run(mStrips, mStripCount);
+        mGray = null;
+
+        mCandidateCount = 0;
+        for (int i = 0; i < mStripCount; i++) {
+            final Strip strip = mStrips.get(i);
+            addCandidates(strip.mCandidates, strip.mCandidateCount);
+        }
+        final int count = groupCandidates(minNeighbors);
+        final int copied = Math.min(count, rects.length / RECT_SIZE);
+        System.arraycopy(mCandidates, 0, rects, 0, copied * RECT_SIZE);
+        return copied;
+    }
+
+    // Chooses the scale levels and splits their rows into strips.
+    private void planLevels(final double scaleFactor,
+            final int minWidth, final int minHeight, final int maxWidth,
+            final int maxHeight) {
+        final int windowWidth = mModel.mWindowWidth;
+        final int windowHeight = mModel.mWindowHeight;
+        mLevelCount = 0;
+        mStripCount = 0;
+        for (double factor = 1.0; ; factor *= scaleFactor) {
+            final int scaledWindowWidth =
+                    (int) Math.rint(windowWidth * factor);
+            final int scaledWindowHeight =
+                    (int) Math.rint(windowHeight * factor);
+            final int scaledWidth = (int) Math.rint(mWidth / factor);
+            final int scaledHeight = (int) Math.rint(mHeight / factor);
+            final int processWidth = scaledWidth - windowWidth;
+            final int processHeight = scaledHeight - windowHeight;
+            if (processWidth <= 0 || processHeight <= 0) {
+                break;
+            }
+            if (scaledWindowWidth > maxWidth ||
+                    scaledWindowHeight > maxHeight) {
+                break;
+            }
+            if (scaledWindowWidth < minWidth ||
+                    scaledWindowHeight < minHeight) {
+                continue;
+            }
+
+            if (mLevelCount == mLevels.size()) {
+                mLevels.add(new Level());
+            }
+            final Level level = mLevels.get(mLevelCount++);
+            level.setGeometry(factor, scaledWidth, scaledHeight,
+                    scaledWindowWidth, scaledWindowHeight, processWidth,
+                    processHeight, factor > 2.0 ? 1 : 2);
+
+            final int yStep = level.mYStep;
+            final int windows = (processWidth / yStep + 1) *
+                    (processHeight / yStep + 1);
+            final int stripCount = Math.max(1,
+                    Math.min(windows / MIN_STRIP_WINDOWS,
+                            processHeight / yStep));
+            // Strips start on rows that are searched, so that
+            // splitting a level does not change which windows are
+            // tried.
+            final int stripRows = ((processHeight + stripCount - 1) /
+                    stripCount + yStep - 1) / yStep * yStep;
+            for (int y = 0; y < processHeight; y += stripRows) {
+                if (mStripCount == mStrips.size()) {
+                    mStrips.add(new Strip());
+                }
+                mStrips.get(mStripCount++).set(level, y,
+                        Math.min(y + stripRows, processHeight));
+            }
+        }
+    }
+
+    private void run(final List<? extends Callable<Void>> tasks,
+            final int count) {
+        if (mExecutor == null || count < 2) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    tasks.get(i).call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return;
+        }
+        final List<Future<Void>> futures;
+        try {
+            futures = mExecutor.invokeAll(tasks.subList(0, count));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while searching for objects", e);
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                        "Interrupted while searching for objects", e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private void addCandidates(final int[] candidates, final int count) {
+        final int length = (mCandidateCount + count) * RECT_SIZE;
+        if (length > mCandidates.length) {
+            final int[] grown =
+                    new int[Math.max(length, 2 * mCandidates.length)];
+            System.arraycopy(mCandidates, 0, grown, 0,
+                    mCandidateCount * RECT_SIZE);
+            mCandidates = grown;
+        }
+        System.arraycopy(candidates, 0, mCandidates,
+                mCandidateCount * RECT_SIZE, count * RECT_SIZE);
+        mCandidateCount += count;
+    }
+
+    // Groups the candidates as OpenCV's groupRectangles does, leaving
+    // the groups at the start of the candidate array, and returns the
+    // number of groups.
+    private int groupCandidates(final int minNeighbors) {
+        final int n = mCandidateCount;
+        if (minNeighbors <= 0 || n == 0) {
+            return n;
+        }
+        if (mParents.length < n) {
+            final int capacity = Math.max(n, 2 * mParents.length);
+            mParents = new int[capacity];
+            mRanks = new int[capacity];
+            mLabels = new int[capacity];
+            mClassWeights = new int[capacity];
+            mClassRects = new int[capacity * RECT_SIZE];
+        }
+        final int[] parents = mParents;
+        final int[] ranks = mRanks;
+        final int[] rects = mCandidates;
+
+        // Partition the candidates into classes of similar rects with
+        // a union-find forest, visiting pairs in OpenCV's order so
+        // that the classes are numbered the same way.
+        for (int i = 0; i < n; i++) {
+            parents[i] = -1;
+            ranks[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int root = i;
+            while (parents[root] >= 0) {
+                root = parents[root];
+            }
+            for (int j = 0; j < n; j++) {
+                if (i == j || !areSimilar(rects, i, j)) {
+                    continue;
+                }
+                int root2 = j;
+                while (parents[root2] >= 0) {
+                    root2 = parents[root2];
+                }
+                if (root2 != root) {
+                    final int rank = ranks[root];
+                    final int rank2 = ranks[root2];
+                    if (rank > rank2) {
+                        parents[root2] = root;
+                    } else {
+                        parents[root] = root2;
+                        if (rank == rank2) {
+                            ranks[root2]++;
+                        }
+                        root = root2;
+                    }
+                    int k = j;
+                    int parent;
+                    while ((parent = parents[k]) >= 0) {
+                        parents[k] = root;
+                        k = parent;
+                    }
+                    k = i;
+                    while ((parent = parents[k]) >= 0) {
+                        parents[k] = root;
+                        k = parent;
+                    }
+                }
+            }
+        }
+        int classCount = 0;
+        for (int i = 0; i < n; i++) {
+            int root = i;
+            while (parents[root] >= 0) {
+                root = parents[root];
+            }
+            if (ranks[root] >= 0) {
+                ranks[root] = ~classCount++;
+            }
+            mLabels[i] = ~ranks[root];
+        }
+
+        // Average each class.
+        final int[] classRects = mClassRects;
+        final int[] classWeights = mClassWeights;
+        for (int c = 0; c < classCount * RECT_SIZE; c++) {
+            classRects[c] = 0;
+        }
+        for (int c = 0; c < classCount; c++) {
+            classWeights[c] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            final int c = mLabels[i] * RECT_SIZE;
+            for (int k = 0; k < RECT_SIZE; k++) {
+                classRects[c + k] += rects[i * RECT_SIZE + k];
+            }
+            classWeights[mLabels[i]]++;
+        }
+        for (int c = 0; c < classCount; c++) {
+            final float scale = 1f / classWeights[c];
+            for (int k = 0; k < RECT_SIZE; k++) {
+                classRects[c * RECT_SIZE + k] = (int) Math.rint(
+                        classRects[c * RECT_SIZE + k] * scale);
+            }
+        }
+
+        // Keep the classes with more than minNeighbors members,
+        // except those that lie inside a stronger class.
+        int count = 0;
+        for (int i = 0; i < classCount; i++) {
+            final int n1 = classWeights[i];
+            if (n1 <= minNeighbors) {
+                continue;
+            }
+            final int r1 = i * RECT_SIZE;
+            int j;
+            for (j = 0; j < classCount; j++) {
+                final int n2 = classWeights[j];
+                if (j == i || n2 <= minNeighbors) {
+                    continue;
+                }
+                final int r2 = j * RECT_SIZE;
+                final int dx = (int) Math.rint(
+                        classRects[r2 + 2] * GROUP_EPS);
+                final int dy = (int) Math.rint(
+                        classRects[r2 + 3] * GROUP_EPS);
+                if (classRects[r1] >= classRects[r2] - dx &&
+                        classRects[r1 + 1] >= classRects[r2 + 1] - dy &&
+                        classRects[r1] + classRects[r1 + 2] <=
+                                classRects[r2] + classRects[r2 + 2] + dx &&
+                        classRects[r1 + 1] + classRects[r1 + 3] <=
+                                classRects[r2 + 1] + classRects[r2 + 3] +
+                                dy &&
+                        (n2 > Math.max(3, n1) || n1 < 3)) {
+                    break;
+                }
+            }
+            if (j == classCount) {
+                System.arraycopy(classRects, r1, rects,
+                        count * RECT_SIZE, RECT_SIZE);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean areSimilar(final int[] rects, final int i,
+            final int j) {
+        final int a = i * RECT_SIZE;
+        final int b = j * RECT_SIZE;
+        final double delta = GROUP_EPS * (
+                Math.min(rects[a + 2], rects[b + 2]) +
+                Math.min(rects[a + 3], rects[b + 3])) * 0.5;
+        return Math.abs(rects[a] - rects[b]) <= delta &&
+                Math.abs(rects[a + 1] - rects[b + 1]) <= delta &&
+                Math.abs(rects[a] + rects[a + 2] -
+                        rects[b] - rects[b + 2]) <= delta &&
+                Math.abs(rects[a + 1] + rects[a + 3] -
+                        rects[b + 1] - rects[b + 3]) <= delta;
+    }
+
+    // One scale level: the image resized by the level's factor, its
+    // integral images, and the offsets of every feature's corners in
+    // them.
+    private final class Level implements Callable<Void> {
+
+        double mFactor;
+        int mScaledWidth;
+        int mScaledHeight;
+        int mScaledWindowWidth;
+        int mScaledWindowHeight;
+        int mProcessWidth;
+        int mProcessHeight;
+        int mYStep;
+
+        // The row stride of the integral images.
+        int mStride;
+
+        byte[] mPixels = new byte[0];
+        int[] mSum = new int[0];
+        long[] mSquareSum = new long[0];
+        int[] mTiltedSum = new int[0];
+
+        // The corner offsets of the rect over which a window is
+        // normalized, and the rect's area.
+        final int[] mNormOffsets = new int[4];
+        int mNormArea;
+        double mInverseNormArea;
+
+        // The corner offsets of each feature's rects or blocks.
+        int[] mFeatureOffsets = new int[0];
+        private int mOffsetStride = -1;
+
+        // The resize tables, for the source size they were built for.
+        private int mTableWidth = -1;
+        private int mTableHeight = -1;
+        private int[] mXOffsets = new int[0];
+        private short[] mXCoefs = new short[0];
+        private int[] mYOffsets = new int[0];
+        private short[] mYCoefs = new short[0];
+        private int mVectorWidth;
+        private int[] mRow0 = new int[0];
+        private int[] mRow1 = new int[0];
+
+        // The diagonal prefix sums from which the tilted integral is
+        // built.
+        private int[] mDiagonalSums = new int[0];
+        private int[] mAntiDiagonalSums = new int[0];
+
+        void setGeometry(final double factor, final int scaledWidth,
+                final int scaledHeight, final int scaledWindowWidth,
+                final int scaledWindowHeight, final int processWidth,
+                final int processHeight, final int yStep) {
+            if (scaledWidth != mScaledWidth ||
+                    scaledHeight != mScaledHeight) {
+                // Force the resize tables to be rebuilt.
+                mTableWidth = -1;
+            }
+            mFactor = factor;
+            mScaledWidth = scaledWidth;
+            mScaledHeight = scaledHeight;
+            mScaledWindowWidth = scaledWindowWidth;
+            mScaledWindowHeight = scaledWindowHeight;
+            mProcessWidth = processWidth;
+            mProcessHeight = processHeight;
+            mYStep = yStep;
+        }
+
+        @Override
+        public Void call() {
+            final int pixelCount = mScaledWidth * mScaledHeight;
+            if (mPixels.length < pixelCount) {
+                mPixels = new byte[pixelCount];
+            }
+            resize();
+            integrate();
+            computeOffsets();
+            return null;
+        }
+
+        private void resize() {
+            final byte[] src = mGray;
+            final byte[] dst = mPixels;
+            final int srcWidth = mWidth;
+            final int srcHeight = mHeight;
+            final int dstWidth = mScaledWidth;
+            final int dstHeight = mScaledHeight;
+            if (dstWidth == srcWidth && dstHeight == srcHeight) {
+                System.arraycopy(src, 0, dst, 0, srcWidth * srcHeight);
+                return;
+            }
+            if (srcWidth == 2 * dstWidth && srcHeight == 2 * dstHeight) {
+                // OpenCV averages 2 x 2 blocks for an exact halving.
+                for (int y = 0; y < dstHeight; y++) {
+                    int s = 2 * y * srcWidth;
+                    int d = y * dstWidth;
+                    for (int x = 0; x < dstWidth; x++, s += 2) {
+                        dst[d++] = (byte) (((src[s] & 0xff) +
+                                (src[s + 1] & 0xff) +
+                                (src[s + srcWidth] & 0xff) +
+                                (src[s + srcWidth + 1] & 0xff) + 2) >> 2);
+                    }
+                }
+                return;
+            }
+            if (mTableWidth != srcWidth || mTableHeight != srcHeight) {
+                buildResizeTables();
+            }
+
+            final int[] row0 = mRow0;
+            final int[] row1 = mRow1;
+            for (int dy = 0; dy < dstHeight; dy++) {
+                final int sy = mYOffsets[dy];
+                resizeRow(src, clamp(sy, srcHeight) * srcWidth, row0);
+                resizeRow(src, clamp(sy + 1, srcHeight) * srcWidth,
+                        row1);
+                final int b0 = mYCoefs[2 * dy];
+                final int b1 = mYCoefs[2 * dy + 1];
+                final int d = dy * dstWidth;
+                // OpenCV's SSE2 path rounds the leading pixels of a
+                // row differently from its scalar path, which handles
+                // the rest.
+                int x = 0;
+                for (; x < mVectorWidth; x++) {
+                    final int value = ((((row0[x] >> 4) * b0) >> 16) +
+                            (((row1[x] >> 4) * b1) >> 16) + 2) >> 2;
+                    dst[d + x] = (byte) saturate(value);
+                }
+                for (; x < dstWidth; x++) {
+                    final int value = (row0[x] * b0 + row1[x] * b1 +
+                            (1 << (2 * RESIZE_COEF_BITS - 1))) >>
+                            (2 * RESIZE_COEF_BITS);
+                    dst[d + x] = (byte) saturate(value);
+                }
+            }
+        }
+
+        private void resizeRow(final byte[] src, final int rowStart,
+                final int[] row) {
+            final int srcWidth = mWidth;
+            for (int dx = 0; dx < mScaledWidth; dx++) {
+                final int sx = mXOffsets[dx];
+                int value = (src[rowStart + sx] & 0xff) * mXCoefs[2 * dx];
+                if (sx + 1 < srcWidth) {
+                    value += (src[rowStart + sx + 1] & 0xff) *
+                            mXCoefs[2 * dx + 1];
+                }
+                row[dx] = value;
+            }
+        }
+
+        private void buildResizeTables() {
+            final int srcWidth = mWidth;
+            final int srcHeight = mHeight;
+            final int dstWidth = mScaledWidth;
+            final int dstHeight = mScaledHeight;
+            if (mXOffsets.length < dstWidth) {
+                mXOffsets = new int[dstWidth];
+                mXCoefs = new short[2 * dstWidth];
+                mRow0 = new int[dstWidth];
+                mRow1 = new int[dstWidth];
+            }
+            if (mYOffsets.length < dstHeight) {
+                mYOffsets = new int[dstHeight];
+                mYCoefs = new short[2 * dstHeight];
+            }
+
+            final double scaleX = 1.0 / ((double) dstWidth / srcWidth);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                float fx = (float) ((dx + 0.5) * scaleX - 0.5);
+                int sx = (int) Math.floor(fx);
+                fx -= sx;
+                if (sx < 0) {
+                    fx = 0f;
+                    sx = 0;
+                }
+                if (sx >= srcWidth - 1) {
+                    fx = 0f;
+                    sx = srcWidth - 1;
+                }
+                mXOffsets[dx] = sx;
+                mXCoefs[2 * dx] = toCoef(1f - fx);
+                mXCoefs[2 * dx + 1] = toCoef(fx);
+            }
+
+            final double scaleY = 1.0 / ((double) dstHeight / srcHeight);
+            for (int dy = 0; dy < dstHeight; dy++) {
+                float fy = (float) ((dy + 0.5) * scaleY - 0.5);
+                final int sy = (int) Math.floor(fy);
+                fy -= sy;
+                mYOffsets[dy] = sy;
+                mYCoefs[2 * dy] = toCoef(1f - fy);
+                mYCoefs[2 * dy + 1] = toCoef(fy);
+            }
+
+            int vectorWidth = 0;
+            while (vectorWidth <= dstWidth - 16) {
+                vectorWidth += 16;
+            }
+            while (vectorWidth < dstWidth - 4) {
+                vectorWidth += 4;
+            }
+            mVectorWidth = vectorWidth;
+            mTableWidth = srcWidth;
+            mTableHeight = srcHeight;
+        }
+
+        private void integrate() {
+            final int width = mScaledWidth;
+            final int height = mScaledHeight;
+            final int stride = width + 1;
+            final int size = stride * (height + 1);
+            mStride = stride;
+            if (mSum.length < size) {
+                mSum = new int[size];
+                mSquareSum = new long[size];
+            }
+            final byte[] pixels = mPixels;
+            final int[] sum = mSum;
+            final long[] squareSum = mSquareSum;
+            for (int x = 0; x < stride; x++) {
+                sum[x] = 0;
+                squareSum[x] = 0L;
+            }
+            for (int y = 0; y < height; y++) {
+                final int row = (y + 1) * stride;
+                sum[row] = 0;
+                squareSum[row] = 0L;
+                int rowSum = 0;
+                long rowSquareSum = 0L;
+                for (int x = 0; x < width; x++) {
+                    final int value = pixels[y * width + x] & 0xff;
+                    rowSum += value;
+                    rowSquareSum += value * value;
+                    sum[row + x + 1] = sum[row - stride + x + 1] + rowSum;
+                    squareSum[row + x + 1] =
+                            squareSum[row - stride + x + 1] + rowSquareSum;
+                }
+            }
+            if (mModel.mTilted) {
+                integrateTilted();
+            }
+        }
+
+        // Builds the integral of 45-degree triangles: the value at
+        // (X, Y) is the sum of pixels (x, y) with y < Y and
+        // |x - X + 1| <= Y - y - 1. Each row's contribution is a span
+        // of that row, so the value is a difference of two running
+        // sums of row prefixes, one along each diagonal.
+        private void integrateTilted() {
+            final int width = mScaledWidth;
+            final int height = mScaledHeight;
+            final int stride = mStride;
+            final int size = stride * (height + 1);
+            if (mTiltedSum.length < size) {
+                mTiltedSum = new int[size];
+            }
+            final int diagonals = width + height + 1;
+            if (mDiagonalSums.length < diagonals) {
+                mDiagonalSums = new int[diagonals];
+                mAntiDiagonalSums = new int[diagonals];
+            }
+            final int[] sum = mSum;
+            final int[] tilted = mTiltedSum;
+            // The sum along anti-diagonal u = X + Y - 1 is at u + 1,
+            // and the one along diagonal v = X - Y is at v + height.
+            final int[] antiDiagonal = mAntiDiagonalSums;
+            final int[] diagonal = mDiagonalSums;
+            for (int i = 0; i < diagonals; i++) {
+                antiDiagonal[i] = 0;
+                diagonal[i] = 0;
+            }
+            for (int x = 0; x < stride; x++) {
+                tilted[x] = 0;
+            }
+            for (int y = 1; y <= height; y++) {
+                // The prefix sums of row y - 1 are the difference of
+                // two rows of the upright integral.
+                final int top = (y - 1) * stride;
+                final int bottom = y * stride;
+                for (int i = 0; i < diagonals; i++) {
+                    final int u = i - 1;
+                    final int k = clampPrefix(u - y + 1, width);
+                    antiDiagonal[i] += sum[bottom + k] - sum[top + k];
+                    final int v = i - height;
+                    final int l = clampPrefix(v + y - 1, width);
+                    diagonal[i] += sum[bottom + l] - sum[top + l];
+                }
+                for (int x = 0; x <= width; x++) {
+                    tilted[bottom + x] = antiDiagonal[x + y] -
+                            diagonal[x - y + height];
+                }
+            }
+        }
+
+        private void computeOffsets() {
+            final int stride = mStride;
+            final CascadeModel model = mModel;
+            final int windowWidth = model.mWindowWidth;
+            final int windowHeight = model.mWindowHeight;
+            setRectOffsets(mNormOffsets, 0, 1, 1, windowWidth - 2,
+                    windowHeight - 2, stride);
+            mNormArea = (windowWidth - 2) * (windowHeight - 2);
+            mInverseNormArea = 1.0 / mNormArea;
+            if (stride == mOffsetStride) {
+                return;
+            }
+
+            final int[] rects = model.mFeatureRects;
+            if (model.mLbp) {
+                final int featureCount = rects.length / 4;
+                if (mFeatureOffsets.length < featureCount * LBP_POINTS) {
+                    mFeatureOffsets = new int[featureCount * LBP_POINTS];
+                }
+                for (int f = 0; f < featureCount; f++) {
+                    final int x = rects[4 * f];
+                    final int y = rects[4 * f + 1];
+                    final int w = rects[4 * f + 2];
+                    final int h = rects[4 * f + 3];
+                    for (int row = 0; row < 4; row++) {
+                        for (int column = 0; column < 4; column++) {
+                            mFeatureOffsets[f * LBP_POINTS + row * 4 +
+                                    column] = (y + row * h) * stride +
+                                    x + column * w;
+                        }
+                    }
+                }
+            } else {
+                final int featureCount = model.mFeatureTilted.length;
+                final int rectCount =
+                        featureCount * CascadeModel.RECTS_PER_HAAR_FEATURE;
+                if (mFeatureOffsets.length < rectCount * 4) {
+                    mFeatureOffsets = new int[rectCount * 4];
+                }
+                for (int r = 0; r < rectCount; r++) {
+                    final int x = rects[4 * r];
+                    final int y = rects[4 * r + 1];
+                    final int w = rects[4 * r + 2];
+                    final int h = rects[4 * r + 3];
+                    if (model.mFeatureTilted[
+                            r / CascadeModel.RECTS_PER_HAAR_FEATURE]) {
+                        mFeatureOffsets[4 * r] = y * stride + x;
+                        mFeatureOffsets[4 * r + 1] =
+                                (y + h) * stride + x - h;
+                        mFeatureOffsets[4 * r + 2] =
+                                (y + w) * stride + x + w;
+                        mFeatureOffsets[4 * r + 3] =
+                                (y + w + h) * stride + x + w - h;
+                    } else {
+                        setRectOffsets(mFeatureOffsets, 4 * r, x, y, w, h,
+                                stride);
+                    }
+                }
+            }
+            mOffsetStride = stride;
+        }
+    }
+
+    // A run of window rows in one level, and the candidates found in
+    // them in row order.
+    private final class Strip implements Callable<Void> {
+
+        private Level mLevel;
+        private int mStartY;
+        private int mEndY;
+
+        int[] mCandidates = new int[16 * RECT_SIZE];
+        int mCandidateCount;
+
+        void set(final Level level, final int startY, final int endY) {
+            mLevel = level;
+            mStartY = startY;
+            mEndY = endY;
+        }
+
+        @Override
+        public Void call() {
+            final Level level = mLevel;
+            final int yStep = level.mYStep;
+            final boolean legacy = mModel.mLegacy;
+            mCandidateCount = 0;
+            for (int y = mStartY; y < mEndY; y += yStep) {
+                for (int x = 0; x < level.mProcessWidth; x += yStep) {
+                    final int result = legacy ?
+                            runLegacy(level, x, y) : runAt(level, x, y);
+                    if (result > 0) {
+                        addCandidate(level, x, y);
+                    }
+                    // Like OpenCV's current path, skip ahead after a
+                    // window that fails the first stage.
+                    if (result == 0 && !legacy) {
+                        x += yStep;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void addCandidate(final Level level, final int x,
+                final int y) {
+            final int i = mCandidateCount * RECT_SIZE;
+            if (i + RECT_SIZE > mCandidates.length) {
+                final int[] grown = new int[2 * mCandidates.length];
+                System.arraycopy(mCandidates, 0, grown, 0, i);
+                mCandidates = grown;
+            }
+            mCandidates[i] = (int) Math.rint(x * level.mFactor);
+            mCandidates[i + 1] = (int) Math.rint(y * level.mFactor);
+            mCandidates[i + 2] = level.mScaledWindowWidth;
+            mCandidates[i + 3] = level.mScaledWindowHeight;
+            mCandidateCount++;
+        }
+    }
+
+    // Runs a current-format cascade on the window at (x, y). Returns 1
+    // if every stage passes, or else the negated index of the stage
+    // that failed.
+    private int runAt(final Level level, final int x, final int y) {
+        final CascadeModel model = mModel;
+        final int offset = y * level.mStride + x;
+        final int[] sum = level.mSum;
+        final int[] featureOffsets = level.mFeatureOffsets;
+
+        double varianceNormFactor = 0.0;
+        if (!model.mLbp) {
+            final int[] n = level.mNormOffsets;
+            final long[] squareSum = level.mSquareSum;
+            final int valueSum = sum[offset + n[0]] - sum[offset + n[1]] -
+                    sum[offset + n[2]] + sum[offset + n[3]];
+            final double valueSquareSum = squareSum[offset + n[0]] -
+                    squareSum[offset + n[1]] - squareSum[offset + n[2]] +
+                    squareSum[offset + n[3]];
+            double nf = (double) level.mNormArea * valueSquareSum -
+                    (double) valueSum * valueSum;
+            nf = nf > 0.0 ? Math.sqrt(nf) : 1.0;
+            varianceNormFactor = 1.0 / nf;
+        }
+
+        final int[] treeNodeCounts = model.mTreeNodeCounts;
+        final int[] lefts = model.mNodeLefts;
+        final int[] rights = model.mNodeRights;
+        final int[] features = model.mNodeFeatures;
+        final float[] thresholds = model.mNodeThresholds;
+        final int[] subsets = model.mNodeSubsets;
+        final float[] leaves = model.mLeaves;
+        int treeIndex = 0;
+        int nodeOffset = 0;
+        int leafOffset = 0;
+        for (int stage = 0; stage < model.mStageTreeCounts.length;
+                stage++) {
+            double stageSum = 0.0;
+            final int treeEnd = treeIndex + model.mStageTreeCounts[stage];
+            for (; treeIndex < treeEnd; treeIndex++) {
+                int index = 0;
+                do {
+                    final int node = nodeOffset + index;
+                    final boolean left;
+                    if (model.mLbp) {
+                        final int c = lbpCode(sum, offset,
+                                featureOffsets, features[node] * LBP_POINTS);
+                        left = (subsets[node * CascadeModel.LBP_SUBSET_SIZE
+                                + (c >> 5)] & (1 << (c & 31))) != 0;
+                    } else {
+                        final double value = haarValue(level, offset,
+                                features[node]) * varianceNormFactor;
+                        left = value < thresholds[node];
+                    }
+                    index = left ? lefts[node] : rights[node];
+                } while (index > 0);
+                stageSum += leaves[leafOffset - index];
+                final int nodeCount = treeNodeCounts[treeIndex];
+                nodeOffset += nodeCount;
+                leafOffset += nodeCount + 1;
+            }
+            if (stageSum < model.mStageThresholds[stage]) {
+                return -stage;
+            }
+        }
+        return 1;
+    }
+
+    private float haarValue(final Level level, final int offset,
+            final int feature) {
+        final int[] image = mModel.mFeatureTilted[feature] ?
+                level.mTiltedSum : level.mSum;
+        final int[] o = level.mFeatureOffsets;
+        final float[] weights = mModel.mFeatureWeights;
+        final int w = feature * CascadeModel.RECTS_PER_HAAR_FEATURE;
+        final int r = 4 * w;
+        float value = weights[w] * rectSum(image, offset, o, r) +
+                weights[w + 1] * rectSum(image, offset, o, r + 4);
+        if (weights[w + 2] != 0f) {
+            value += weights[w + 2] * rectSum(image, offset, o, r + 8);
+        }
+        return value;
+    }
+
+    private static int lbpCode(final int[] sum, final int offset,
+            final int[] o, final int p) {
+        final int center = blockSum(sum, offset, o, p, 5, 6, 9, 10);
+        return (blockSum(sum, offset, o, p, 0, 1, 4, 5) >= center ?
+                        128 : 0) |
+                (blockSum(sum, offset, o, p, 1, 2, 5, 6) >= center ?
+                        64 : 0) |
+                (blockSum(sum, offset, o, p, 2, 3, 6, 7) >= center ?
+                        32 : 0) |
+                (blockSum(sum, offset, o, p, 6, 7, 10, 11) >= center ?
+                        16 : 0) |
+                (blockSum(sum, offset, o, p, 10, 11, 14, 15) >= center ?
+                        8 : 0) |
+                (blockSum(sum, offset, o, p, 9, 10, 13, 14) >= center ?
+                        4 : 0) |
+                (blockSum(sum, offset, o, p, 8, 9, 12, 13) >= center ?
+                        2 : 0) |
+                (blockSum(sum, offset, o, p, 4, 5, 8, 9) >= center ?
+                        1 : 0);
+    }
+
+    private static int blockSum(final int[] sum, final int offset,
+            final int[] o, final int p, final int p0, final int p1,
+            final int p2, final int p3) {
+        return sum[offset + o[p + p0]] - sum[offset + o[p + p1]] -
+                sum[offset + o[p + p2]] + sum[offset + o[p + p3]];
+    }
+
+    // Runs an old-format cascade on the window at (x, y), with the
+    // arithmetic of OpenCV's old path on x86: features are normalized
+    // by the window's standard deviation, and stages whose features
+    // have two rects are summed in single precision. Returns 1 if
+    // every stage passes, or else the negated index of the stage that
+    // failed.
+    private int runLegacy(final Level level, final int x, final int y) {
+        final CascadeModel model = mModel;
+        final int offset = y * level.mStride + x;
+        final int[] sum = level.mSum;
+        final long[] squareSum = level.mSquareSum;
+        final int[] n = level.mNormOffsets;
+        final double mean = (sum[offset + n[0]] - sum[offset + n[1]] -
+                sum[offset + n[2]] + sum[offset + n[3]]) *
+                level.mInverseNormArea;
+        double varianceNormFactor = squareSum[offset + n[0]] -
+                squareSum[offset + n[1]] - squareSum[offset + n[2]] +
+                squareSum[offset + n[3]];
+        varianceNormFactor = varianceNormFactor * level.mInverseNormArea -
+                mean * mean;
+        varianceNormFactor = varianceNormFactor >= 0.0 ?
+                Math.sqrt(varianceNormFactor) : 1.0;
+
+        final int[] treeNodeCounts = model.mTreeNodeCounts;
+        final int[] lefts = model.mNodeLefts;
+        final int[] rights = model.mNodeRights;
+        final int[] features = model.mNodeFeatures;
+        final float[] thresholds = model.mNodeThresholds;
+        final float[] weights = model.mFeatureWeights;
+        final float[] leaves = model.mLeaves;
+        final int[] o = level.mFeatureOffsets;
+        int treeIndex = 0;
+        int nodeOffset = 0;
+        int leafOffset = 0;
+        for (int stage = 0; stage < model.mStageTreeCounts.length;
+                stage++) {
+            final boolean twoRects = model.mStageTwoRects[stage];
+            double stageSum = 0.0;
+            final int treeEnd = treeIndex + model.mStageTreeCounts[stage];
+            for (; treeIndex < treeEnd; treeIndex++) {
+                int index = 0;
+                do {
+                    final int node = nodeOffset + index;
+                    final int feature = features[node];
+                    final int[] image = model.mFeatureTilted[feature] ?
+                            level.mTiltedSum : sum;
+                    final int w =
+                            feature * CascadeModel.RECTS_PER_HAAR_FEATURE;
+                    final int r = 4 * w;
+                    final double t = thresholds[node] * varianceNormFactor;
+                    final double value;
+                    if (twoRects) {
+                        value = rectSum(image, offset, o, r) * weights[w] +
+                                rectSum(image, offset, o, r + 4) *
+                                weights[w + 1];
+                    } else {
+                        double v = rectSum(image, offset, o, r) * weights[w];
+                        v += rectSum(image, offset, o, r + 4) *
+                                weights[w + 1];
+                        if (weights[w + 2] != 0f) {
+                            v += rectSum(image, offset, o, r + 8) *
+                                    weights[w + 2];
+                        }
+                        value = v;
+                    }
+                    index = value < t ? lefts[node] : rights[node];
+                } while (index > 0);
+                stageSum += leaves[leafOffset - index];
+                final int nodeCount = treeNodeCounts[treeIndex];
+                nodeOffset += nodeCount;
+                leafOffset += nodeCount + 1;
+            }
+            if (stageSum < model.mStageThresholds[stage]) {
+                return -stage;
+            }
+        }
+        return 1;
+    }
+
+    private static int rectSum(final int[] image, final int offset,
+            final int[] o, final int r) {
+        return image[offset + o[r]] - image[offset + o[r + 1]] -
+                image[offset + o[r + 2]] + image[offset + o[r + 3]];
+    }
+
+    private static void setRectOffsets(final int[] offsets, final int i,
+            final int x, final int y, final int width, final int height,
+            final int stride) {
+        offsets[i] = y * stride + x;
+        offsets[i + 1] = y * stride + x + width;
+        offsets[i + 2] = (y + height) * stride + x;
+        offsets[i + 3] = (y + height) * stride + x + width;
+    }
+
+    private static short toCoef(final float weight) {
+        return (short) Math.rint(weight * RESIZE_COEF_SCALE);
+    }
+
+    private static int clamp(final int row, final int height) {
+        return row < 0 ? 0 : row < height ? row : height - 1;
+    }
+
+    private static int clampPrefix(final int length, final int width) {
+        return length < 0 ? 0 : length > width ? width : length;
+    }
+
+    private static int saturate(final int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,536 @@
+package com.nummist.goldgesture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+// A boosted cascade of Haar or LBP features, parsed from one of
+// OpenCV's XML cascade files into flat primitive arrays so that a
+// CascadeEvaluator can run it without the native library. Both the
+// current format ("opencv-cascade-classifier") and the old Haar
+// format ("opencv-haar-classifier") are read. Old cascades keep the
+// old arithmetic, as OpenCV does, so that their results match.
+public final class CascadeModel {
+
+    static final int RECTS_PER_HAAR_FEATURE = 3;
+    static final int LBP_SUBSET_SIZE = 8;
+
+    // The difference between the threshold in a file and the one that
+    // a stage is compared with, for each format.
+    private static final float STAGE_THRESHOLD_EPSILON = 1e-5f;
+    private static final double LEGACY_STAGE_THRESHOLD_BIAS = 0.0001;
+
+    // The margin between a window and the rect over which an old
+    // cascade normalizes its features.
+    private static final int LEGACY_WINDOW_BORDER = 1;
+
+    private static final String TYPE_ID = "type_id";
+    private static final String CASCADE_TYPE = "opencv-cascade-classifier";
+    private static final String LEGACY_CASCADE_TYPE =
+            "opencv-haar-classifier";
+
+    final int mWindowWidth;
+    final int mWindowHeight;
+    final boolean mLbp;
+    final boolean mLegacy;
+    final boolean mTilted;
+
+    // Per stage, the number of trees, the threshold, and (for old
+    // cascades) whether every feature of the stage has two rects.
+    final int[] mStageTreeCounts;
+    final float[] mStageThresholds;
+    final boolean[] mStageTwoRects;
+
+    // Per tree, the number of nodes. A tree's nodes follow those of
+    // the previous tree, and so do its node count + 1 leaves. A
+    // child index greater than 0 is a node of the same tree and one
+    // less than or equal to 0 is the negated index of a leaf.
+    final int[] mTreeNodeCounts;
+    final int[] mNodeLefts;
+    final int[] mNodeRights;
+    final int[] mNodeFeatures;
+    final float[] mNodeThresholds;
+    final int[] mNodeSubsets;
+    final float[] mLeaves;
+
+    // Per Haar feature, three rects as x, y, width and height, their
+    // weights (0 for a missing rect), and whether they are tilted by
+    // 45 degrees. Per LBP feature, the rect of one of its 3 x 3 blocks.
+    final int[] mFeatureRects;
+    final float[] mFeatureWeights;
+    final boolean[] mFeatureTilted;
+
+    private CascadeModel(final Builder builder) {
+        mWindowWidth = builder.mWindowWidth;
+        mWindowHeight = builder.mWindowHeight;
+        mLbp = builder.mLbp;
+        mLegacy = builder.mLegacy;
+        mStageTreeCounts = builder.mStageTreeCounts.toArray();
+        mStageThresholds = builder.mStageThresholds.toArray();
+        mStageTwoRects = new boolean[mStageTreeCounts.length];
+        mTreeNodeCounts = builder.mTreeNodeCounts.toArray();
+        mNodeLefts = builder.mNodeLefts.toArray();
+        mNodeRights = builder.mNodeRights.toArray();
+        mNodeFeatures = builder.mNodeFeatures.toArray();
+        mNodeThresholds = builder.mNodeThresholds.toArray();
+        mNodeSubsets = builder.mNodeSubsets.toArray();
+        mLeaves = builder.mLeaves.toArray();
+        mFeatureRects = builder.mFeatureRects.toArray();
+        mFeatureWeights = builder.mFeatureWeights.toArray();
+        mFeatureTilted = new boolean[builder.mFeatureTilted.size()];
+        boolean tilted = false;
+        for (int i = 0; i < mFeatureTilted.length; i++) {
+            mFeatureTilted[i] = builder.mFeatureTilted.get(i) != 0;
+            tilted |= mFeatureTilted[i];
+        }
+        mTilted = tilted;
+        if (mLegacy) {
+            prepareLegacyFeatures();
+        }
+    }
+
+    // Reads a cascade from an OpenCV XML file.
+    public static CascadeModel parse(final InputStream input)
+            throws IOException {
+        final Document document;
+        try {
+            final DocumentBuilder documentBuilder =
+                    DocumentBuilderFactory.newInstance()
+                            .newDocumentBuilder();
+            document = documentBuilder.parse(input);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Cannot create an XML parser: " + e);
+        } catch (SAXException e) {
+            throw new IOException("Cannot parse the cascade: " + e);
+        }
+
+        final Element cascade =
+                firstChildElement(document.getDocumentElement());
+        if (cascade == null) {
+            throw new IOException("The cascade file is empty");
+        }
+        final String type = cascade.getAttribute(TYPE_ID);
+        final Builder builder = new Builder();
+        if (CASCADE_TYPE.equals(type)) {
+            readCascade(cascade, builder);
+        } else if (LEGACY_CASCADE_TYPE.equals(type)) {
+            readLegacyCascade(cascade, builder);
+        } else {
+            throw new IOException("Unknown cascade type: " + type);
+        }
+        return new CascadeModel(builder);
+    }
+
+    public int getWindowWidth() {
+        return mWindowWidth;
+    }
+
+    public int getWindowHeight() {
+        return mWindowHeight;
+    }
+
+    public boolean isLbp() {
+        return mLbp;
+    }
+
+    public int getStageCount() {
+        return mStageTreeCounts.length;
+    }
+
+    private static void readCascade(final Element cascade,
+            final Builder builder) throws IOException {
+        if (!"BOOST".equals(childText(cascade, "stageType"))) {
+            throw new IOException("Only boosted cascades are supported");
+        }
+        final String featureType = childText(cascade, "featureType");
+        if ("LBP".equals(featureType)) {
+            builder.mLbp = true;
+        } else if (!"HAAR".equals(featureType)) {
+            throw new IOException("Unsupported feature type: " +
+                    featureType);
+        }
+        builder.mWindowWidth = parseInt(childText(cascade, "width"));
+        builder.mWindowHeight = parseInt(childText(cascade, "height"));
+
+        int subsetSize = 0;
+        final Element featureParams = child(cascade, "featureParams");
+        final Element maxCatCount = featureParams == null ? null :
+                child(featureParams, "maxCatCount");
+        if (maxCatCount != null) {
+            subsetSize = (parseInt(maxCatCount.getTextContent().trim())
+                    + 31) / 32;
+        }
+        if (builder.mLbp && subsetSize != LBP_SUBSET_SIZE) {
+            throw new IOException("Unsupported LBP category count");
+        }
+
+        for (Element stage : children(requiredChild(cascade, "stages"))) {
+            final List<Element> trees =
+                    children(requiredChild(stage, "weakClassifiers"));
+            builder.mStageTreeCounts.add(trees.size());
+            builder.mStageThresholds.add((float) parseDouble(
+                    childText(stage, "stageThreshold")) -
+                    STAGE_THRESHOLD_EPSILON);
+            for (Element tree : trees) {
+                final String[] nodes =
+                        split(childText(tree, "internalNodes"));
+                final String[] leaves =
+                        split(childText(tree, "leafValues"));
+                final int nodeSize = 3 + (subsetSize > 0 ? subsetSize : 1);
+                final int nodeCount = nodes.length / nodeSize;
+                if (nodes.length != nodeCount * nodeSize ||
+                        leaves.length != nodeCount + 1) {
+                    throw new IOException("Malformed tree");
+                }
+                builder.mTreeNodeCounts.add(nodeCount);
+                int i = 0;
+                for (int node = 0; node < nodeCount; node++) {
+                    builder.mNodeLefts.add(parseInt(nodes[i++]));
+                    builder.mNodeRights.add(parseInt(nodes[i++]));
+                    builder.mNodeFeatures.add(parseInt(nodes[i++]));
+                    if (subsetSize > 0) {
+                        for (int j = 0; j < subsetSize; j++) {
+                            builder.mNodeSubsets.add(parseInt(nodes[i++]));
+                        }
+                        builder.mNodeThresholds.add(0f);
+                    } else {
+                        builder.mNodeThresholds.add(
+                                (float) parseDouble(nodes[i++]));
+                    }
+                }
+                for (String leaf : leaves) {
+                    builder.mLeaves.add((float) parseDouble(leaf));
+                }
+            }
+        }
+
+        for (Element feature :
+                children(requiredChild(cascade, "features"))) {
+            if (builder.mLbp) {
+                final String[] rect = split(childText(feature, "rect"));
+                if (rect.length != 4) {
+                    throw new IOException("Malformed LBP feature");
+                }
+                for (String value : rect) {
+                    builder.mFeatureRects.add(parseInt(value));
+                }
+            } else {
+                readHaarRects(requiredChild(feature, "rects"), builder);
+                final Element tilted = child(feature, "tilted");
+                builder.mFeatureTilted.add(tilted == null ? 0 :
+                        parseInt(tilted.getTextContent().trim()));
+            }
+        }
+        checkFeatureIndices(builder);
+    }
+
+    private static void readLegacyCascade(final Element cascade,
+            final Builder builder) throws IOException {
+        builder.mLegacy = true;
+        final String[] size = split(childText(cascade, "size"));
+        if (size.length != 2) {
+            throw new IOException("Malformed window size");
+        }
+        builder.mWindowWidth = parseInt(size[0]);
+        builder.mWindowHeight = parseInt(size[1]);
+
+        int nodeIndex = 0;
+        for (Element stage : children(requiredChild(cascade, "stages"))) {
+            final Element parent = child(stage, "parent");
+            final Element next = child(stage, "next");
+            if ((parent != null && parseInt(parent.getTextContent().trim())
+                    != builder.mStageTreeCounts.size() - 1) ||
+                    (next != null &&
+                    parseInt(next.getTextContent().trim()) != -1)) {
+                throw new IOException("Tree cascades are not supported");
+            }
+            final List<Element> trees =
+                    children(requiredChild(stage, "trees"));
+            builder.mStageTreeCounts.add(trees.size());
+            final float threshold = (float) parseDouble(
+                    childText(stage, "stage_threshold"));
+            builder.mStageThresholds.add(
+                    (float) (threshold - LEGACY_STAGE_THRESHOLD_BIAS));
+            for (Element tree : trees) {
+                final List<Element> nodes = children(tree);
+                builder.mTreeNodeCounts.add(nodes.size());
+                int leafCount = 0;
+                for (Element node : nodes) {
+                    final Element feature = requiredChild(node, "feature");
+                    readHaarRects(requiredChild(feature, "rects"),
+                            builder);
+                    final Element tilted = child(feature, "tilted");
+                    builder.mFeatureTilted.add(tilted == null ? 0 :
+                            parseInt(tilted.getTextContent().trim()));
+                    builder.mNodeFeatures.add(nodeIndex++);
+                    builder.mNodeThresholds.add((float) parseDouble(
+                            childText(node, "threshold")));
+                    leafCount = readLegacyChild(node, "left", leafCount,
+                            builder.mNodeLefts, builder);
+                    leafCount = readLegacyChild(node, "right", leafCount,
+                            builder.mNodeRights, builder);
+                }
+                if (leafCount != nodes.size() + 1) {
+                    throw new IOException("Malformed tree");
+                }
+            }
+        }
+    }
+
+    // Reads a node's child, which is either another node or a leaf,
+    // and returns the updated number of leaves in the tree.
+    private static int readLegacyChild(final Element node,
+            final String side, final int leafCount, final IntList children,
+            final Builder builder) throws IOException {
+        final Element value = child(node, side + "_val");
+        if (value != null) {
+            children.add(-leafCount);
+            builder.mLeaves.add((float) parseDouble(
+                    value.getTextContent().trim()));
+            return leafCount + 1;
+        }
+        children.add(parseInt(childText(node, side + "_node")));
+        return leafCount;
+    }
+
+    private static void readHaarRects(final Element rects,
+            final Builder builder) throws IOException {
+        final List<Element> list = children(rects);
+        if (list.isEmpty() || list.size() > RECTS_PER_HAAR_FEATURE) {
+            throw new IOException("Malformed Haar feature");
+        }
+        for (int i = 0; i < RECTS_PER_HAAR_FEATURE; i++) {
+            if (i < list.size()) {
+                final String[] rect =
+                        split(list.get(i).getTextContent());
+                if (rect.length != 5) {
+                    throw new IOException("Malformed Haar rect");
+                }
+                for (int j = 0; j < 4; j++) {
+                    builder.mFeatureRects.add(parseInt(rect[j]));
+                }
+                builder.mFeatureWeights.add(
+                        (float) parseDouble(rect[4]));
+            } else {
+                for (int j = 0; j < 4; j++) {
+                    builder.mFeatureRects.add(0);
+                }
+                builder.mFeatureWeights.add(0f);
+            }
+        }
+    }
+
+    private static void checkFeatureIndices(final Builder builder)
+            throws IOException {
+        final int featureCount = builder.mLbp ?
+                builder.mFeatureRects.size() / 4 :
+                builder.mFeatureTilted.size();
+        for (int i = 0; i < builder.mNodeFeatures.size(); i++) {
+            final int feature = builder.mNodeFeatures.get(i);
+            if (feature < 0 || feature >= featureCount) {
+                throw new IOException("Feature index out of range: " +
+                        feature);
+            }
+        }
+    }
+
+    // Scales the weights of an old cascade's features as OpenCV does
+    // when it loads one. Weights are divided by the area of the
+    // normalization rect, and halved for tilted features, and each
+    // feature's first weight is chosen so that the feature's response
+    // to a flat image is 0. Stages whose features all have two rects
+    // are marked, because OpenCV sums them in single precision.
+    private void prepareLegacyFeatures() {
+        final double weightScale =
+                1.0 / ((mWindowWidth - 2 * LEGACY_WINDOW_BORDER) *
+                (mWindowHeight - 2 * LEGACY_WINDOW_BORDER));
+        final int featureCount = mFeatureTilted.length;
+        for (int feature = 0; feature < featureCount; feature++) {
+            final double correction =
+                    weightScale * (mFeatureTilted[feature] ? 0.5 : 1.0);
+            double area0 = 0;
+            double sum0 = 0;
+            for (int k = 0; k < RECTS_PER_HAAR_FEATURE; k++) {
+                final int w = feature * RECTS_PER_HAAR_FEATURE + k;
+                final int r = w * 4;
+                if (mFeatureWeights[w] == 0f) {
+                    continue;
+                }
+                mFeatureWeights[w] =
+                        (float) (mFeatureWeights[w] * correction);
+                if (k == 0) {
+                    area0 = mFeatureRects[r + 2] * mFeatureRects[r + 3];
+                } else {
+                    sum0 += mFeatureWeights[w] * mFeatureRects[r + 2] *
+                            mFeatureRects[r + 3];
+                }
+            }
+            mFeatureWeights[feature * RECTS_PER_HAAR_FEATURE] =
+                    (float) (-sum0 / area0);
+        }
+
+        int treeIndex = 0;
+        int nodeIndex = 0;
+        for (int stage = 0; stage < mStageTreeCounts.length; stage++) {
+            boolean twoRects = true;
+            for (int tree = 0; tree < mStageTreeCounts[stage]; tree++) {
+                final int nodeCount = mTreeNodeCounts[treeIndex++];
+                for (int node = 0; node < nodeCount; node++) {
+                    final int feature = mNodeFeatures[nodeIndex++];
+                    twoRects &= mFeatureWeights[feature *
+                            RECTS_PER_HAAR_FEATURE + 2] == 0f;
+                }
+            }
+            mStageTwoRects[stage] = twoRects;
+        }
+    }
+
+    private static Element firstChildElement(final Element element) {
+        for (Node node = element.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(final Element element) {
+        final List<Element> children = new ArrayList<Element>();
+        for (Node node = element.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static Element child(final Element element,
+            final String name) {
+        for (Node node = element.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE &&
+                    name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static Element requiredChild(final Element element,
+            final String name) throws IOException {
+        final Element child = child(element, name);
+        if (child == null) {
+            throw new IOException("Missing element: " + name);
+        }
+        return child;
+    }
+
+    private static String childText(final Element element,
+            final String name) throws IOException {
+        return requiredChild(element, name).getTextContent().trim();
+    }
+
+    private static String[] split(final String text) {
+        final String trimmed = text.trim();
+        return trimmed.length() == 0 ? new String[0] :
+                trimmed.split("\\s+");
+    }
+
+    private static int parseInt(final String text) throws IOException {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not an integer: " + text);
+        }
+    }
+
+    private static double parseDouble(final String text)
+            throws IOException {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a number: " + text);
+        }
+    }
+
+    // Growable primitive arrays, which hold a cascade while it is
+    // read.
+    private static final class Builder {
+        int mWindowWidth;
+        int mWindowHeight;
+        boolean mLbp;
+        boolean mLegacy;
+        final IntList mStageTreeCounts = new IntList();
+        final FloatList mStageThresholds = new FloatList();
+        final IntList mTreeNodeCounts = new IntList();
+        final IntList mNodeLefts = new IntList();
+        final IntList mNodeRights = new IntList();
+        final IntList mNodeFeatures = new IntList();
+        final FloatList mNodeThresholds = new FloatList();
+        final IntList mNodeSubsets = new IntList();
+        final FloatList mLeaves = new FloatList();
+        final IntList mFeatureRects = new IntList();
+        final FloatList mFeatureWeights = new FloatList();
+        final IntList mFeatureTilted = new IntList();
+    }
+
+    private static final class IntList {
+        private int[] mValues = new int[16];
+        private int mSize;
+
+        void add(final int value) {
+            if (mSize == mValues.length) {
+                final int[] values = new int[2 * mSize];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(final int i) {
+            return mValues[i];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int[] toArray() {
+            final int[] values = new int[mSize];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            return values;
+        }
+    }
+
+    private static final class FloatList {
+        private float[] mValues = new float[16];
+        private int mSize;
+
+        void add(final float value) {
+            if (mSize == mValues.length) {
+                final float[] values = new float[2 * mSize];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        float[] toArray() {
+            final float[] values = new float[mSize];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            return values;
+        }
+    }
+}
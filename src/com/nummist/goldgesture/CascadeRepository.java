@@ -0,0 +1,262 @@
+package com.nummist.goldgesture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+// Extracts cascade files from the raw resources and loads them.
+// Each file is extracted only once per installed version of the app,
+// and each loaded classifier is kept for the life of the process, so
+// camera restarts reuse it. Independent cascades load in parallel.
+// OpenCV must be loaded before any cascade is requested.
+public final class CascadeRepository {
+
+    // A tag for log output.
+    private static final String TAG = "CascadeRepository";
+
+    private static final String CASCADE_DIR = "cascade";
+    private static final String STAMP_SUFFIX = ".version";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int LOADER_THREADS = 3;
+
+    private static CascadeRepository sInstance;
+
+    private final Context mContext;
+    private final File mCascadeDir;
+
+    // Identifies the installed version of the app. An extracted file
+    // is reused only if its stamp matches.
+    private final String mVersionStamp;
+
+    // The loaded or loading classifiers, by resource ID.
+    private final Map<Integer, Future<CascadeClassifier>> mCascades =
+            new HashMap<Integer, Future<CascadeClassifier>>();
+
+    private final ExecutorService mLoader =
+            Executors.newFixedThreadPool(LOADER_THREADS,
+                    new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static synchronized CascadeRepository getInstance(
+            final Context context) {
+        if (sInstance == null) {
+            sInstance = new CascadeRepository(
+                    context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CascadeRepository(final Context context) {
+        mContext = context;
+        mCascadeDir = context.getDir(CASCADE_DIR, Context.MODE_PRIVATE);
+        mVersionStamp = getVersionStamp(context);
+    }
+
+    private static String getVersionStamp(final Context context) {
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0).versionCode;
+        } catch (NameNotFoundException e) {
+            Log.w(TAG, "Failed to get the package version", e);
+        }
+        // The APK's modification time changes on every install, even
+        // when the version code does not.
+        final long apkTime =
+                new File(context.getPackageCodePath()).lastModified();
+        return versionCode + ":" + apkTime;
+    }
+
+    // Starts loading the given cascades in parallel, if they are not
+    // loaded or loading already.
+    public void preload(final int... resourceIds) {
+        for (int i = 0; i < resourceIds.length; i++) {
+            load(resourceIds[i]);
+        }
+    }
+
+    // Returns the given cascade, waiting for it to load if necessary.
+    public CascadeClassifier get(final int resourceId)
+            throws IOException {
+        final Future<CascadeClassifier> cascade = load(resourceId);
+        try {
+            return cascade.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading cascade");
+        } catch (ExecutionException e) {
+            throw toIOException(resourceId, e);
+        }
+    }
+
+    // Returns a handle to the given cascade that starts loading it
+    // when it is first polled.
+    public LazyCascade getLazily(final int resourceId) {
+        return new LazyCascade() {
+            @Override
+            public CascadeClassifier poll() {
+                final Future<CascadeClassifier> cascade =
+                        load(resourceId);
+                if (!cascade.isDone()) {
+                    return null;
+                }
+                try {
+                    return cascade.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    // The failure was already logged when loading.
+                    return null;
+                }
+            }
+        };
+    }
+
+    private synchronized Future<CascadeClassifier> load(
+            final int resourceId) {
+        Future<CascadeClassifier> cascade = mCascades.get(resourceId);
+        if (cascade == null) {
+            cascade = mLoader.submit(new Callable<CascadeClassifier>() {
+                @Override
+                public CascadeClassifier call() throws IOException {
+                    try {
+                        return loadNow(resourceId);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to load cascade. " +
+                                "Exception thrown: " + e);
+                        throw e;
+                    }
+                }
+            });
+            mCascades.put(resourceId, cascade);
+        }
+        return cascade;
+    }
+
+    private CascadeClassifier loadNow(final int resourceId)
+            throws IOException {
+        final File cascadeFile = extract(resourceId);
+        final CascadeClassifier cascade = new CascadeClassifier(
+                cascadeFile.getAbsolutePath());
+        if (cascade.empty()) {
+            throw new IOException("Failed to load cascade from " +
+                    cascadeFile.getAbsolutePath());
+        }
+        Log.i(TAG, "Loaded cascade from " +
+                cascadeFile.getAbsolutePath());
+        return cascade;
+    }
+
+    // Copies a cascade from the raw resources to a file, unless this
+    // version of the app has extracted it already.
+    private File extract(final int resourceId) throws IOException {
+        final String name = mContext.getResources()
+                .getResourceEntryName(resourceId) + ".xml";
+        final File cascadeFile = new File(mCascadeDir, name);
+        final File stampFile = new File(mCascadeDir, name + STAMP_SUFFIX);
+        if (cascadeFile.exists() && mVersionStamp.equals(
+                readStamp(stampFile, cascadeFile.length()))) {
+            return cascadeFile;
+        }
+
+        // Write to a temporary file first, so that an interrupted
+        // copy is never mistaken for a complete one.
+        final File tempFile = new File(mCascadeDir, name + ".tmp");
+        final InputStream is =
+                mContext.getResources().openRawResource(resourceId);
+        try {
+            final FileOutputStream os = new FileOutputStream(tempFile);
+            try {
+                final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, bytesRead);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        if (!tempFile.renameTo(cascadeFile)) {
+            throw new IOException("Failed to rename " + tempFile +
+                    " to " + cascadeFile);
+        }
+
+        final FileWriter stampWriter = new FileWriter(stampFile);
+        try {
+            stampWriter.write(mVersionStamp + "\n" +
+                    cascadeFile.length());
+        } finally {
+            stampWriter.close();
+        }
+        Log.i(TAG, "Extracted cascade to " +
+                cascadeFile.getAbsolutePath());
+        return cascadeFile;
+    }
+
+    // Returns the version in a stamp file if the stamp also records
+    // the given file length, or null otherwise.
+    private static String readStamp(final File stampFile,
+            final long fileLength) {
+        if (!stampFile.exists()) {
+            return null;
+        }
+        try {
+            final BufferedReader reader =
+                    new BufferedReader(new FileReader(stampFile));
+            try {
+                final String version = reader.readLine();
+                final String length = reader.readLine();
+                if (length == null ||
+                        Long.parseLong(length) != fileLength) {
+                    return null;
+                }
+                return version;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static IOException toIOException(final int resourceId,
+            final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException)cause;
+        }
+        final IOException ioException = new IOException(
+                "Failed to load cascade " + resourceId);
+        ioException.initCause(cause);
+        return ioException;
+    }
+}
@@ -0,0 +1,147 @@
+package com.nummist.goldgesture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The characters of the guessing game and the yes-or-no questions
+// that tell them apart, parsed from a text file into a compact table
+// for a QuestionEngine.
+//
+// The file has one entry per line. "question name" declares a
+// question, and "character name question..." declares a character
+// and the questions to which the character would answer yes. Blank
+// lines and lines starting with # are ignored. Questions are asked in
+// the order in which they are declared when several split the
+// candidates equally well.
+//
+// For each question, the table holds a bitset of the characters who
+// would answer yes, so that an answer eliminates candidates a word of
+// 64 characters at a time.
+public final class CharacterTable {
+
+    private static final String QUESTION = "question";
+    private static final String CHARACTER = "character";
+
+    final String[] mQuestions;
+    final String[] mCharacters;
+
+    // The number of words in a bitset of characters.
+    final int mWordCount;
+
+    // Per question, the bitset of the characters who would answer
+    // yes. The bitset of question q starts at q * mWordCount.
+    final long[] mYesBits;
+
+    private CharacterTable(final List<String> questions,
+            final List<String> characters,
+            final List<int[]> characterQuestions) {
+        mQuestions = questions.toArray(new String[questions.size()]);
+        mCharacters = characters.toArray(new String[characters.size()]);
+        mWordCount = (mCharacters.length + 63) >>> 6;
+        mYesBits = new long[mQuestions.length * mWordCount];
+        for (int c = 0; c < mCharacters.length; c++) {
+            final long bit = 1L << c;
+            for (int q : characterQuestions.get(c)) {
+                mYesBits[q * mWordCount + (c >>> 6)] |= bit;
+            }
+        }
+    }
+
+    public int getQuestionCount() {
+        return mQuestions.length;
+    }
+
+    public int getCharacterCount() {
+        return mCharacters.length;
+    }
+
+    public String getQuestion(final int question) {
+        return mQuestions[question];
+    }
+
+    public String getCharacter(final int character) {
+        return mCharacters[character];
+    }
+
+    // Returns whether a character would answer yes to a question.
+    public boolean hasYes(final int character, final int question) {
+        return (mYesBits[question * mWordCount + (character >>> 6)] &
+                (1L << character)) != 0L;
+    }
+
+    // Reads a table from a text file in UTF-8.
+    public static CharacterTable parse(final InputStream input)
+            throws IOException {
+        final List<String> questions = new ArrayList<String>();
+        final Map<String, Integer> questionIndices =
+                new HashMap<String, Integer>();
+        final List<String> characters = new ArrayList<String>();
+        final Map<String, Integer> characterIndices =
+                new HashMap<String, Integer>();
+        final List<String[]> characterLines = new ArrayList<String[]>();
+        final List<Integer> characterLineNumbers = new ArrayList<Integer>();
+
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, "UTF-8"));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            final String[] tokens = line.split("\\s+");
+            if (QUESTION.equals(tokens[0]) && tokens.length == 2) {
+                if (questionIndices.containsKey(tokens[1])) {
+                    throw new IOException("Duplicate question on line " +
+                            lineNumber + ": " + tokens[1]);
+                }
+                questionIndices.put(tokens[1], questions.size());
+                questions.add(tokens[1]);
+            } else if (CHARACTER.equals(tokens[0]) && tokens.length >= 2) {
+                if (characterIndices.containsKey(tokens[1])) {
+                    throw new IOException("Duplicate character on line " +
+                            lineNumber + ": " + tokens[1]);
+                }
+                characterIndices.put(tokens[1], characters.size());
+                characters.add(tokens[1]);
+                characterLines.add(tokens);
+                characterLineNumbers.add(lineNumber);
+            } else {
+                throw new IOException("Malformed line " + lineNumber +
+                        ": " + line);
+            }
+        }
+        if (characters.isEmpty()) {
+            throw new IOException("The table has no characters");
+        }
+
+        // Resolve the questions of each character, which may be
+        // declared after it.
+        final List<int[]> characterQuestions =
+                new ArrayList<int[]>(characters.size());
+        for (int c = 0; c < characterLines.size(); c++) {
+            final String[] tokens = characterLines.get(c);
+            final int[] yes = new int[tokens.length - 2];
+            for (int i = 0; i < yes.length; i++) {
+                final Integer question = questionIndices.get(tokens[i + 2]);
+                if (question == null) {
+                    throw new IOException("Unknown question on line " +
+                            characterLineNumbers.get(c) + ": " +
+                            tokens[i + 2]);
+                }
+                yes[i] = question;
+            }
+            characterQuestions.add(yes);
+        }
+        return new CharacterTable(questions, characters,
+                characterQuestions);
+    }
+}
@@ -0,0 +1,216 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Rect;
+
+// Smooths detections over time. Each face, eye and mouth is followed
+// by an alpha-beta filter that is corrected whenever the object is
+// detected again and that predicts it in between, so that boxes
+// neither jitter nor vanish when a cascade misses a frame or runs
+// less often than frames are drawn.
+//
+// Measurements and predictions may come from different threads.
+public final class DetectionFilter {
+
+    // The filter gains for positions and sizes. Sizes change more
+    // slowly than positions, so they are smoothed more.
+    private static final double POSITION_ALPHA = 0.6;
+    private static final double POSITION_BETA = 0.2;
+    private static final double SIZE_ALPHA = 0.3;
+    private static final double SIZE_BETA = 0.05;
+
+    // The farthest that a detection's center may be from a filtered
+    // box's predicted center to correct it, relative to the box's
+    // larger side.
+    private static final double MAX_CENTER_DISTANCE_PROPORTIONAL = 0.5;
+
+    // The number of measurement frames in a row in which a box may be
+    // missed before it is dropped.
+    private static final int MAX_MISSES = 3;
+
+    // The furthest that a box is predicted past its last
+    // measurement.
+    private static final long MAX_PREDICTION_MICROS = 500000L;
+
+    private final BoxFilter mFaces = new BoxFilter(
+            POSITION_ALPHA, POSITION_BETA, SIZE_ALPHA, SIZE_BETA);
+    private final BoxFilter mEyes = new BoxFilter(
+            POSITION_ALPHA, POSITION_BETA, SIZE_ALPHA, SIZE_BETA);
+    private final BoxFilter mMouths = new BoxFilter(
+            POSITION_ALPHA, POSITION_BETA, SIZE_ALPHA, SIZE_BETA);
+
+    // The filtered face that each measured face corrected.
+    private int[] mFaceBoxes = new int[8];
+
+    // A rect that is reused for measurements and predictions.
+    private final Rect mRect = new Rect();
+
+    public synchronized void reset() {
+        mFaces.clear();
+        mEyes.clear();
+        mMouths.clear();
+    }
+
+    // Corrects the filtered boxes with the detections of a frame that
+    // was taken at the given time. Detections that match no filtered
+    // box start new ones, and filtered boxes that have been missed
+    // too often are dropped.
+    public synchronized void update(final FaceDetections measured,
+            final long timeMicros) {
+
+        final int faceCount = measured.getFaceCount();
+        if (mFaceBoxes.length < faceCount) {
+            mFaceBoxes = new int[Math.max(faceCount,
+                    2 * mFaceBoxes.length)];
+        }
+
+        mFaces.beginMatching();
+        for (int i = 0; i < faceCount; i++) {
+            measured.getFace(i, mRect);
+            mFaceBoxes[i] = matchFace(measured, measured.getFaceId(i),
+                    mRect, timeMicros);
+        }
+
+        mEyes.beginMatching();
+        mMouths.beginMatching();
+        for (int i = 0; i < faceCount; i++) {
+            final int face = mFaceBoxes[i];
+            final int eyeCount = measured.getEyeCount(i);
+            for (int j = 0; j < eyeCount; j++) {
+                measured.getEye(i, j, mRect);
+                match(mEyes, face, mRect, timeMicros, null);
+            }
+            final int mouthCount = measured.getMouthCount(i);
+            for (int m = 0; m < mouthCount; m++) {
+                measured.getMouth(i, m, mRect);
+                match(mMouths, face, mRect, timeMicros, null);
+            }
+        }
+
+        // Drop the parts that were missed too often, and then the
+        // faces, along with their parts.
+        dropMissed(mEyes);
+        dropMissed(mMouths);
+        for (int face = mFaces.getCount() - 1; face >= 0; face--) {
+            if (!mFaces.isMatched(face) &&
+                    mFaces.miss(face) > MAX_MISSES) {
+                mEyes.removeChildren(face);
+                mMouths.removeChildren(face);
+                final int movedFace = mFaces.remove(face);
+                mEyes.replaceParent(movedFace, face);
+                mMouths.replaceParent(movedFace, face);
+            }
+        }
+    }
+
+    // Writes the filtered boxes, as predicted at the given time, into
+    // the given detections.
+    public synchronized void predict(final long timeMicros,
+            final FaceDetections predicted) {
+        predicted.clear();
+        final int faceCount = mFaces.getCount();
+        for (int face = 0; face < faceCount; face++) {
+            mFaces.predict(face, timeMicros, MAX_PREDICTION_MICROS,
+                    mRect);
+            predicted.addFace(mRect.x, mRect.y, mRect.width,
+                    mRect.height);
+            predicted.setFaceId(face, mFaces.getId(face));
+        }
+        final int eyeCount = mEyes.getCount();
+        for (int eye = 0; eye < eyeCount; eye++) {
+            mEyes.predict(eye, timeMicros, MAX_PREDICTION_MICROS, mRect);
+            predicted.addEye(mEyes.getParent(eye), mRect.x, mRect.y,
+                    mRect.width, mRect.height);
+        }
+        final int mouthCount = mMouths.getCount();
+        for (int mouth = 0; mouth < mouthCount; mouth++) {
+            mMouths.predict(mouth, timeMicros, MAX_PREDICTION_MICROS,
+                    mRect);
+            predicted.addMouth(mMouths.getParent(mouth), mRect.x,
+                    mRect.y, mRect.width, mRect.height);
+        }
+    }
+
+    // Corrects the face box that follows the measured face's track,
+    // if the face is tracked and has a box, or else the nearest
+    // unmatched face box that follows no other measured face's track.
+    // Returns the box, which takes the track's ID.
+    private int matchFace(final FaceDetections measured, final int id,
+            final Rect rect, final long timeMicros) {
+        int box = -1;
+        if (id >= 0) {
+            final int count = mFaces.getCount();
+            for (int i = 0; i < count; i++) {
+                if (mFaces.getId(i) == id && !mFaces.isMatched(i)) {
+                    box = i;
+                    break;
+                }
+            }
+        }
+        if (box >= 0) {
+            mFaces.correct(box, rect, timeMicros);
+        } else {
+            box = match(mFaces, -1, rect, timeMicros, measured);
+        }
+        mFaces.setId(box, id);
+        return box;
+    }
+
+    // Corrects the nearest unmatched box of the given parent with a
+    // measured rect, or starts a new box if none is near enough.
+    // Boxes that follow the track of any of the given measured faces
+    // are left for those faces, so that nearby faces never take each
+    // other's boxes. Returns the box.
+    private static int match(final BoxFilter boxes, final int parent,
+            final Rect rect, final long timeMicros,
+            final FaceDetections measured) {
+        int nearestBox = -1;
+        double nearestDistanceSquared = Double.MAX_VALUE;
+        final int count = boxes.getCount();
+        for (int box = 0; box < count; box++) {
+            if (boxes.isMatched(box) || boxes.getParent(box) != parent ||
+                    (measured != null &&
+                    hasFaceId(measured, boxes.getId(box)))) {
+                continue;
+            }
+            final double maxDistance =
+                    MAX_CENTER_DISTANCE_PROPORTIONAL *
+                    boxes.getLargerSide(box);
+            final double distanceSquared =
+                    boxes.getCenterDistanceSquared(box, rect, timeMicros);
+            if (distanceSquared <= maxDistance * maxDistance &&
+                    distanceSquared < nearestDistanceSquared) {
+                nearestBox = box;
+                nearestDistanceSquared = distanceSquared;
+            }
+        }
+        if (nearestBox < 0) {
+            return boxes.add(parent, rect, timeMicros);
+        }
+        boxes.correct(nearestBox, rect, timeMicros);
+        return nearestBox;
+    }
+
+    // Returns whether any of the detections' faces has the given
+    // track ID.
+    private static boolean hasFaceId(final FaceDetections detections,
+            final int id) {
+        if (id < 0) {
+            return false;
+        }
+        final int faceCount = detections.getFaceCount();
+        for (int i = 0; i < faceCount; i++) {
+            if (detections.getFaceId(i) == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void dropMissed(final BoxFilter boxes) {
+        for (int box = boxes.getCount() - 1; box >= 0; box--) {
+            if (!boxes.isMatched(box) && boxes.miss(box) > MAX_MISSES) {
+                boxes.remove(box);
+            }
+        }
+    }
+}
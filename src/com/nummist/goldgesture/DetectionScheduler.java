@@ -0,0 +1,271 @@
+package com.nummist.goldgesture;
+
+// Decides, frame by frame, how much detection work fits in a target
+// frame time. From the measured cost of each kind of frame, it
+// chooses whether to run the face and part cascades, only the face
+// cascade, or only prediction (following or holding the last
+// detections). On top of that, it trades detection quality for speed
+// by moving the face detection scale and the face cascade's scale
+// factor within configured limits.
+//
+// The scheduler has no clock of its own. It only sees the durations
+// that it is given, so replaying the same durations reproduces the
+// same decisions.
+public final class DetectionScheduler {
+
+    public enum Plan {
+        // Follow the tracked face, or hold the last detections.
+        PREDICT,
+        // Search for faces but not their parts.
+        DETECT_FACES,
+        // Search for faces and their parts.
+        DETECT_ALL
+    }
+
+    private static final Plan[] PLANS = Plan.values();
+
+    // The weight of the newest duration in each running cost.
+    private static final double COST_SMOOTHING = 0.2;
+
+    // The most spare or overrun time that is carried between frames,
+    // in target frame times.
+    private static final double MAX_SLACK_FRAMES = 2.0;
+
+    // The bounds on the staleness of detections, in frames. A face
+    // search runs at least this often even when a face is being
+    // followed, and parts are searched at least this often.
+    private static final int MAX_FRAMES_BETWEEN_DETECTIONS = 30;
+    private static final int MAX_FRAMES_BETWEEN_PART_DETECTIONS = 10;
+
+    // Parameters for adapting the detection quality. Quality drops
+    // while detection frames cost more than the target, and rises
+    // while they cost less than the headroom portion of it. After a
+    // change, several detection frames are measured before the next.
+    private static final double HEADROOM_PROPORTIONAL = 0.6;
+    private static final double SCALE_STEP = 0.8;
+    private static final double SCALE_FACTOR_STEP = 0.05;
+    private static final int ADAPTATION_COOLDOWN_DETECTIONS = 4;
+
+    private final long mTargetFrameMicros;
+    private final double mMinFaceDetectionScale;
+    private final double mMaxFaceDetectionScale;
+    private final double mMinFaceScaleFactor;
+    private final double mMaxFaceScaleFactor;
+
+    // The running cost of each kind of frame, in microseconds, and
+    // whether it has been measured yet.
+    private final double[] mCostMicros = new double[PLANS.length];
+    private final boolean[] mCostMeasured = new boolean[PLANS.length];
+
+    // The time left over (or, if negative, overrun) by earlier
+    // frames.
+    private double mSlackMicros;
+
+    private int mFramesSinceDetection;
+    private int mFramesSincePartDetection;
+    private int mDetectionsSinceAdaptation;
+
+    private double mFaceDetectionScale;
+    private double mFaceScaleFactor;
+
+    // Counts of the frames given each plan.
+    private final long[] mPlanCounts = new long[PLANS.length];
+
+    public DetectionScheduler(final long targetFrameMicros,
+            final double minFaceDetectionScale,
+            final double maxFaceDetectionScale,
+            final double minFaceScaleFactor,
+            final double maxFaceScaleFactor) {
+        if (targetFrameMicros <= 0L) {
+            throw new IllegalArgumentException(
+                    "Target frame time must be positive: " +
+                    targetFrameMicros);
+        }
+        if (minFaceDetectionScale <= 0.0 ||
+                minFaceDetectionScale > maxFaceDetectionScale ||
+                maxFaceDetectionScale > 1.0) {
+            throw new IllegalArgumentException(
+                    "Face detection scales must be ordered in (0, 1]: " +
+                    minFaceDetectionScale + ", " + maxFaceDetectionScale);
+        }
+        if (minFaceScaleFactor <= 1.0 ||
+                minFaceScaleFactor > maxFaceScaleFactor) {
+            throw new IllegalArgumentException(
+                    "Face scale factors must be ordered above 1: " +
+                    minFaceScaleFactor + ", " + maxFaceScaleFactor);
+        }
+        mTargetFrameMicros = targetFrameMicros;
+        mMinFaceDetectionScale = minFaceDetectionScale;
+        mMaxFaceDetectionScale = maxFaceDetectionScale;
+        mMinFaceScaleFactor = minFaceScaleFactor;
+        mMaxFaceScaleFactor = maxFaceScaleFactor;
+        reset(maxFaceDetectionScale, minFaceScaleFactor);
+    }
+
+    // Forgets all measurements and starts again from the given
+    // detection quality, clamped to the limits.
+    public void reset(final double faceDetectionScale,
+            final double faceScaleFactor) {
+        for (int i = 0; i < PLANS.length; i++) {
+            mCostMicros[i] = 0.0;
+            mCostMeasured[i] = false;
+            mPlanCounts[i] = 0L;
+        }
+        mSlackMicros = 0.0;
+        // Detect everything on the first frame.
+        mFramesSinceDetection = MAX_FRAMES_BETWEEN_DETECTIONS;
+        mFramesSincePartDetection = MAX_FRAMES_BETWEEN_PART_DETECTIONS;
+        mDetectionsSinceAdaptation = 0;
+        mFaceDetectionScale = clamp(faceDetectionScale,
+                mMinFaceDetectionScale, mMaxFaceDetectionScale);
+        mFaceScaleFactor = clamp(faceScaleFactor,
+                mMinFaceScaleFactor, mMaxFaceScaleFactor);
+    }
+
+    public long getTargetFrameMicros() {
+        return mTargetFrameMicros;
+    }
+
+    public double getFaceDetectionScale() {
+        return mFaceDetectionScale;
+    }
+
+    public double getFaceScaleFactor() {
+        return mFaceScaleFactor;
+    }
+
+    // Returns the running cost of a kind of frame, or 0 if no such
+    // frame has been measured.
+    public double getCostMicros(final Plan plan) {
+        return mCostMicros[plan.ordinal()];
+    }
+
+    public long getPlanCount(final Plan plan) {
+        return mPlanCounts[plan.ordinal()];
+    }
+
+    // Chooses the work for the next frame. A face can be predicted
+    // if one is being followed; otherwise prediction only holds the
+    // last detections.
+    public Plan plan(final boolean canPredictFace) {
+        final boolean detectionDue =
+                mFramesSinceDetection >= MAX_FRAMES_BETWEEN_DETECTIONS;
+        final boolean detecting;
+        if (detectionDue) {
+            detecting = true;
+        } else if (canPredictFace) {
+            // Search again only with time saved up for it.
+            detecting = mSlackMicros >= estimateFaceDetectionCost();
+        } else {
+            // Nothing is followed, so search unless earlier frames
+            // overran.
+            detecting = mSlackMicros >= 0.0;
+        }
+        if (!detecting) {
+            return Plan.PREDICT;
+        }
+
+        final boolean partsDue = mFramesSincePartDetection >=
+                MAX_FRAMES_BETWEEN_PART_DETECTIONS;
+        if (partsDue || fits(Plan.DETECT_ALL)) {
+            return Plan.DETECT_ALL;
+        }
+        return Plan.DETECT_FACES;
+    }
+
+    // Records how long a frame took with the given plan.
+    public void finishFrame(final Plan plan, final long elapsedMicros) {
+        final int i = plan.ordinal();
+        if (mCostMeasured[i]) {
+            mCostMicros[i] += COST_SMOOTHING *
+                    (elapsedMicros - mCostMicros[i]);
+        } else {
+            mCostMicros[i] = elapsedMicros;
+            mCostMeasured[i] = true;
+        }
+        mPlanCounts[i]++;
+
+        final double maxSlackMicros =
+                MAX_SLACK_FRAMES * mTargetFrameMicros;
+        mSlackMicros = clamp(
+                mSlackMicros + mTargetFrameMicros - elapsedMicros,
+                -maxSlackMicros, maxSlackMicros);
+
+        if (plan == Plan.PREDICT) {
+            mFramesSinceDetection++;
+            mFramesSincePartDetection++;
+            return;
+        }
+        mFramesSinceDetection = 0;
+        if (plan == Plan.DETECT_ALL) {
+            mFramesSincePartDetection = 0;
+        } else {
+            mFramesSincePartDetection++;
+        }
+        adaptQuality(mCostMicros[i]);
+    }
+
+    // Returns the expected cost of the cheapest frame that searches
+    // for faces, or infinity if none has been measured.
+    private double estimateFaceDetectionCost() {
+        if (mCostMeasured[Plan.DETECT_FACES.ordinal()]) {
+            return mCostMicros[Plan.DETECT_FACES.ordinal()];
+        } else if (mCostMeasured[Plan.DETECT_ALL.ordinal()]) {
+            return mCostMicros[Plan.DETECT_ALL.ordinal()];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // Whether a kind of frame is expected to fit in the target frame
+    // time and any saved time. Unmeasured frames are tried.
+    private boolean fits(final Plan plan) {
+        final int i = plan.ordinal();
+        return !mCostMeasured[i] ||
+                mCostMicros[i] <= mTargetFrameMicros +
+                Math.max(mSlackMicros, 0.0);
+    }
+
+    // Lowers the detection quality, first by coarsening the scale
+    // steps and then by shrinking the image, while detection frames
+    // overrun, and raises it in the reverse order while they leave
+    // headroom.
+    private void adaptQuality(final double detectionCostMicros) {
+        mDetectionsSinceAdaptation++;
+        if (mDetectionsSinceAdaptation < ADAPTATION_COOLDOWN_DETECTIONS) {
+            return;
+        }
+        final double faceDetectionScale = mFaceDetectionScale;
+        final double faceScaleFactor = mFaceScaleFactor;
+        if (detectionCostMicros > mTargetFrameMicros) {
+            if (mFaceScaleFactor < mMaxFaceScaleFactor) {
+                mFaceScaleFactor = Math.min(
+                        mFaceScaleFactor + SCALE_FACTOR_STEP,
+                        mMaxFaceScaleFactor);
+            } else {
+                mFaceDetectionScale = Math.max(
+                        mFaceDetectionScale * SCALE_STEP,
+                        mMinFaceDetectionScale);
+            }
+        } else if (detectionCostMicros <
+                HEADROOM_PROPORTIONAL * mTargetFrameMicros) {
+            if (mFaceDetectionScale < mMaxFaceDetectionScale) {
+                mFaceDetectionScale = Math.min(
+                        mFaceDetectionScale / SCALE_STEP,
+                        mMaxFaceDetectionScale);
+            } else {
+                mFaceScaleFactor = Math.max(
+                        mFaceScaleFactor - SCALE_FACTOR_STEP,
+                        mMinFaceScaleFactor);
+            }
+        }
+        if (mFaceDetectionScale != faceDetectionScale ||
+                mFaceScaleFactor != faceScaleFactor) {
+            mDetectionsSinceAdaptation = 0;
+        }
+    }
+
+    private static double clamp(final double value, final double min,
+            final double max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
@@ -0,0 +1,148 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Rect;
+
+public final class FaceDetections {
+
+    private static final int RECT_SIZE = 4;
+    private static final int INITIAL_FACE_CAPACITY = 4;
+
+    // The detected faces and, for each face, the eyes and mouths
+    // that lie inside it. All rectangles are in the coordinates of
+    // the gray image in which they were found, which is oriented
+    // (transposed and flipped) unless the pipeline leaves frames as
+    // the camera delivers them. Faces are
+    // stored as x, y, width and height in a primitive array that is
+    // reused from frame to frame, along with each face's track ID,
+    // which is -1 for a face that is not tracked.
+    private int mFaceCount;
+    private int[] mFaces = new int[INITIAL_FACE_CAPACITY * RECT_SIZE];
+    private int[] mFaceIds = new int[INITIAL_FACE_CAPACITY];
+    private final FaceParts mEyes = new FaceParts(INITIAL_FACE_CAPACITY);
+    private final FaceParts mMouths =
+            new FaceParts(INITIAL_FACE_CAPACITY);
+
+    public int getFaceCount() {
+        return mFaceCount;
+    }
+
+    // Copies a face into the given rect, so that callers can reuse
+    // one rect for every face.
+    public void getFace(final int face, final Rect rect) {
+        final int i = face * RECT_SIZE;
+        rect.x = mFaces[i];
+        rect.y = mFaces[i + 1];
+        rect.width = mFaces[i + 2];
+        rect.height = mFaces[i + 3];
+    }
+
+    // Returns the ID of the track that the face belongs to, which is
+    // the same for the same face in every frame, or -1 if faces are
+    // not tracked.
+    public int getFaceId(final int face) {
+        return mFaceIds[face];
+    }
+
+    public int getEyeCount(final int face) {
+        return mEyes.getCount(face);
+    }
+
+    public void getEye(final int face, final int eye, final Rect rect) {
+        mEyes.get(face, eye, rect);
+    }
+
+    public int getMouthCount(final int face) {
+        return mMouths.getCount(face);
+    }
+
+    public void getMouth(final int face, final int mouth,
+            final Rect rect) {
+        mMouths.get(face, mouth, rect);
+    }
+
+    // Copies a face into a rect array at the given offset.
+    void getFace(final int face, final int[] rects, final int offset) {
+        System.arraycopy(mFaces, face * RECT_SIZE, rects, offset,
+                RECT_SIZE);
+    }
+
+    // Copies a face's eyes or mouths into a rect array, and returns
+    // how many were copied.
+    int getEyes(final int face, final int[] rects) {
+        return mEyes.get(face, rects);
+    }
+
+    int getMouths(final int face, final int[] rects) {
+        return mMouths.get(face, rects);
+    }
+
+    void setFaceId(final int face, final int id) {
+        mFaceIds[face] = id;
+    }
+
+    void clear() {
+        mFaceCount = 0;
+    }
+
+    // Adds a face and returns its index, to which eyes and mouths
+    // may then be added. Once all the faces have been added, eyes
+    // and mouths may be added from two different threads.
+    int addFace(final int x, final int y, final int width,
+            final int height) {
+        final int face = mFaceCount;
+        if ((face + 1) * RECT_SIZE > mFaces.length) {
+            final int[] faces = new int[2 * mFaces.length];
+            System.arraycopy(mFaces, 0, faces, 0, mFaces.length);
+            mFaces = faces;
+            final int[] faceIds = new int[2 * mFaceIds.length];
+            System.arraycopy(mFaceIds, 0, faceIds, 0, mFaceIds.length);
+            mFaceIds = faceIds;
+        }
+        mEyes.ensureFaceCapacity(face + 1);
+        mMouths.ensureFaceCapacity(face + 1);
+        final int i = face * RECT_SIZE;
+        mFaces[i] = x;
+        mFaces[i + 1] = y;
+        mFaces[i + 2] = width;
+        mFaces[i + 3] = height;
+        mFaceIds[face] = -1;
+        mEyes.clearFace(face);
+        mMouths.clearFace(face);
+        mFaceCount = face + 1;
+        return face;
+    }
+
+    void addEye(final int face, final int x, final int y,
+            final int width, final int height) {
+        mEyes.add(face, x, y, width, height);
+    }
+
+    void addMouth(final int face, final int x, final int y,
+            final int width, final int height) {
+        mMouths.add(face, x, y, width, height);
+    }
+
+    // Replaces these detections with copies of the given ones.
+    void copyFrom(final FaceDetections other) {
+        if (mFaces.length < other.mFaceCount * RECT_SIZE) {
+            mFaces = new int[other.mFaces.length];
+            mFaceIds = new int[other.mFaceIds.length];
+        }
+        System.arraycopy(other.mFaces, 0, mFaces, 0,
+                other.mFaceCount * RECT_SIZE);
+        System.arraycopy(other.mFaceIds, 0, mFaceIds, 0,
+                other.mFaceCount);
+        mEyes.copyFrom(other.mEyes, other.mFaceCount);
+        mMouths.copyFrom(other.mMouths, other.mFaceCount);
+        mFaceCount = other.mFaceCount;
+    }
+
+    // Moves one face and its parts by the given displacement.
+    void offsetFace(final int face, final int dx, final int dy) {
+        final int i = face * RECT_SIZE;
+        mFaces[i] += dx;
+        mFaces[i + 1] += dy;
+        mEyes.offsetFace(face, dx, dy);
+        mMouths.offsetFace(face, dx, dy);
+    }
+}
@@ -0,0 +1,111 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Rect;
+
+// The parts (eyes or mouths) of each face, stored as x, y, width
+// and height in a fixed number of slots per face. The arrays only
+// grow, so once they are large enough nothing more is allocated.
+final class FaceParts {
+
+    private static final int RECT_SIZE = 4;
+    private static final int INITIAL_SLOTS_PER_FACE = 4;
+
+    private int mFaceCapacity;
+    private int mSlotsPerFace;
+    private int[] mCounts;
+    private int[] mRects;
+
+    FaceParts(final int faceCapacity) {
+        mFaceCapacity = faceCapacity;
+        mSlotsPerFace = INITIAL_SLOTS_PER_FACE;
+        mCounts = new int[faceCapacity];
+        mRects = new int[faceCapacity * mSlotsPerFace * RECT_SIZE];
+    }
+
+    void ensureFaceCapacity(final int faceCapacity) {
+        if (faceCapacity > mFaceCapacity) {
+            resize(Math.max(faceCapacity, 2 * mFaceCapacity),
+                    mSlotsPerFace);
+        }
+    }
+
+    void clearFace(final int face) {
+        mCounts[face] = 0;
+    }
+
+    int getCount(final int face) {
+        return mCounts[face];
+    }
+
+    void get(final int face, final int part, final Rect rect) {
+        final int i = (face * mSlotsPerFace + part) * RECT_SIZE;
+        rect.x = mRects[i];
+        rect.y = mRects[i + 1];
+        rect.width = mRects[i + 2];
+        rect.height = mRects[i + 3];
+    }
+
+    // Copies a face's parts into a rect array, and returns how many
+    // were copied.
+    int get(final int face, final int[] rects) {
+        final int count = Math.min(mCounts[face], rects.length / RECT_SIZE);
+        System.arraycopy(mRects, face * mSlotsPerFace * RECT_SIZE, rects,
+                0, count * RECT_SIZE);
+        return count;
+    }
+
+    void add(final int face, final int x, final int y,
+            final int width, final int height) {
+        final int part = mCounts[face];
+        if (part == mSlotsPerFace) {
+            resize(mFaceCapacity, 2 * mSlotsPerFace);
+        }
+        final int i = (face * mSlotsPerFace + part) * RECT_SIZE;
+        mRects[i] = x;
+        mRects[i + 1] = y;
+        mRects[i + 2] = width;
+        mRects[i + 3] = height;
+        mCounts[face] = part + 1;
+    }
+
+    void copyFrom(final FaceParts other, final int faceCount) {
+        if (mSlotsPerFace != other.mSlotsPerFace ||
+                mFaceCapacity < faceCount) {
+            mFaceCapacity = Math.max(mFaceCapacity, faceCount);
+            mSlotsPerFace = other.mSlotsPerFace;
+            mCounts = new int[mFaceCapacity];
+            mRects = new int[
+                    mFaceCapacity * mSlotsPerFace * RECT_SIZE];
+        }
+        System.arraycopy(other.mCounts, 0, mCounts, 0, faceCount);
+        System.arraycopy(other.mRects, 0, mRects, 0,
+                faceCount * mSlotsPerFace * RECT_SIZE);
+    }
+
+    void offsetFace(final int face, final int dx, final int dy) {
+        int i = face * mSlotsPerFace * RECT_SIZE;
+        for (int part = 0; part < mCounts[face]; part++) {
+            mRects[i] += dx;
+            mRects[i + 1] += dy;
+            i += RECT_SIZE;
+        }
+    }
+
+    private void resize(final int faceCapacity,
+            final int slotsPerFace) {
+        final int[] counts = new int[faceCapacity];
+        final int[] rects =
+                new int[faceCapacity * slotsPerFace * RECT_SIZE];
+        System.arraycopy(mCounts, 0, counts, 0, mFaceCapacity);
+        for (int face = 0; face < mFaceCapacity; face++) {
+            System.arraycopy(mRects,
+                    face * mSlotsPerFace * RECT_SIZE, rects,
+                    face * slotsPerFace * RECT_SIZE,
+                    mCounts[face] * RECT_SIZE);
+        }
+        mFaceCapacity = faceCapacity;
+        mSlotsPerFace = slotsPerFace;
+        mCounts = counts;
+        mRects = rects;
+    }
+}
@@ -0,0 +1,1667 @@
+package com.nummist.goldgesture;
+
+import java.nio.ByteBuffer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+import org.opencv.video.Video;
+
+import com.nummist.goldgesture.DetectionScheduler.Plan;
+import com.nummist.goldgesture.StageProfiler.Stage;
+
+// The frame-processing engine behind CameraActivity. It uses only
+// OpenCV types, so frames can also be replayed through it on a
+// desktop JVM.
+//
+// Once its buffers have grown to fit the scene, processing a frame
+// allocates nothing on the Java heap: detections are read into
+// preallocated primitive arrays, and points, sizes and rects are
+// reused.
+public final class FacePipeline {
+
+    // Parameters for face detection.
+    private static final double SCALE_FACTOR = 1.2;
+    private static final int MIN_NEIGHBORS = 3;
+    private static final int FLAGS = Objdetect.CASCADE_SCALE_IMAGE;
+    private static final double MIN_SIZE_PROPORTIONAL = 0.25;
+    private static final double MAX_SIZE_PROPORTIONAL = 1.0;
+
+    // The most detections that are read from one cascade search.
+    // Any more are ignored.
+    private static final int MAX_DETECTIONS = 64;
+    private static final int RECT_SIZE = 4;
+
+    // The side of the face cascade's base window, and the smallest
+    // scale at which faces are searched. A face search on a reduced
+    // image finds the same faces as long as the minimum face size
+    // still covers the base window.
+    private static final int FACE_WINDOW_SIDE = 20;
+    private static final double MIN_FACE_DETECTION_SCALE = 0.25;
+
+    // The margin around a previous face that is searched for it
+    // again, and the range of sizes in which it is searched, both
+    // relative to the previous face's size.
+    private static final double FACE_WINDOW_PADDING_PROPORTIONAL = 0.5;
+    private static final double FACE_WINDOW_MIN_SIZE_PROPORTIONAL = 0.8;
+    private static final double FACE_WINDOW_MAX_SIZE_PROPORTIONAL = 1.25;
+
+    // The portions of the face that are searched for eyes and
+    // mouths when the part search is constrained to faces. Each
+    // region is a little larger than the part of the face in which
+    // a part is accepted, so that whole parts fit inside it.
+    private static final double EYES_REGION_BOTTOM_PROPORTIONAL = 0.6;
+    private static final double MOUTH_REGION_TOP_PROPORTIONAL = 0.3;
+    private static final double MOUTH_REGION_BOTTOM_PROPORTIONAL = 1.2;
+
+    // The portion of the face that is excluded from feature
+    // selection on each side. What remains is the face's mask.
+    // (We want to exclude boundary regions containing background.)
+    private static final double MASK_PADDING_PROPORTIONAL = 0.15;
+
+    // Parameters for face tracking.
+    static final int MIN_FEATURES = 10;
+    static final int MAX_FEATURES = 80;
+    static final double MIN_FEATURE_QUALITY = 0.05;
+    static final double MIN_FEATURE_DISTANCE = 4.0;
+    static final float MAX_FEATURE_ERROR = 200f;
+    private static final int FEATURE_BLOCK_SIZE = 3;
+    private static final double HARRIS_K = 0.04;
+
+    // While some faces are tracked and others have too little texture
+    // to be, the frames between detections of the untracked faces,
+    // when no scheduler decides when to detect.
+    private static final int UNTRACKED_FACE_DETECTION_INTERVAL = 10;
+
+    // The dimensions of the image before orientation.
+    private final double mImageWidth;
+    private final double mImageHeight;
+
+    // Whether frames are rotated to portrait before detection. If
+    // not, detection runs on the camera's own frames, and the rects
+    // are already in the coordinates of the frame.
+    private boolean mOrientingFrames = true;
+
+    // The current gray image before orientation, when it is
+    // converted from RGBA or read from a byte array or buffer. A
+    // buffer is copied in through a direct view of the image's
+    // pixels, or if none can be made, through an array.
+    private final Mat mGrayUnoriented;
+    private ByteBuffer mGrayUnorientedView;
+    private long mGrayUnorientedAddress;
+    private byte[] mGrayUnorientedBytes;
+
+    // The current and previous gray images, oriented. They are
+    // equalized whole, unless only the searched regions are.
+    private Mat mGray;
+    private Mat mLastGray;
+
+    // An optional equalizer of only the regions that are searched.
+    // Copies of the regions are equalized as they are made, so the
+    // cost of equalization scales with the area that is searched.
+    // The whole current image is only equalized, into a copy, for
+    // the searches that scan all of it, and the buffers are for
+    // adaptive equalization on this thread.
+    private RegionEqualizer mEqualizer;
+    private final Mat mEqualizedFrame = new Mat();
+    private boolean mFrameEqualized;
+    private final RegionEqualizer.TileBuffers mEqualizeBuffers =
+            new RegionEqualizer.TileBuffers();
+
+    // The whole current image as the full-frame part searches see it.
+    // It is set before they are posted.
+    private Mat mSearchGray;
+
+    // The face detector, more detection parameters, and detected
+    // faces, which are read into a primitive array.
+    private final ObjectDetector mFaceDetector;
+    private final Size mMinSize;
+    private final Size mMaxSize;
+    private final int[] mFaceRects = new int[MAX_DETECTIONS * RECT_SIZE];
+
+    // The eye and mouth searches, and the steps that give the parts
+    // that they find to faces. Each kind of part may be searched and
+    // associated on its own thread.
+    private final PartSearch mEyesSearch;
+    private final PartSearch mMouthSearch;
+    private final PartAssociator mEyesAssociator =
+            new PartAssociator(PartAssociator.Kind.EYE);
+    private final PartAssociator mMouthAssociator =
+            new PartAssociator(PartAssociator.Kind.MOUTH);
+
+    // The scale of the image in which faces are searched, the step
+    // between the scales at which the face cascade is applied, and
+    // the reduced image with its detection parameters.
+    private double mFaceDetectionScale = 1.0;
+    private double mFaceScaleFactor = SCALE_FACTOR;
+    private final Mat mSmallGray;
+    private final Size mSmallMinSize;
+    private final Size mSmallMaxSize;
+    private final Size mNoSize = new Size();
+
+    // The faces from the previous face search, around which faces
+    // are searched again, and how many face searches may pass before
+    // the whole image is scanned again. While a face search may look
+    // only near the previous faces, its cost scales with their area
+    // rather than the image's.
+    private final int[] mFaceWindows = new int[MAX_DETECTIONS * RECT_SIZE];
+    private int mFaceWindowCount;
+    private int mFullFaceScanInterval = 1;
+    private int mFaceSearchesSinceFullScan;
+
+    // A copy of the window being searched for a face, its geometry
+    // and detection parameters, and the faces found in it.
+    private final Mat mWindowGray = new Mat();
+    private final Size mWindowSize = new Size();
+    private final Point mWindowCenter = new Point();
+    private final Size mWindowMinSize = new Size();
+    private final Size mWindowMaxSize = new Size();
+    private final int[] mWindowRects = new int[MAX_DETECTIONS * RECT_SIZE];
+
+    // An optional gate that measures how much of the scene has changed
+    // since the last frame on which every cascade ran, so that the
+    // detections of regions that have not changed are reused instead
+    // of searched again. That frame's detections, whether its parts
+    // were searched with both part detectors loaded, and, for each
+    // face found in the current frame, the face of that frame that it
+    // reuses, or -1. Reuse is always relative to a frame on which
+    // every cascade ran, so reused detections cannot drift however
+    // long the scene stays still.
+    private MotionGate mMotionGate;
+    private final FaceDetections mReferenceDetections =
+            new FaceDetections();
+    private boolean mReferenceHasParts;
+    private final int[] mReusedFaces = new int[MAX_DETECTIONS];
+    private final int[] mReusedEyeRects =
+            new int[MAX_DETECTIONS * RECT_SIZE];
+    private final int[] mReusedMouthRects =
+            new int[MAX_DETECTIONS * RECT_SIZE];
+
+    // Optional threads on which the eye and mouth searches run
+    // while this thread does other detection work. Each detector is
+    // only ever used by one thread at a time.
+    private WorkerThread mEyesWorker;
+    private WorkerThread mMouthWorker;
+
+    // Whether eyes and mouths are searched only inside the detected
+    // faces, rather than across the whole frame.
+    private boolean mSearchPartsInFaces;
+
+    // The part searches, as tasks for the worker threads.
+    private final Runnable mDetectEyesTask = new Runnable() {
+        @Override
+        public void run() {
+            final long start = mProfiler.start();
+            mEyesSearch.detect(mSearchGray);
+            mProfiler.stop(Stage.DETECT_EYES, start);
+        }
+    };
+    private final Runnable mDetectMouthTask = new Runnable() {
+        @Override
+        public void run() {
+            final long start = mProfiler.start();
+            mMouthSearch.detect(mSearchGray);
+            mProfiler.stop(Stage.DETECT_MOUTH, start);
+        }
+    };
+    private final Runnable mDetectMouthsInFacesTask = new Runnable() {
+        @Override
+        public void run() {
+            detectMouthsInFaces();
+        }
+    };
+
+    // The timings of the stages of the frame path.
+    private final StageProfiler mProfiler = new StageProfiler();
+
+    // An optional scheduler that fits the detection work to a target
+    // frame time, and the clock by which frames are timed for it.
+    private DetectionScheduler mScheduler;
+    private FrameClock mClock = FrameClock.SYSTEM;
+
+    // The faces, with their eyes and mouths, found in the last
+    // processed frame.
+    private final FaceDetections mDetections;
+
+    // An optional filter that smooths the detections over time, the
+    // detections that it predicted for the last processed frame, and
+    // the detections that were returned for that frame.
+    private DetectionFilter mFilter;
+    private final FaceDetections mFilteredDetections =
+            new FaceDetections();
+    private FaceDetections mOutputDetections;
+
+    // The tracks, which give each face a stable ID and hold its
+    // features and gestures.
+    private final FaceTracker mTracker = new FaceTracker();
+
+    // A copy of the mask region of the face whose features are being
+    // selected, and its geometry. Features are selected in the copy,
+    // so the cost scales with the faces' area rather than the
+    // image's, however many faces there are.
+    private final Mat mMaskGray = new Mat();
+    private final Size mMaskSize = new Size();
+    private final Point mMaskCenter = new Point();
+    private final Mat mNoMask = new Mat();
+
+    // The initial features of one face before tracking, and a buffer
+    // into which they are read.
+    private final MatOfPoint mInitialFeatures;
+    private final int[] mInitialFeatureCoords = new int[2 * MAX_FEATURES];
+
+    // The current and previous features of all the tracked faces,
+    // one track's features after another, and buffers into which
+    // they are read for filtering. The buffers grow with the number
+    // of faces.
+    private MatOfPoint2f mFeatures;
+    private MatOfPoint2f mLastFeatures;
+    private float[] mFeatureCoords = new float[2 * MAX_FEATURES];
+    private float[] mLastFeatureCoords = new float[2 * MAX_FEATURES];
+
+    // The status codes and errors for the tracking.
+    private final MatOfByte mFeatureStatuses;
+    private final MatOfFloat mFeatureErrors;
+    private byte[] mFeatureStatusesArray = new byte[MAX_FEATURES];
+    private float[] mFeatureErrorsArray = new float[MAX_FEATURES];
+
+    // Whether any face was being tracked last frame.
+    private boolean mWasTrackingFace;
+
+    // Whether any detected face is not being tracked, because it has
+    // too little texture or its features were lost, and whether a
+    // tracked face was lost since the faces were last detected. The
+    // faces that are still tracked keep their tracks while the
+    // others are detected again.
+    private boolean mHasUntrackedFace;
+    private boolean mLostFace;
+
+    // The frames that have been tracked since features were last
+    // selected.
+    private int mFramesSinceFeatureSelection;
+
+    // The time of the frame being processed, at which the positions
+    // of the tracked faces are sampled for gestures.
+    private long mFrameMicros;
+
+    // Whether detected faces are followed by optical flow, so that
+    // the cascades only run again when a track is lost.
+    private boolean mTrackingFaces;
+
+    // A rect that is reused by the processing thread.
+    private final Rect mFace = new Rect();
+
+    // Colors for drawing, and geometry that is reused by the drawing
+    // thread.
+    private final Scalar mFaceRectColor;
+    private final Scalar mEyesRectColor;
+    private final Scalar mMouthRectColor;
+    private final Scalar mFeatureColor;
+    private final Rect mDrawRect = new Rect();
+    private final Point mDrawPoint1 = new Point();
+    private final Point mDrawPoint2 = new Point();
+    private float[] mDrawFeatureCoords = new float[2 * MAX_FEATURES];
+
+    public FacePipeline(final int width, final int height,
+            final CascadeClassifier faceDetector,
+            final CascadeClassifier eyesDetector,
+            final CascadeClassifier mouthDetector) {
+        this(width, height, faceDetector,
+                new LoadedCascade(eyesDetector),
+                new LoadedCascade(mouthDetector));
+    }
+
+    // Creates a pipeline whose part detectors may still be loading.
+    // Until a part detector is ready, that part is not searched.
+    public FacePipeline(final int width, final int height,
+            final CascadeClassifier faceDetector,
+            final LazyCascade eyesDetector,
+            final LazyCascade mouthDetector) {
+        this(width, height, new CascadeDetector("face", faceDetector),
+                eyesDetector, mouthDetector);
+    }
+
+    // Creates a pipeline that searches for faces with any detector
+    // backend.
+    public FacePipeline(final int width, final int height,
+            final ObjectDetector faceDetector,
+            final LazyCascade eyesDetector,
+            final LazyCascade mouthDetector) {
+
+        mImageWidth = width;
+        mImageHeight = height;
+
+        mFaceDetector = faceDetector;
+        mDetections = new FaceDetections();
+        mOutputDetections = mDetections;
+
+        final int smallerSide = getSmallerSide(width, height);
+
+        final double minSizeSide =
+                MIN_SIZE_PROPORTIONAL * smallerSide;
+        double minSizeSide_e = minSizeSide*0.5;
+        double minSizeSide_m = minSizeSide*0.25;
+        mMinSize = new Size(minSizeSide, minSizeSide);
+        final double maxSizeSide =
+                MAX_SIZE_PROPORTIONAL * smallerSide;
+        double maxSizeSide_e = maxSizeSide*0.5;
+        double maxSizeSide_m = maxSizeSide*0.8;
+        mMaxSize = new Size(maxSizeSide, maxSizeSide);
+
+        mEyesSearch = new PartSearch(eyesDetector,
+                new Size(minSizeSide_e,minSizeSide_e),
+                new Size(maxSizeSide_e,maxSizeSide_e));
+        mMouthSearch = new PartSearch(mouthDetector,
+                new Size(minSizeSide_m,minSizeSide_m),
+                new Size(maxSizeSide_m,maxSizeSide_m));
+
+        mInitialFeatures = new MatOfPoint();
+        mFeatures = new MatOfPoint2f(new Point());
+        mLastFeatures = new MatOfPoint2f(new Point());
+        mFeatureStatuses = new MatOfByte();
+        mFeatureErrors = new MatOfFloat();
+
+        mFaceRectColor = new Scalar(0.0, 0.0, 255.0);
+        mEyesRectColor = new Scalar(0.0,255.0,0.0);
+        mMouthRectColor = new Scalar(255.0,0.0,0.0);
+        mFeatureColor = new Scalar(0.0, 255.0, 0.0);
+
+        mGrayUnoriented = new Mat(height, width, CvType.CV_8UC1);
+
+        // The rest of the matrices are transposed while frames are
+        // oriented.
+
+        mGray = new Mat(width, height, CvType.CV_8UC1);
+        mLastGray = new Mat(width, height, CvType.CV_8UC1);
+        mSmallGray = new Mat();
+        mSmallMinSize = new Size();
+        mSmallMaxSize = new Size();
+    }
+
+    static int getSmallerSide(final int width, final int height) {
+        if (height < width) {
+            return height;
+        } else {
+            return width;
+        }
+    }
+
+    public double getFaceDetectionScale() {
+        return mFaceDetectionScale;
+    }
+
+    // Sets the scale, in (0, 1], of the reduced image in which faces
+    // are searched. Faces are mapped back to full resolution, where
+    // any search for parts inside them takes place.
+    public void setFaceDetectionScale(final double scale) {
+        if (scale <= 0.0 || scale > 1.0) {
+            throw new IllegalArgumentException(
+                    "Face detection scale must be in (0, 1]: " + scale);
+        }
+        mFaceDetectionScale = scale;
+        mSmallMinSize.width = mMinSize.width * scale;
+        mSmallMinSize.height = mMinSize.height * scale;
+        mSmallMaxSize.width = mMaxSize.width * scale;
+        mSmallMaxSize.height = mMaxSize.height * scale;
+    }
+
+    // Returns the smallest power-of-two scale at which the minimum
+    // face size still covers the face cascade's base window.
+    public double chooseFaceDetectionScale() {
+        final double minSizeSide =
+                Math.min(mMinSize.width, mMinSize.height);
+        double scale = 1.0;
+        while (scale * 0.5 >= MIN_FACE_DETECTION_SCALE &&
+                minSizeSide * scale * 0.5 >= FACE_WINDOW_SIDE) {
+            scale *= 0.5;
+        }
+        return scale;
+    }
+
+    public double getFaceScaleFactor() {
+        return mFaceScaleFactor;
+    }
+
+    // Sets the step, above 1, between the scales at which the face
+    // cascade is applied. Larger steps are faster but may miss
+    // faces. The part cascades keep the default step.
+    public void setFaceScaleFactor(final double scaleFactor) {
+        if (scaleFactor <= 1.0) {
+            throw new IllegalArgumentException(
+                    "Face scale factor must be above 1: " + scaleFactor);
+        }
+        mFaceScaleFactor = scaleFactor;
+    }
+
+    public DetectionScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    // Sets a scheduler that decides the detection work and quality of
+    // each frame, and the clock by which frames are timed for it, or
+    // null to detect whenever no face is being followed. The
+    // scheduler starts from the current face detection scale and
+    // scale factor.
+    public void setScheduler(final DetectionScheduler scheduler,
+            final FrameClock clock) {
+        mScheduler = scheduler;
+        mClock = (clock != null) ? clock : FrameClock.SYSTEM;
+        if (scheduler != null) {
+            scheduler.reset(mFaceDetectionScale, mFaceScaleFactor);
+        }
+    }
+
+    public int getFullFaceScanInterval() {
+        return mFullFaceScanInterval;
+    }
+
+    // Sets how often, in face searches, the whole image is scanned
+    // for faces. In between, faces are only searched near the faces
+    // that the previous search found, and the whole image is scanned
+    // as soon as one of those faces is lost. An interval of 1 scans
+    // the whole image every time.
+    public void setFullFaceScanInterval(final int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException(
+                    "Full face scan interval must be positive: " +
+                    interval);
+        }
+        mFullFaceScanInterval = interval;
+        mFaceSearchesSinceFullScan = 0;
+    }
+
+    // Sets the threads on which the eye and mouth searches run in
+    // parallel with the face search or with each other, or nulls to
+    // run every search on the calling thread.
+    public void setPartWorkers(final WorkerThread eyesWorker,
+            final WorkerThread mouthWorker) {
+        mEyesWorker = eyesWorker;
+        mMouthWorker = mouthWorker;
+    }
+
+    public boolean isSearchingPartsInFaces() {
+        return mSearchPartsInFaces;
+    }
+
+    public void setSearchingPartsInFaces(
+            final boolean searchPartsInFaces) {
+        mSearchPartsInFaces = searchPartsInFaces;
+    }
+
+    public boolean isOrientingFrames() {
+        return mOrientingFrames;
+    }
+
+    // Sets whether frames are rotated to portrait, for a device held
+    // upright, before detection. Without the rotation, faces are only
+    // found if they are upright in the camera's own frames, as when
+    // the device is held in landscape, but no full-frame copies are
+    // made to orient the frames. The detections of any earlier frame
+    // are discarded.
+    public void setOrientingFrames(final boolean orientingFrames) {
+        mOrientingFrames = orientingFrames;
+        final int rows;
+        final int cols;
+        if (orientingFrames) {
+            rows = (int)mImageWidth;
+            cols = (int)mImageHeight;
+        } else {
+            rows = (int)mImageHeight;
+            cols = (int)mImageWidth;
+        }
+        mGray.create(rows, cols, CvType.CV_8UC1);
+        mLastGray.create(rows, cols, CvType.CV_8UC1);
+        mDetections.clear();
+        mTracker.clear();
+        mFilteredDetections.clear();
+        mReferenceDetections.clear();
+        if (mMotionGate != null) {
+            mMotionGate.reset();
+        }
+        if (mFilter != null) {
+            mFilter.reset();
+        }
+        mWasTrackingFace = false;
+    }
+
+    public boolean isFilteringDetections() {
+        return mFilter != null;
+    }
+
+    // Sets whether the detections are smoothed over time. If so, each
+    // processed frame returns the filtered detections, which are
+    // predicted on frames where nothing is detected, and the filter
+    // can predict them for frames that are not processed at all.
+    public void setFilteringDetections(final boolean filteringDetections) {
+        if (filteringDetections) {
+            mFilter = new DetectionFilter();
+            mOutputDetections = mFilteredDetections;
+        } else {
+            mFilter = null;
+            mOutputDetections = mDetections;
+        }
+    }
+
+    // Returns the filter that smooths the detections, or null.
+    public DetectionFilter getFilter() {
+        return mFilter;
+    }
+
+    public FrameClock getClock() {
+        return mClock;
+    }
+
+    public boolean isGatingByMotion() {
+        return mMotionGate != null;
+    }
+
+    // Sets whether detections are reused where the scene has not
+    // changed since the cascades last ran: the whole frame's if
+    // nothing has changed, or else each face's and each part's whose
+    // region has not changed, so that only the cascades for the
+    // changed regions run again.
+    public void setGatingByMotion(final boolean gatingByMotion) {
+        mMotionGate = gatingByMotion ? new MotionGate() : null;
+        mReferenceDetections.clear();
+    }
+
+    // Returns the gate, with its counts of reused detections, or
+    // null if detections are not gated by motion.
+    public MotionGate getMotionGate() {
+        return mMotionGate;
+    }
+
+    public boolean isEqualizingRegions() {
+        return mEqualizer != null;
+    }
+
+    // Sets whether only the regions that are searched are equalized,
+    // with a table that is kept while the frames' histogram stays
+    // close, rather than the whole image with a new table every
+    // frame. Features are then followed in the images as they were
+    // before equalization, so any faces being followed are detected
+    // again.
+    public void setEqualizingRegions(final boolean equalizingRegions) {
+        mEqualizer = equalizingRegions ? new RegionEqualizer() : null;
+        mWasTrackingFace = false;
+        if (mMotionGate != null) {
+            mMotionGate.reset();
+        }
+    }
+
+    // Returns the equalizer of the searched regions, with its counts,
+    // or null if the whole image is equalized.
+    public RegionEqualizer getEqualizer() {
+        return mEqualizer;
+    }
+
+    public boolean isTrackingFaces() {
+        return mTrackingFaces;
+    }
+
+    public void setTrackingFaces(final boolean trackingFaces) {
+        mTrackingFaces = trackingFaces;
+        mWasTrackingFace = false;
+    }
+
+    public ObjectDetector getFaceDetector() {
+        return mFaceDetector;
+    }
+
+    public StageProfiler getProfiler() {
+        return mProfiler;
+    }
+
+    public FaceDetections getDetections() {
+        return mOutputDetections;
+    }
+
+    // Returns the last processed gray image, oriented. It is only
+    // equalized if the whole image is.
+    public Mat getGray() {
+        return mLastGray;
+    }
+
+    public MatOfPoint2f getFeatures() {
+        return mLastFeatures;
+    }
+
+    public boolean isTrackingFace() {
+        return mWasTrackingFace;
+    }
+
+    // Returns the number of face tracks. The tracks, like the
+    // features, belong to the thread that processes frames.
+    public int getTrackCount() {
+        return mTracker.getCount();
+    }
+
+    public FaceTrack getTrack(final int i) {
+        return mTracker.get(i);
+    }
+
+    // Sets the distances that a tracked face must move back and forth
+    // to count as a shake or a nod of the head, or hold to one side
+    // to count as a tilt.
+    public void setGestureDistances(final double minShakeDistance,
+            final double minNodDistance, final double minTiltDistance) {
+        mTracker.setGestureDistances(minShakeDistance, minNodDistance,
+                minTiltDistance);
+    }
+
+    // Sets the listener to which the tracked faces report gestures.
+    // It is called on the thread that processes frames, so it should
+    // only hand the gestures on.
+    public void setGestureListener(
+            final GestureRecognizer.Listener listener) {
+        mTracker.setGestureListener(listener);
+    }
+
+    // Forgets all progress toward any gesture, as when a gesture has
+    // been answered. This must be called on the thread that processes
+    // frames, or while no frames are processed.
+    public void resetGestures() {
+        mTracker.resetGestures();
+    }
+
+    // Processes an RGBA frame, as delivered by the camera view.
+    public FaceDetections processRgba(final Mat rgba) {
+        final long start = mProfiler.start();
+        Imgproc.cvtColor(rgba, mGrayUnoriented,
+                         Imgproc.COLOR_RGBA2GRAY);
+        mProfiler.stop(Stage.CVT_COLOR, start);
+        return process(mGrayUnoriented);
+    }
+
+    // Processes a gray frame that has the camera's dimensions and
+    // is not yet oriented. The frame is only read.
+    public FaceDetections processGray(final Mat gray) {
+        return process(gray);
+    }
+
+    // Processes a raw 8-bit luminance frame, such as the Y plane at
+    // the start of an NV21 preview buffer.
+    public FaceDetections processGray(final byte[] gray) {
+        mGrayUnoriented.put(0, 0, gray);
+        return process(mGrayUnoriented);
+    }
+
+    // Processes a raw 8-bit luminance frame from a buffer, such as a
+    // view of a memory-mapped recording. The frame is read from the
+    // buffer's position, which is left as it was. It is copied once,
+    // straight into the image, where the JVM allows.
+    public FaceDetections processGray(final ByteBuffer gray) {
+        final int size = mGrayUnoriented.rows() * mGrayUnoriented.cols();
+        if (gray.remaining() < size) {
+            throw new IllegalArgumentException(
+                    "The frame has " + gray.remaining() +
+                    " bytes, but needs " + size);
+        }
+        final long address = mGrayUnoriented.dataAddr();
+        if (address != mGrayUnorientedAddress) {
+            mGrayUnorientedView = MatBuffers.wrap(mGrayUnoriented);
+            mGrayUnorientedAddress = address;
+        }
+        final int position = gray.position();
+        final int limit = gray.limit();
+        if (mGrayUnorientedView != null) {
+            mGrayUnorientedView.clear();
+            gray.limit(position + size);
+            mGrayUnorientedView.put(gray);
+            gray.limit(limit);
+        } else {
+            if (mGrayUnorientedBytes == null ||
+                    mGrayUnorientedBytes.length < size) {
+                mGrayUnorientedBytes = new byte[size];
+            }
+            gray.get(mGrayUnorientedBytes, 0, size);
+            mGrayUnoriented.put(0, 0, mGrayUnorientedBytes);
+        }
+        gray.position(position);
+        return process(mGrayUnoriented);
+    }
+
+    // Returns whether the last frame from a buffer was copied
+    // straight into the image, rather than through an array.
+    public boolean isCopyingBuffersDirectly() {
+        return mGrayUnorientedView != null;
+    }
+
+    private FaceDetections process(final Mat gray) {
+
+        final long frameStart = mProfiler.start();
+        final DetectionScheduler scheduler = mScheduler;
+        final DetectionFilter filter = mFilter;
+        final long clockStart = (scheduler != null || filter != null ||
+                mTrackingFaces) ? mClock.nowMicros() : 0L;
+        mFrameMicros = clockStart;
+
+        long start;
+        final RegionEqualizer equalizer = mEqualizer;
+        if (mOrientingFrames) {
+            // For processing, orient the image to portrait and
+            // equalize it.
+            start = mProfiler.start();
+            Core.transpose(gray, mGray);
+            mProfiler.stop(Stage.TRANSPOSE, start);
+            start = mProfiler.start();
+            Core.flip(mGray, mGray, -1);
+            mProfiler.stop(Stage.FLIP, start);
+            if (equalizer == null) {
+                start = mProfiler.start();
+                Imgproc.equalizeHist(mGray, mGray);
+                mProfiler.stop(Stage.EQUALIZE, start);
+            }
+        } else if (equalizer == null) {
+            // Equalize the image as it is, in one pass.
+            start = mProfiler.start();
+            Imgproc.equalizeHist(gray, mGray);
+            mProfiler.stop(Stage.EQUALIZE, start);
+        }
+        if (equalizer != null) {
+            // Only sample the histogram, and leave the regions to be
+            // equalized as they are searched.
+            start = mProfiler.start();
+            if (!mOrientingFrames) {
+                // Keep a copy of the image as it is, for tracking.
+                gray.copyTo(mGray);
+            }
+            equalizer.update(mGray);
+            mFrameEqualized = false;
+            mProfiler.stop(Stage.EQUALIZE, start);
+        }
+
+        // Whether the detections were measured in this frame, rather
+        // than held from an earlier one.
+        boolean measured = true;
+        Plan plan = null;
+        if (scheduler != null) {
+            // A lost face is searched for again as soon as the
+            // scheduler allows.
+            plan = scheduler.plan(mTrackingFaces && mWasTrackingFace &&
+                    !mLostFace);
+            measured = runPlan(plan, scheduler);
+        } else if (mTrackingFaces && mWasTrackingFace &&
+                !(mHasUntrackedFace && mFramesSinceFeatureSelection >=
+                UNTRACKED_FACE_DETECTION_INTERVAL) &&
+                trackFeatures()) {
+            // The faces were followed, so there is no need to detect
+            // them again.
+        } else {
+            detect(true);
+            if (mTrackingFaces) {
+                selectFeatures();
+            }
+        }
+
+        // Swap the references to the current and previous images.
+        final Mat swapGray = mLastGray;
+        mLastGray = mGray;
+        mGray = swapGray;
+
+        // Swap the references to the current and previous features.
+        final MatOfPoint2f swapFeatures = mLastFeatures;
+        mLastFeatures = mFeatures;
+        mFeatures = swapFeatures;
+
+        if (filter != null) {
+            start = mProfiler.start();
+            if (measured) {
+                filter.update(mDetections, clockStart);
+            }
+            filter.predict(clockStart, mFilteredDetections);
+            mProfiler.stop(Stage.FILTER, start);
+        }
+
+        if (scheduler != null) {
+            scheduler.finishFrame(plan, mClock.nowMicros() - clockStart);
+        }
+        mProfiler.stop(Stage.FRAME, frameStart);
+        return mOutputDetections;
+    }
+
+    // Does the work that the scheduler chose for this frame. Returns
+    // whether the detections were measured, rather than held.
+    private boolean runPlan(final Plan plan,
+            final DetectionScheduler scheduler) {
+        if (plan == Plan.PREDICT) {
+            if (mTrackingFaces && mWasTrackingFace) {
+                if (trackFeatures()) {
+                    return true;
+                }
+                // A face was lost. The other faces are still followed,
+                // and the lost one is held until the faces are
+                // searched for again, when the scheduler next allows.
+            }
+            // Otherwise, the last detections are held.
+            return false;
+        }
+        setFaceDetectionScale(scheduler.getFaceDetectionScale());
+        mFaceScaleFactor = scheduler.getFaceScaleFactor();
+        detect(plan == Plan.DETECT_ALL);
+        if (mTrackingFaces) {
+            selectFeatures();
+        }
+        return true;
+    }
+
+    // Searches for faces and, optionally, their parts.
+    private void detect(final boolean detectingParts) {
+
+        // Remember the previous faces, as the windows in which faces
+        // may be searched again.
+        mFaceWindowCount = Math.min(mDetections.getFaceCount(),
+                MAX_DETECTIONS);
+        for (int i = 0; i < mFaceWindowCount; i++) {
+            mDetections.getFace(i, mFace);
+            final int r = i * RECT_SIZE;
+            mFaceWindows[r] = mFace.x;
+            mFaceWindows[r + 1] = mFace.y;
+            mFaceWindows[r + 2] = mFace.width;
+            mFaceWindows[r + 3] = mFace.height;
+        }
+
+        final MotionGate gate = mMotionGate;
+        if (gate != null) {
+            final long start = mProfiler.start();
+            gate.measure(mGray);
+            mProfiler.stop(Stage.MOTION, start);
+            if (gate.isStatic() &&
+                    (mReferenceHasParts || !detectingParts)) {
+                // Nothing has changed since every cascade last ran, so
+                // none runs again.
+                gate.countReusedFrame();
+                mDetections.copyFrom(mReferenceDetections);
+                if (mDetections.getFaceCount() > 0) {
+                    mWasTrackingFace = true;
+                }
+                associateFaces();
+                return;
+            }
+        }
+
+        mDetections.clear();
+        mEyesSearch.startFrame();
+        mMouthSearch.startFrame();
+        if (!detectingParts) {
+            final int faceCount = detectFaces();
+            for (int i = 0; i < faceCount; i++) {
+                final int r = i * RECT_SIZE;
+                mDetections.addFace(mFaceRects[r], mFaceRects[r + 1],
+                        mFaceRects[r + 2], mFaceRects[r + 3]);
+            }
+            if (faceCount > 0) {
+                mWasTrackingFace = true;
+            }
+        } else if (mSearchPartsInFaces) {
+            final int faceCount = detectFaces();
+            for (int i = 0; i < faceCount; i++) {
+                final int r = i * RECT_SIZE;
+                mDetections.addFace(mFaceRects[r], mFaceRects[r + 1],
+                        mFaceRects[r + 2], mFaceRects[r + 3]);
+            }
+            if (faceCount > 0) {
+                if (mMouthWorker == null) {
+                    detectEyesInFaces();
+                    detectMouthsInFaces();
+                } else {
+                    // Search for mouths on another thread while this
+                    // thread searches for eyes.
+                    mMouthWorker.post(mDetectMouthsInFacesTask);
+                    detectEyesInFaces();
+                    mMouthWorker.await();
+                }
+                mWasTrackingFace = true;
+            }
+        } else {
+            mSearchGray = getEqualizedFrame();
+            final int faceCount;
+            if (mEyesWorker == null || mMouthWorker == null) {
+                faceCount = detectFaces();
+                mDetectEyesTask.run();
+                mDetectMouthTask.run();
+            } else {
+                // Search for faces, eyes and mouths at the same time.
+                mEyesWorker.post(mDetectEyesTask);
+                mMouthWorker.post(mDetectMouthTask);
+                faceCount = detectFaces();
+                mEyesWorker.await();
+                mMouthWorker.await();
+            }
+            final long start = mProfiler.start();
+            for (int i = 0; i < faceCount; i++) {
+                final int r = i * RECT_SIZE;
+                mDetections.addFace(mFaceRects[r], mFaceRects[r + 1],
+                        mFaceRects[r + 2], mFaceRects[r + 3]);
+            }
+            mEyesAssociator.clear();
+            mEyesAssociator.add(mEyesSearch.mRects, mEyesSearch.mCount);
+            associateParts(mEyesAssociator, faceCount);
+            mMouthAssociator.clear();
+            mMouthAssociator.add(mMouthSearch.mRects,
+                    mMouthSearch.mCount);
+            associateParts(mMouthAssociator, faceCount);
+            mProfiler.stop(Stage.ASSOCIATE_PARTS, start);
+            if (faceCount > 0) {
+                mWasTrackingFace = true;
+            }
+        }
+
+        if (gate != null && !isReusingFaces()) {
+            // Every cascade ran, so later frames reuse these
+            // detections. Parts that were not found only because a
+            // part detector was still loading are not reused.
+            gate.setReference();
+            mReferenceDetections.copyFrom(mDetections);
+            mReferenceHasParts = detectingParts &&
+                    !mEyesSearch.mSkipped && !mMouthSearch.mSkipped;
+        }
+
+        associateFaces();
+    }
+
+    // Gives each face the ID of its track.
+    private void associateFaces() {
+        final long start = mProfiler.start();
+        mTracker.associate(mDetections);
+        mProfiler.stop(Stage.ASSOCIATE_FACES, start);
+    }
+
+    // Returns whether any face was reused rather than searched for.
+    private boolean isReusingFaces() {
+        final int faceCount = mDetections.getFaceCount();
+        for (int i = 0; i < faceCount; i++) {
+            if (mReusedFaces[i] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Searches for faces, either near the previous faces or in the
+    // whole image, and reads them into the face rects. Returns the
+    // number of faces.
+    private int detectFaces() {
+
+        final long start = mProfiler.start();
+        int faceCount = -1;
+        if (mFaceWindowCount > 0 &&
+                mFaceSearchesSinceFullScan + 1 < mFullFaceScanInterval) {
+            faceCount = detectFacesInWindows();
+        }
+        if (faceCount < 0) {
+            faceCount = detectFacesInImage();
+            for (int i = 0; i < faceCount; i++) {
+                mReusedFaces[i] = -1;
+            }
+            mFaceSearchesSinceFullScan = 0;
+        } else {
+            mFaceSearchesSinceFullScan++;
+        }
+        mProfiler.stop(Stage.DETECT_FACES, start);
+        return faceCount;
+    }
+
+    // Searches for each previous face in a window around it, at sizes
+    // near its previous size. Returns the number of faces, or -1 if
+    // any previous face was not found again.
+    private int detectFacesInWindows() {
+
+        int faceCount = 0;
+        for (int i = 0; i < mFaceWindowCount; i++) {
+            final int r = i * RECT_SIZE;
+            final int width = mFaceWindows[r + 2];
+            final int height = mFaceWindows[r + 3];
+            final double side = Math.max(width, height);
+            final int padding =
+                    (int)(FACE_WINDOW_PADDING_PROPORTIONAL * side);
+
+            // Clip the window to the image.
+            final int minX = Math.max(mFaceWindows[r] - padding, 0);
+            final int minY = Math.max(mFaceWindows[r + 1] - padding, 0);
+            final int maxX = Math.min(mFaceWindows[r] + width + padding,
+                    mGray.cols());
+            final int maxY = Math.min(
+                    mFaceWindows[r + 1] + height + padding,
+                    mGray.rows());
+
+            mWindowMinSize.width = Math.max(mMinSize.width,
+                    FACE_WINDOW_MIN_SIZE_PROPORTIONAL * side);
+            mWindowMinSize.height = mWindowMinSize.width;
+            mWindowMaxSize.width = Math.min(mMaxSize.width,
+                    FACE_WINDOW_MAX_SIZE_PROPORTIONAL * side);
+            mWindowMaxSize.height = mWindowMaxSize.width;
+            if (maxX - minX < mWindowMinSize.width ||
+                    maxY - minY < mWindowMinSize.height ||
+                    mWindowMaxSize.width < mWindowMinSize.width) {
+                // The face has left the image or the size range.
+                return -1;
+            }
+
+            final int reusedFace = findStaticReferenceFace(r,
+                    minX, minY, maxX - minX, maxY - minY);
+            if (reusedFace >= 0) {
+                // The window has not changed since the face was
+                // found in it, so the face is reused.
+                if (faceCount < MAX_DETECTIONS && !containsFaceCenter(
+                        faceCount, mFaceWindows[r], mFaceWindows[r + 1],
+                        width, height)) {
+                    final int f = faceCount * RECT_SIZE;
+                    System.arraycopy(mFaceWindows, r, mFaceRects, f,
+                            RECT_SIZE);
+                    mReusedFaces[faceCount] = reusedFace;
+                    faceCount++;
+                    mMotionGate.countReusedFace();
+                }
+                continue;
+            }
+
+            // Copy the window into a reused image, as for the part
+            // searches.
+            mWindowSize.width = maxX - minX;
+            mWindowSize.height = maxY - minY;
+            mWindowCenter.x = minX + (mWindowSize.width - 1.0) * 0.5;
+            mWindowCenter.y = minY + (mWindowSize.height - 1.0) * 0.5;
+            Imgproc.getRectSubPix(mGray, mWindowSize,
+                    mWindowCenter, mWindowGray);
+            if (mEqualizer != null) {
+                mEqualizer.equalizeRegion(mWindowGray, mEqualizeBuffers);
+            }
+            final int windowFaceCount = mFaceDetector.detect(
+                    mWindowGray, mFaceScaleFactor, MIN_NEIGHBORS,
+                    mWindowMinSize, mWindowMaxSize, mWindowRects);
+            final int foundFaceCount = faceCount;
+            for (int j = 0; j < windowFaceCount * RECT_SIZE;
+                    j += RECT_SIZE) {
+                final int x = mWindowRects[j] + minX;
+                final int y = mWindowRects[j + 1] + minY;
+                if (faceCount < MAX_DETECTIONS && !containsFaceCenter(
+                        faceCount, x, y, mWindowRects[j + 2],
+                        mWindowRects[j + 3])) {
+                    final int f = faceCount * RECT_SIZE;
+                    mFaceRects[f] = x;
+                    mFaceRects[f + 1] = y;
+                    mFaceRects[f + 2] = mWindowRects[j + 2];
+                    mFaceRects[f + 3] = mWindowRects[j + 3];
+                    mReusedFaces[faceCount] = -1;
+                    faceCount++;
+                }
+            }
+            if (faceCount == foundFaceCount) {
+                // The face was lost.
+                return -1;
+            }
+        }
+        return faceCount;
+    }
+
+    // Returns the face of the reference detections that a previous
+    // face is, if the window around it has not changed since then,
+    // or -1.
+    private int findStaticReferenceFace(final int r, final int x,
+            final int y, final int width, final int height) {
+        final MotionGate gate = mMotionGate;
+        if (gate == null || !gate.isRegionStatic(x, y, width, height)) {
+            return -1;
+        }
+        final int faceCount = mReferenceDetections.getFaceCount();
+        for (int i = 0; i < faceCount; i++) {
+            mReferenceDetections.getFace(i, mFace);
+            if (mFace.x == mFaceWindows[r] &&
+                    mFace.y == mFaceWindows[r + 1] &&
+                    mFace.width == mFaceWindows[r + 2] &&
+                    mFace.height == mFaceWindows[r + 3]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Whether any of the first faces in the face rects contains the
+    // center of the given rect. Overlapping windows may find the same
+    // face twice.
+    private boolean containsFaceCenter(final int faceCount, final int x,
+            final int y, final int width, final int height) {
+        final int centerX = x + width / 2;
+        final int centerY = y + height / 2;
+        for (int f = 0; f < faceCount * RECT_SIZE; f += RECT_SIZE) {
+            if (centerX >= mFaceRects[f] &&
+                    centerX < mFaceRects[f] + mFaceRects[f + 2] &&
+                    centerY >= mFaceRects[f + 1] &&
+                    centerY < mFaceRects[f + 1] + mFaceRects[f + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Searches for faces in the whole image, or in a reduced copy of
+    // it if the face detection scale is below 1, and reads them into
+    // the face rects in full-resolution coordinates. Returns the
+    // number of faces.
+    private int detectFacesInImage() {
+
+        final Mat gray = getEqualizedFrame();
+        if (mFaceDetectionScale >= 1.0) {
+            return mFaceDetector.detect(gray,
+                    mFaceScaleFactor, MIN_NEIGHBORS, mMinSize, mMaxSize,
+                    mFaceRects);
+        }
+
+        Imgproc.resize(gray, mSmallGray, mNoSize,
+                mFaceDetectionScale, mFaceDetectionScale,
+                Imgproc.INTER_AREA);
+        final int faceCount = mFaceDetector.detect(mSmallGray,
+                mFaceScaleFactor, MIN_NEIGHBORS, mSmallMinSize,
+                mSmallMaxSize, mFaceRects);
+        final double upscale = 1.0 / mFaceDetectionScale;
+        for (int i = 0; i < faceCount * RECT_SIZE; i++) {
+            mFaceRects[i] = (int)Math.round(mFaceRects[i] * upscale);
+        }
+        return faceCount;
+    }
+
+    // Returns the whole current image, equalized, for the searches
+    // that scan all of it. If only regions are equalized, the image
+    // is equalized into a copy the first time that it is needed in
+    // a frame, and its cost is counted in the stage that needs it.
+    private Mat getEqualizedFrame() {
+        if (mEqualizer == null) {
+            return mGray;
+        }
+        if (!mFrameEqualized) {
+            mEqualizer.equalize(mGray, mEqualizedFrame,
+                    mEqualizeBuffers);
+            mFrameEqualized = true;
+        }
+        return mEqualizedFrame;
+    }
+
+    // Reads detected rects, as x, y, width and height, into a
+    // buffer, and returns how many were read.
+    private static int readRects(final MatOfRect detections,
+            final int[] rects) {
+        final int count = Math.min(detections.rows(),
+                rects.length / RECT_SIZE);
+        if (count > 0) {
+            detections.get(0, 0, rects);
+        }
+        return count;
+    }
+
+    // Searches for eyes in the upper part of each face. The same
+    // acceptance rule as a full-frame search is applied afterwards.
+    private void detectEyesInFaces() {
+        final long start = mProfiler.start();
+        final int faceCount = mDetections.getFaceCount();
+        mEyesAssociator.clear();
+        for (int i = 0; i < faceCount; i++) {
+            final int r = i * RECT_SIZE;
+            final int regionHeight = (int)(
+                    EYES_REGION_BOTTOM_PROPORTIONAL * mFaceRects[r + 3]);
+            if (isPartRegionStatic(i, mFaceRects[r + 1], regionHeight)) {
+                // The eyes have not changed since they were found.
+                mEyesAssociator.add(mReusedEyeRects,
+                        mReferenceDetections.getEyes(mReusedFaces[i],
+                                mReusedEyeRects));
+                mMotionGate.countReusedEyeSearch();
+                continue;
+            }
+            mEyesSearch.detectInRegion(mGray, mEqualizer, mFaceRects[r],
+                    mFaceRects[r + 1], mFaceRects[r + 2], regionHeight);
+            mEyesAssociator.add(mEyesSearch.mRects, mEyesSearch.mCount);
+        }
+        associateParts(mEyesAssociator, faceCount);
+        mProfiler.stop(Stage.DETECT_EYES, start);
+    }
+
+    // Searches for the mouth in the lower part of each face. The
+    // same acceptance rule as a full-frame search is applied
+    // afterwards.
+    private void detectMouthsInFaces() {
+        final long start = mProfiler.start();
+        final int faceCount = mDetections.getFaceCount();
+        mMouthAssociator.clear();
+        for (int i = 0; i < faceCount; i++) {
+            final int r = i * RECT_SIZE;
+            final int mouthTop = mFaceRects[r + 1] + (int)(
+                    MOUTH_REGION_TOP_PROPORTIONAL * mFaceRects[r + 3]);
+            final int mouthBottom = mFaceRects[r + 1] + (int)(
+                    MOUTH_REGION_BOTTOM_PROPORTIONAL * mFaceRects[r + 3]);
+            if (isPartRegionStatic(i, mouthTop, mouthBottom - mouthTop)) {
+                // The mouth has not changed since it was found.
+                mMouthAssociator.add(mReusedMouthRects,
+                        mReferenceDetections.getMouths(mReusedFaces[i],
+                                mReusedMouthRects));
+                mMotionGate.countReusedMouthSearch();
+                continue;
+            }
+            mMouthSearch.detectInRegion(mGray, mEqualizer,
+                    mFaceRects[r], mouthTop, mFaceRects[r + 2],
+                    mouthBottom - mouthTop);
+            mMouthAssociator.add(mMouthSearch.mRects,
+                    mMouthSearch.mCount);
+        }
+        associateParts(mMouthAssociator, faceCount);
+        mProfiler.stop(Stage.DETECT_MOUTH, start);
+    }
+
+    // Returns whether the parts of a face can be reused from the
+    // reference detections: the face was reused, and the band of it
+    // in which the parts are searched has not changed either. This
+    // only reads state that is fixed while parts are searched, so it
+    // may be called from either part's thread.
+    private boolean isPartRegionStatic(final int face, final int top,
+            final int height) {
+        if (mReusedFaces[face] < 0 || !mReferenceHasParts) {
+            return false;
+        }
+        final int r = face * RECT_SIZE;
+        return mMotionGate.isRegionStatic(mFaceRects[r], top,
+                mFaceRects[r + 2], height);
+    }
+
+    // Gives the parts that were found to the faces in which they
+    // lie, each to one face at most. The faces were found in this
+    // frame, so the face rects match the detections.
+    private void associateParts(final PartAssociator associator,
+            final int faceCount) {
+        associator.associate(mFaceRects, faceCount,
+                mGray.cols(), mGray.rows(),
+                mDetections);
+    }
+
+    // Selects features in the mask of every detected face, and lays
+    // them out one track after another. Each face that has enough
+    // texture is followed; the others are held, and detected again
+    // later.
+    private void selectFeatures() {
+
+        final int faceCount = mDetections.getFaceCount();
+        ensureFeatureCapacity(faceCount * MAX_FEATURES);
+        boolean hasUntrackedFace = false;
+        int featureCount = 0;
+        final int trackCount = mTracker.getCount();
+        for (int t = 0; t < trackCount; t++) {
+            final FaceTrack track = mTracker.get(t);
+            if (track.mFace < 0) {
+                continue;
+            }
+            final int count = selectFeatures(track, featureCount);
+            if (count < MIN_FEATURES) {
+                // There is too little texture to track the face.
+                track.stopFeatures();
+                hasUntrackedFace = true;
+            } else {
+                featureCount += count;
+            }
+        }
+
+        if (featureCount > 0) {
+            mFeatures.alloc(featureCount);
+            mFeatures.put(0, 0, mFeatureCoords);
+        } else {
+            mFeatures.release();
+        }
+        mWasTrackingFace = featureCount > 0;
+        mHasUntrackedFace = hasUntrackedFace;
+        mLostFace = false;
+        mFramesSinceFeatureSelection = 0;
+    }
+
+    // Selects features in the mask of a track's face and stores them
+    // in the feature buffer from the given index. Returns the number
+    // of features, which the track only takes if there are enough.
+    private int selectFeatures(final FaceTrack track,
+            final int firstFeature) {
+
+        // The mask is the face without a margin on each side, clipped
+        // to the image.
+        mDetections.getFace(track.mFace, mFace);
+        final double smallerSide =
+                getSmallerSide(mFace.width, mFace.height);
+        final int maskPadding =
+                (int)Math.round(smallerSide * MASK_PADDING_PROPORTIONAL);
+        final int minX = Math.max(mFace.x + maskPadding, 0);
+        final int minY = Math.max(mFace.y + maskPadding, 0);
+        final int maxX = Math.min(mFace.x + mFace.width - maskPadding,
+                mGray.cols());
+        final int maxY = Math.min(mFace.y + mFace.height - maskPadding,
+                mGray.rows());
+        final Rect mask = track.mMask;
+        mask.x = minX;
+        mask.y = minY;
+        mask.width = Math.max(maxX - minX, 0);
+        mask.height = Math.max(maxY - minY, 0);
+        if (mask.width <= FEATURE_BLOCK_SIZE ||
+                mask.height <= FEATURE_BLOCK_SIZE) {
+            return 0;
+        }
+
+        // Find features in a copy of the mask region. With the center
+        // on a half-pixel grid, the copy is exact.
+        mMaskSize.width = mask.width;
+        mMaskSize.height = mask.height;
+        mMaskCenter.x = minX + (mask.width - 1.0) * 0.5;
+        mMaskCenter.y = minY + (mask.height - 1.0) * 0.5;
+        Imgproc.getRectSubPix(mGray, mMaskSize, mMaskCenter,
+                mMaskGray);
+        if (mEqualizer != null) {
+            mEqualizer.equalizeRegion(mMaskGray, mEqualizeBuffers);
+        }
+        Imgproc.goodFeaturesToTrack(mMaskGray, mInitialFeatures,
+                MAX_FEATURES, MIN_FEATURE_QUALITY,
+                MIN_FEATURE_DISTANCE, mNoMask, FEATURE_BLOCK_SIZE, false,
+                HARRIS_K);
+        final int count = Math.min(mInitialFeatures.rows(), MAX_FEATURES);
+        if (count < MIN_FEATURES) {
+            return count;
+        }
+
+        // Move the features into the image's coordinates.
+        mInitialFeatures.get(0, 0, mInitialFeatureCoords);
+        double sumX = 0.0;
+        double sumY = 0.0;
+        for (int i = 0; i < count; i++) {
+            final float x = mInitialFeatureCoords[2 * i] + minX;
+            final float y = mInitialFeatureCoords[2 * i + 1] + minY;
+            mFeatureCoords[2 * (firstFeature + i)] = x;
+            mFeatureCoords[2 * (firstFeature + i) + 1] = y;
+            sumX += x;
+            sumY += y;
+        }
+        track.startFeatures(firstFeature, count, sumX / count,
+                sumY / count, mFrameMicros);
+        return count;
+    }
+
+    // Follows the last frame's features into the current frame and
+    // moves each face with its own features. A face of which too few
+    // features survived is no longer followed, but the others are,
+    // and keep their gestures. Returns false if any face was lost, in
+    // which case the faces should be detected again.
+    private boolean trackFeatures() {
+
+        final long start = mProfiler.start();
+        Video.calcOpticalFlowPyrLK(mLastGray, mGray,
+                mLastFeatures, mFeatures, mFeatureStatuses,
+                mFeatureErrors);
+
+        // For each face, filter out any points that could not be
+        // tracked, and measure the mean motion of the rest.
+        final int featureCount = Math.min(mFeatures.rows(),
+                mFeatureStatusesArray.length);
+        if (featureCount > 0) {
+            mLastFeatures.get(0, 0, mLastFeatureCoords);
+            mFeatures.get(0, 0, mFeatureCoords);
+            mFeatureStatuses.get(0, 0, mFeatureStatusesArray);
+            mFeatureErrors.get(0, 0, mFeatureErrorsArray);
+        }
+        int keptCount = 0;
+        boolean lost = false;
+        final int trackCount = mTracker.getCount();
+        for (int t = 0; t < trackCount; t++) {
+            final FaceTrack track = mTracker.get(t);
+            if (!track.isFollowed()) {
+                continue;
+            }
+            final int firstKept = keptCount;
+            final int end = Math.min(
+                    track.mFirstFeature + track.mFeatureCount,
+                    featureCount);
+            double shiftX = 0.0;
+            double shiftY = 0.0;
+            double sumX = 0.0;
+            double sumY = 0.0;
+            for (int i = track.mFirstFeature; i < end; i++) {
+                if (mFeatureStatusesArray[i] != 0 &&
+                        mFeatureErrorsArray[i] <= MAX_FEATURE_ERROR) {
+                    final float x = mFeatureCoords[2 * i];
+                    final float y = mFeatureCoords[2 * i + 1];
+                    shiftX += x - mLastFeatureCoords[2 * i];
+                    shiftY += y - mLastFeatureCoords[2 * i + 1];
+                    sumX += x;
+                    sumY += y;
+                    mFeatureCoords[2 * keptCount] = x;
+                    mFeatureCoords[2 * keptCount + 1] = y;
+                    keptCount++;
+                }
+            }
+            final int count = keptCount - firstKept;
+            if (count < MIN_FEATURES) {
+                // The number of remaining features is too low; we
+                // have probably lost this face completely. Discard
+                // its features.
+                track.stopFeatures();
+                track.mFace = -1;
+                keptCount = firstKept;
+                lost = true;
+                continue;
+            }
+
+            track.mShiftX += shiftX / count;
+            track.mShiftY += shiftY / count;
+            final int dx = (int)Math.round(track.mShiftX) -
+                    track.mAppliedShiftX;
+            final int dy = (int)Math.round(track.mShiftY) -
+                    track.mAppliedShiftY;
+            mDetections.offsetFace(track.mFace, dx, dy);
+            track.mAppliedShiftX += dx;
+            track.mAppliedShiftY += dy;
+            mDetections.getFace(track.mFace, track.mRect, 0);
+            track.followFeatures(firstKept, count, sumX / count,
+                    sumY / count, mFrameMicros);
+        }
+
+        if (keptCount > 0) {
+            mFeatures.alloc(keptCount);
+            mFeatures.put(0, 0, mFeatureCoords);
+        } else {
+            mFeatures.release();
+        }
+        mWasTrackingFace = keptCount > 0;
+        if (lost) {
+            mHasUntrackedFace = true;
+            mLostFace = true;
+        }
+        mFramesSinceFeatureSelection++;
+        mProfiler.stop(Stage.TRACK, start);
+        return !lost;
+    }
+
+    // Grows the feature buffers to hold the given number of features.
+    private void ensureFeatureCapacity(final int featureCount) {
+        if (featureCount > mFeatureStatusesArray.length) {
+            final int capacity = Math.max(featureCount,
+                    2 * mFeatureStatusesArray.length);
+            mFeatureCoords = new float[2 * capacity];
+            mLastFeatureCoords = new float[2 * capacity];
+            mFeatureStatusesArray = new byte[capacity];
+            mFeatureErrorsArray = new float[capacity];
+        }
+    }
+
+    // Draws the last detections onto an RGBA frame that is not yet
+    // oriented or mirrored.
+    public void drawDetections(final Mat rgba) {
+        drawDetections(rgba, mOutputDetections);
+
+        if (mTrackingFaces && mWasTrackingFace) {
+            // Draw the current features of every face.
+            final int featureCount = mLastFeatures.rows();
+            if (mDrawFeatureCoords.length < 2 * featureCount) {
+                mDrawFeatureCoords = new float[2 * featureCount];
+            }
+            if (featureCount > 0) {
+                mLastFeatures.get(0, 0, mDrawFeatureCoords);
+            }
+            for (int i = 0; i < featureCount; i++) {
+                toFramePoint(mDrawFeatureCoords[2 * i],
+                        mDrawFeatureCoords[2 * i + 1], mDrawPoint1);
+                Core.circle(rgba, mDrawPoint1, 8, mFeatureColor);
+            }
+        }
+    }
+
+    // Draws the given detections onto an RGBA frame that is not yet
+    // oriented or mirrored. This uses no per-frame state, so it may
+    // be called from a thread other than the processing thread, as
+    // long as all drawing happens on one thread.
+    public void drawDetections(final Mat rgba,
+            final FaceDetections detections) {
+        final long start = mProfiler.start();
+        final int faceCount = detections.getFaceCount();
+        for (int i = 0; i < faceCount; i++) {
+            detections.getFace(i, mDrawRect);
+            drawRect(rgba, mDrawRect, mFaceRectColor);
+            final int eyeCount = detections.getEyeCount(i);
+            for (int j = 0; j < eyeCount; j++) {
+                detections.getEye(i, j, mDrawRect);
+                drawRect(rgba, mDrawRect, mEyesRectColor);
+            }
+            final int mouthCount = detections.getMouthCount(i);
+            for (int m = 0; m < mouthCount; m++) {
+                detections.getMouth(i, m, mDrawRect);
+                drawRect(rgba, mDrawRect, mMouthRectColor);
+            }
+        }
+        mProfiler.stop(Stage.DRAW, start);
+    }
+
+    private void drawRect(final Mat rgba, final Rect rect,
+            final Scalar color) {
+        toFramePoint(rect.x, rect.y, mDrawPoint1);
+        toFramePoint(rect.x + rect.width, rect.y + rect.height,
+                mDrawPoint2);
+        Core.rectangle(rgba, mDrawPoint1, mDrawPoint2, color);
+    }
+
+    // Maps a point in the detection image to the camera frame. This
+    // is the only place where the orientation is undone.
+    private void toFramePoint(final double x, final double y,
+            final Point point) {
+        if (mOrientingFrames) {
+            point.x = mImageWidth - y;
+            point.y = mImageHeight - x;
+        } else {
+            point.x = x;
+            point.y = y;
+        }
+    }
+
+    // A cascade that was loaded before the pipeline was created.
+    private static final class LoadedCascade implements LazyCascade {
+
+        private final CascadeClassifier mCascade;
+
+        LoadedCascade(final CascadeClassifier cascade) {
+            mCascade = cascade;
+        }
+
+        @Override
+        public CascadeClassifier poll() {
+            return mCascade;
+        }
+    }
+
+    // A search for one kind of part, with its own detector, buffers
+    // and reusable geometry, so that different kinds of part can be
+    // searched on different threads.
+    private static final class PartSearch {
+
+        private final LazyCascade mDetector;
+        private final Size mMinSize;
+        private final Size mMaxSize;
+        private final MatOfRect mDetections = new MatOfRect();
+
+        // The rects found by the last search, in the coordinates of
+        // the whole image.
+        final int[] mRects = new int[MAX_DETECTIONS * RECT_SIZE];
+        int mCount;
+
+        // Whether any search since the start of the frame was skipped
+        // because the detector was still loading.
+        boolean mSkipped;
+
+        // A copy of the searched region, its geometry, and buffers
+        // for equalizing the copy.
+        private final Mat mRegionGray = new Mat();
+        private final RegionEqualizer.TileBuffers mEqualizeBuffers =
+                new RegionEqualizer.TileBuffers();
+        private final Size mRegionSize = new Size();
+        private final Point mRegionCenter = new Point();
+
+        PartSearch(final LazyCascade detector,
+                final Size minSize, final Size maxSize) {
+            mDetector = detector;
+            mMinSize = minSize;
+            mMaxSize = maxSize;
+        }
+
+        void startFrame() {
+            mSkipped = false;
+        }
+
+        void detect(final Mat gray) {
+            final CascadeClassifier detector = mDetector.poll();
+            if (detector == null) {
+                // The detector is still loading.
+                mCount = 0;
+                mSkipped = true;
+                return;
+            }
+            detector.detectMultiScale(gray, mDetections, SCALE_FACTOR,
+                    MIN_NEIGHBORS, FLAGS, mMinSize, mMaxSize);
+            mCount = readRects(mDetections, mRects);
+        }
+
+        // Searches a region of an image. If an equalizer is given,
+        // the image is not equalized, and the copy of the region is.
+        void detectInRegion(final Mat gray,
+                final RegionEqualizer equalizer, final int x, final int y,
+                final int width, final int height) {
+
+            // Clip the region to the image.
+            final int minX = Math.max(x, 0);
+            final int minY = Math.max(y, 0);
+            final int maxX = Math.min(x + width, gray.cols());
+            final int maxY = Math.min(y + height, gray.rows());
+            if (maxX - minX < mMinSize.width ||
+                    maxY - minY < mMinSize.height) {
+                // No part of the minimum size can fit in the region.
+                mCount = 0;
+                return;
+            }
+
+            // Copy the region into a reused image. Unlike a sub-Mat
+            // view, this creates no new Java object. With the center
+            // on a half-pixel grid, the copy is exact.
+            mRegionSize.width = maxX - minX;
+            mRegionSize.height = maxY - minY;
+            mRegionCenter.x = minX + (mRegionSize.width - 1.0) * 0.5;
+            mRegionCenter.y = minY + (mRegionSize.height - 1.0) * 0.5;
+            Imgproc.getRectSubPix(gray, mRegionSize, mRegionCenter,
+                    mRegionGray);
+            if (equalizer != null) {
+                equalizer.equalizeRegion(mRegionGray, mEqualizeBuffers);
+            }
+
+            detect(mRegionGray);
+            for (int i = 0; i < mCount * RECT_SIZE; i += RECT_SIZE) {
+                mRects[i] += minX;
+                mRects[i + 1] += minY;
+            }
+        }
+    }
+}
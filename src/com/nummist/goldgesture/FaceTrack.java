@@ -0,0 +1,173 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Rect;
+
+// A face that is followed from frame to frame under a stable ID,
+// with the state that belongs to it alone: the region in which its
+// features are selected, its share of the pipeline's features, the
+// motion that they have followed, and its gesture recognizer.
+//
+// Tracks belong to the thread that processes frames, and are reused
+// once their faces are gone.
+public final class FaceTrack {
+
+    private static final int RECT_SIZE = 4;
+
+    // The ID, which no other track of the same pipeline ever had.
+    int mId;
+
+    // The index of the face in the pipeline's detections, or -1 if
+    // the face was not found in the last detection.
+    int mFace;
+
+    // The number of detections in a row in which the face was not
+    // found.
+    int mMissedDetections;
+
+    // The face's rect when it was last found or followed, as x, y,
+    // width and height.
+    final int[] mRect = new int[RECT_SIZE];
+
+    // The region in which features are selected, which is the face
+    // without a margin of background on each side.
+    final Rect mMask = new Rect();
+
+    // The first of this track's features in the pipeline's feature
+    // list, and their number, which is 0 if the face is not being
+    // followed.
+    int mFirstFeature;
+    int mFeatureCount;
+
+    // The mean of the features. Each time features are selected
+    // again, the offset keeps the position continuous, so that the
+    // gesture recognizer sees only the motion of the face.
+    double mFeaturesCenterX;
+    double mFeaturesCenterY;
+    double mPositionOffsetX;
+    double mPositionOffsetY;
+
+    // The accumulated motion of the features since they were
+    // selected, and the part of it that has been applied to the
+    // integer rects of the detections.
+    double mShiftX;
+    double mShiftY;
+    int mAppliedShiftX;
+    int mAppliedShiftY;
+
+    // The recognizer of the face's gestures, which is fed the
+    // position in every frame in which the face is followed.
+    private final GestureRecognizer mGestures;
+
+    FaceTrack(final double minShakeDistance,
+            final double minNodDistance, final double minTiltDistance) {
+        mGestures = new GestureRecognizer(minShakeDistance,
+                minNodDistance, minTiltDistance);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    // Returns the index of the face in the pipeline's unfiltered
+    // detections, or -1 if it was not found in the last detection.
+    public int getFace() {
+        return mFace;
+    }
+
+    public boolean isFollowed() {
+        return mFeatureCount > 0;
+    }
+
+    public int getFeatureCount() {
+        return mFeatureCount;
+    }
+
+    // Returns the position of the features, in the coordinates of
+    // the detection image.
+    public double getPositionX() {
+        return mFeaturesCenterX + mPositionOffsetX;
+    }
+
+    public double getPositionY() {
+        return mFeaturesCenterY + mPositionOffsetY;
+    }
+
+    // Copies the region in which features are selected into the
+    // given rect.
+    public void getMask(final Rect rect) {
+        rect.x = mMask.x;
+        rect.y = mMask.y;
+        rect.width = mMask.width;
+        rect.height = mMask.height;
+    }
+
+    public GestureRecognizer getGestures() {
+        return mGestures;
+    }
+
+    // Prepares the track for a new face, whose gestures go to the
+    // given listener.
+    void reset(final int id, final GestureRecognizer.Listener listener) {
+        mId = id;
+        mGestures.setListener(listener, id);
+        mGestures.reset();
+        mFace = -1;
+        mMissedDetections = 0;
+        mFeatureCount = 0;
+        mPositionOffsetX = 0.0;
+        mPositionOffsetY = 0.0;
+    }
+
+    void setRect(final int x, final int y, final int width,
+            final int height) {
+        mRect[0] = x;
+        mRect[1] = y;
+        mRect[2] = width;
+        mRect[3] = height;
+    }
+
+    // Takes newly selected features, whose mean is given. If the face
+    // was being followed, the position carries on from where the old
+    // features left it; otherwise, the gestures start over.
+    void startFeatures(final int firstFeature, final int featureCount,
+            final double centerX, final double centerY,
+            final long timeMicros) {
+        final boolean wasFollowed = mFeatureCount > 0;
+        if (wasFollowed) {
+            mPositionOffsetX += mFeaturesCenterX - centerX;
+            mPositionOffsetY += mFeaturesCenterY - centerY;
+        } else {
+            mPositionOffsetX = 0.0;
+            mPositionOffsetY = 0.0;
+        }
+        mFirstFeature = firstFeature;
+        mFeatureCount = featureCount;
+        mFeaturesCenterX = centerX;
+        mFeaturesCenterY = centerY;
+        mShiftX = 0.0;
+        mShiftY = 0.0;
+        mAppliedShiftX = 0;
+        mAppliedShiftY = 0;
+        if (!wasFollowed) {
+            mGestures.reset();
+        }
+        mGestures.addSample(timeMicros, getPositionX(), getPositionY());
+    }
+
+    // Takes the features' places after they were followed into a new
+    // frame, and feeds the new position to the gesture recognizer.
+    void followFeatures(final int firstFeature, final int featureCount,
+            final double centerX, final double centerY,
+            final long timeMicros) {
+        mFirstFeature = firstFeature;
+        mFeatureCount = featureCount;
+        mFeaturesCenterX = centerX;
+        mFeaturesCenterY = centerY;
+        mGestures.addSample(timeMicros, getPositionX(), getPositionY());
+    }
+
+    // Forgets the features, as when the face is lost.
+    void stopFeatures() {
+        mFeatureCount = 0;
+    }
+}
@@ -0,0 +1,276 @@
+package com.nummist.goldgesture;
+
+// Matches each detection of faces to the faces of the previous
+// detections, so that every face keeps one track, and one ID, for as
+// long as it stays in view.
+//
+// A detection is matched to a track if their rects overlap enough,
+// or failing that, if their centers are close. Pairs that cannot
+// match are rejected by their centers before any overlap is
+// measured, so with faces spread over the frame, the cost grows
+// little faster than the number of faces. The remaining pairs are
+// matched greedily, best first. Nothing is allocated once the
+// buffers have grown to fit the scene.
+final class FaceTracker {
+
+    private static final int RECT_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 8;
+
+    // The least intersection over union for a match by overlap.
+    private static final double MIN_MATCH_OVERLAP = 0.3;
+
+    // The greatest distance between centers for a match by
+    // distance, relative to the larger side of the track's face.
+    private static final double MAX_MATCH_DISTANCE_PROPORTIONAL = 0.5;
+
+    // The number of detections in a row that may miss a face before
+    // its track is dropped.
+    private static final int MAX_MISSED_DETECTIONS = 2;
+
+    // The live tracks, and the dropped ones that may be reused.
+    private FaceTrack[] mTracks = new FaceTrack[INITIAL_CAPACITY];
+    private int mTrackCount;
+    private FaceTrack[] mFreeTracks = new FaceTrack[INITIAL_CAPACITY];
+    private int mFreeTrackCount;
+    private int mNextId;
+
+    // The distances that the gestures of new tracks must move, and
+    // the listener to which the tracks report gestures.
+    private double mMinShakeDistance;
+    private double mMinNodDistance;
+    private double mMinTiltDistance;
+    private GestureRecognizer.Listener mGestureListener;
+
+    // The detected faces, the candidate pairs, sorted best first and
+    // packed as the score's bits, the track and the face, and the
+    // track that each face was matched to.
+    private int[] mFaceRects = new int[INITIAL_CAPACITY * RECT_SIZE];
+    private long[] mPairs = new long[INITIAL_CAPACITY];
+    private int mPairCount;
+    private int[] mFaceTracks = new int[INITIAL_CAPACITY];
+    private boolean[] mTrackMatched = new boolean[INITIAL_CAPACITY];
+
+    int getCount() {
+        return mTrackCount;
+    }
+
+    FaceTrack get(final int i) {
+        return mTracks[i];
+    }
+
+    void setGestureDistances(final double minShakeDistance,
+            final double minNodDistance, final double minTiltDistance) {
+        mMinShakeDistance = minShakeDistance;
+        mMinNodDistance = minNodDistance;
+        mMinTiltDistance = minTiltDistance;
+        for (int i = 0; i < mTrackCount; i++) {
+            mTracks[i].getGestures().setDistances(minShakeDistance,
+                    minNodDistance, minTiltDistance);
+        }
+        for (int i = 0; i < mFreeTrackCount; i++) {
+            mFreeTracks[i].getGestures().setDistances(minShakeDistance,
+                    minNodDistance, minTiltDistance);
+        }
+    }
+
+    void setGestureListener(final GestureRecognizer.Listener listener) {
+        mGestureListener = listener;
+        for (int i = 0; i < mTrackCount; i++) {
+            mTracks[i].getGestures().setListener(listener,
+                    mTracks[i].mId);
+        }
+    }
+
+    // Forgets all progress toward any gesture, for every track.
+    void resetGestures() {
+        for (int i = 0; i < mTrackCount; i++) {
+            mTracks[i].getGestures().reset();
+        }
+    }
+
+    // Drops every track.
+    void clear() {
+        while (mTrackCount > 0) {
+            removeTrack(mTrackCount - 1);
+        }
+    }
+
+    // Matches the faces of a new detection to the tracks, starts
+    // tracks for new faces, drops tracks whose faces have been gone
+    // too long, and labels each face with its track's ID.
+    void associate(final FaceDetections detections) {
+
+        final int faceCount = detections.getFaceCount();
+        ensureFaceCapacity(faceCount);
+        for (int f = 0; f < faceCount; f++) {
+            detections.getFace(f, mFaceRects, f * RECT_SIZE);
+            mFaceTracks[f] = -1;
+        }
+
+        // Score every pair that may match.
+        mPairCount = 0;
+        for (int t = 0; t < mTrackCount; t++) {
+            mTrackMatched[t] = false;
+            final int[] trackRect = mTracks[t].mRect;
+            for (int f = 0; f < faceCount; f++) {
+                final float score = score(trackRect,
+                        mFaceRects, f * RECT_SIZE);
+                if (score > 0f) {
+                    addPair(score, t, f);
+                }
+            }
+        }
+
+        // Match the pairs, best first.
+        for (int i = 0; i < mPairCount; i++) {
+            final int t = (int)(mPairs[i] >>> 16) & 0xffff;
+            final int f = (int)mPairs[i] & 0xffff;
+            if (!mTrackMatched[t] && mFaceTracks[f] < 0) {
+                mTrackMatched[t] = true;
+                mFaceTracks[f] = t;
+            }
+        }
+
+        // Update the matched tracks, and count a miss for the rest.
+        for (int f = 0; f < faceCount; f++) {
+            final int t = mFaceTracks[f];
+            if (t >= 0) {
+                final FaceTrack track = mTracks[t];
+                track.mFace = f;
+                track.mMissedDetections = 0;
+                final int r = f * RECT_SIZE;
+                track.setRect(mFaceRects[r], mFaceRects[r + 1],
+                        mFaceRects[r + 2], mFaceRects[r + 3]);
+                detections.setFaceId(f, track.mId);
+            }
+        }
+        for (int t = mTrackCount - 1; t >= 0; t--) {
+            if (!mTrackMatched[t]) {
+                final FaceTrack track = mTracks[t];
+                track.mFace = -1;
+                track.stopFeatures();
+                track.mMissedDetections++;
+                if (track.mMissedDetections > MAX_MISSED_DETECTIONS) {
+                    removeTrack(t);
+                }
+            }
+        }
+
+        // Start a track for each new face.
+        for (int f = 0; f < faceCount; f++) {
+            if (mFaceTracks[f] < 0) {
+                final FaceTrack track = addTrack();
+                track.mFace = f;
+                final int r = f * RECT_SIZE;
+                track.setRect(mFaceRects[r], mFaceRects[r + 1],
+                        mFaceRects[r + 2], mFaceRects[r + 3]);
+                detections.setFaceId(f, track.mId);
+            }
+        }
+    }
+
+    // Returns how well a face matches a track: above 1 for a match
+    // by overlap, between 0 and 1 for a match by distance, or 0 for
+    // no match.
+    private static float score(final int[] trackRect,
+            final int[] faceRects, final int r) {
+        final int trackWidth = trackRect[2];
+        final int trackHeight = trackRect[3];
+        final double dx = (trackRect[0] + 0.5 * trackWidth) -
+                (faceRects[r] + 0.5 * faceRects[r + 2]);
+        final double dy = (trackRect[1] + 0.5 * trackHeight) -
+                (faceRects[r + 1] + 0.5 * faceRects[r + 3]);
+        final int largerSide = Math.max(trackWidth, trackHeight);
+        if (Math.abs(dx) >= Math.max(trackWidth, faceRects[r + 2]) ||
+                Math.abs(dy) >=
+                Math.max(trackHeight, faceRects[r + 3])) {
+            // The rects do not overlap in one direction, and the
+            // centers are too far apart.
+            return 0f;
+        }
+        final double overlap =
+                Rects.getOverlap(trackRect, 0, faceRects, r);
+        if (overlap >= MIN_MATCH_OVERLAP) {
+            return (float)(1.0 + overlap);
+        }
+        final double maxDistance =
+                MAX_MATCH_DISTANCE_PROPORTIONAL * largerSide;
+        final double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance >= maxDistance) {
+            return 0f;
+        }
+        return (float)(1.0 - distance / maxDistance);
+    }
+
+    // Inserts a pair in order of descending score. Positive floats
+    // order the same as their bits, so the packed pairs can be
+    // compared as they are. There are seldom many more pairs than
+    // faces, since pairs that cannot match are never added.
+    private void addPair(final float score, final int t, final int f) {
+        if (mPairCount == mPairs.length) {
+            final long[] pairs = new long[2 * mPairs.length];
+            System.arraycopy(mPairs, 0, pairs, 0, mPairCount);
+            mPairs = pairs;
+        }
+        final long pair = ((long)Float.floatToIntBits(score) << 32) |
+                ((long)t << 16) | f;
+        int i = mPairCount;
+        while (i > 0 && mPairs[i - 1] < pair) {
+            mPairs[i] = mPairs[i - 1];
+            i--;
+        }
+        mPairs[i] = pair;
+        mPairCount++;
+    }
+
+    private FaceTrack addTrack() {
+        if (mTrackCount == mTracks.length) {
+            final FaceTrack[] tracks = new FaceTrack[2 * mTracks.length];
+            System.arraycopy(mTracks, 0, tracks, 0, mTrackCount);
+            mTracks = tracks;
+            final boolean[] trackMatched = new boolean[tracks.length];
+            System.arraycopy(mTrackMatched, 0, trackMatched, 0,
+                    mTrackCount);
+            mTrackMatched = trackMatched;
+        }
+        final FaceTrack track;
+        if (mFreeTrackCount > 0) {
+            mFreeTrackCount--;
+            track = mFreeTracks[mFreeTrackCount];
+            mFreeTracks[mFreeTrackCount] = null;
+        } else {
+            track = new FaceTrack(mMinShakeDistance, mMinNodDistance,
+                    mMinTiltDistance);
+        }
+        track.reset(mNextId++, mGestureListener);
+        mTrackMatched[mTrackCount] = true;
+        mTracks[mTrackCount++] = track;
+        return track;
+    }
+
+    // Drops a track by moving the last track into its place.
+    private void removeTrack(final int t) {
+        final FaceTrack track = mTracks[t];
+        mTrackCount--;
+        mTracks[t] = mTracks[mTrackCount];
+        mTrackMatched[t] = mTrackMatched[mTrackCount];
+        mTracks[mTrackCount] = null;
+        if (mFreeTrackCount == mFreeTracks.length) {
+            final FaceTrack[] freeTracks =
+                    new FaceTrack[2 * mFreeTracks.length];
+            System.arraycopy(mFreeTracks, 0, freeTracks, 0,
+                    mFreeTrackCount);
+            mFreeTracks = freeTracks;
+        }
+        mFreeTracks[mFreeTrackCount++] = track;
+    }
+
+    private void ensureFaceCapacity(final int faceCount) {
+        if (faceCount > mFaceTracks.length) {
+            final int capacity =
+                    Math.max(faceCount, 2 * mFaceTracks.length);
+            mFaceTracks = new int[capacity];
+            mFaceRects = new int[capacity * RECT_SIZE];
+        }
+    }
+}
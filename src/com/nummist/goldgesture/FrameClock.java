@@ -0,0 +1,19 @@
+package com.nummist.goldgesture;
+
+// The time source by which the frame path measures itself. Replacing
+// it with a clock that replays recorded times makes scheduling
+// decisions reproducible offline.
+public interface FrameClock {
+
+    // Returns the current time in microseconds, from any fixed
+    // origin.
+    long nowMicros();
+
+    // The monotonic system clock.
+    FrameClock SYSTEM = new FrameClock() {
+        @Override
+        public long nowMicros() {
+            return System.nanoTime() / 1000L;
+        }
+    };
+}
@@ -0,0 +1,158 @@
+package com.nummist.goldgesture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+// Records gray camera frames, with their times and the detections
+// that were shown on them, to an append-only file that a
+// FrameReplayer can play back offline.
+//
+// The file is written through a memory mapping that is extended a
+// large chunk at a time, so recording a frame is a copy into memory,
+// and the kernel writes the pages back in the background. The
+// camera thread never waits on a write, so recording does not drop
+// preview frames.
+//
+// The file starts with a header of the magic number, the format
+// version, and the frames' width and height. Each record follows as
+// its length, then the time in microseconds, the detections, and the
+// frame's pixels, row by row. Each face is written as its track ID,
+// its rect, and its eyes and mouths, each as a count followed by
+// rects. Every number is a little-endian int, except the time, which
+// is a long. A length of 0 ends the records, so a recording that was
+// cut short by a crash can still be replayed up to its last frame.
+public final class FrameRecorder {
+
+    static final int MAGIC = 0x47475246;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int RECT_SIZE = 4;
+    private static final int INT_BYTES = 4;
+    private static final int LONG_BYTES = 8;
+
+    // The size of each mapping. Each one holds many frames.
+    private static final int CHUNK_SIZE = 32 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    // The current mapping, and the file position at which it starts.
+    private MappedByteBuffer mBuffer;
+    private long mBufferStart;
+
+    // The pixels of a frame, and a rect, both reused for each frame.
+    private final byte[] mPixels;
+    private final Rect mRect = new Rect();
+
+    private long mFrameCount;
+
+    // Creates a file for frames of the given size, replacing any
+    // file that is already there.
+    public FrameRecorder(final File file, final int width,
+            final int height) throws IOException {
+        mPixels = new byte[width * height];
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mChannel.truncate(0L);
+            map(0L, CHUNK_SIZE);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.putInt(MAGIC);
+        mBuffer.putInt(VERSION);
+        mBuffer.putInt(width);
+        mBuffer.putInt(height);
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Returns the number of bytes recorded so far.
+    public long getByteCount() {
+        return mBufferStart + mBuffer.position();
+    }
+
+    // Records a gray frame that has the camera's dimensions and is
+    // not yet oriented, with the detections that were shown on it,
+    // which may be null if there were none.
+    public void record(final long timeMicros, final Mat gray,
+            final FaceDetections detections) throws IOException {
+        final int faceCount =
+                (detections != null) ? detections.getFaceCount() : 0;
+        int length = LONG_BYTES + INT_BYTES + mPixels.length;
+        for (int face = 0; face < faceCount; face++) {
+            // The ID and the two counts, and the rects.
+            length += INT_BYTES * (3 + RECT_SIZE * (1 +
+                    detections.getEyeCount(face) +
+                    detections.getMouthCount(face)));
+        }
+        if (mBuffer.remaining() < INT_BYTES + length) {
+            // Map the next chunk from the end of the records.
+            map(mBufferStart + mBuffer.position(),
+                    Math.max(CHUNK_SIZE, INT_BYTES + length));
+        }
+
+        mBuffer.putInt(length);
+        mBuffer.putLong(timeMicros);
+        mBuffer.putInt(faceCount);
+        for (int face = 0; face < faceCount; face++) {
+            mBuffer.putInt(detections.getFaceId(face));
+            detections.getFace(face, mRect);
+            putRect(mRect);
+            final int eyeCount = detections.getEyeCount(face);
+            mBuffer.putInt(eyeCount);
+            for (int eye = 0; eye < eyeCount; eye++) {
+                detections.getEye(face, eye, mRect);
+                putRect(mRect);
+            }
+            final int mouthCount = detections.getMouthCount(face);
+            mBuffer.putInt(mouthCount);
+            for (int mouth = 0; mouth < mouthCount; mouth++) {
+                detections.getMouth(face, mouth, mRect);
+                putRect(mRect);
+            }
+        }
+        gray.get(0, 0, mPixels);
+        mBuffer.put(mPixels);
+        mFrameCount++;
+    }
+
+    // Cuts the file to the recorded length and closes it.
+    public void close() throws IOException {
+        try {
+            final long length = getByteCount();
+            mBuffer.force();
+            mBuffer = null;
+            mChannel.truncate(length);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void map(final long start, final int size)
+            throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, start,
+                size);
+        mBuffer.order(BYTE_ORDER);
+        mBufferStart = start;
+    }
+
+    private void putRect(final Rect rect) {
+        mBuffer.putInt(rect.x);
+        mBuffer.putInt(rect.y);
+        mBuffer.putInt(rect.width);
+        mBuffer.putInt(rect.height);
+    }
+}
@@ -0,0 +1,231 @@
+package com.nummist.goldgesture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Plays back a file that a FrameRecorder wrote, one frame at a time,
+// either as fast as the frames are taken or at the pace at which
+// they were recorded.
+//
+// The file is read through a read-only memory mapping of a large
+// window, which moves forward when a record does not fit in it.
+// Each frame's pixels are handed out as a view of the mapping, so
+// reading a frame copies nothing until the caller does. A frame that
+// is processed is copied once, from the mapping into the pipeline's
+// image, or twice, through an array, on a JVM that does not let the
+// pipeline view its image as a buffer.
+public final class FrameReplayer {
+
+    private static final int RECT_SIZE = 4;
+    private static final int INT_BYTES = 4;
+
+    // The least size of each mapping. Each one holds many frames.
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final int mWidth;
+    private final int mHeight;
+
+    // The current mapping, the file position at which it starts, and
+    // the file position of the next record.
+    private MappedByteBuffer mBuffer;
+    private long mBufferStart;
+    private long mPosition;
+
+    // The current frame's time, detections and pixels.
+    private long mTimeMicros;
+    private final FaceDetections mDetections = new FaceDetections();
+    private ByteBuffer mFrame;
+    private long mFrameCount;
+
+    // Whether frames are held until they are due, and the times of
+    // the first frame and of its replay, by which they are due.
+    private boolean mPaced;
+    private long mFirstTimeMicros;
+    private long mFirstReplayNanos;
+
+    public FrameReplayer(final File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mChannel = mFile.getChannel();
+            mFileSize = mChannel.size();
+            if (mFileSize < FrameRecorder.HEADER_SIZE) {
+                throw new IOException("The recording has no header");
+            }
+            map(0L, FrameRecorder.HEADER_SIZE);
+            if (mBuffer.getInt() != FrameRecorder.MAGIC) {
+                throw new IOException("Not a frame recording");
+            }
+            final int version = mBuffer.getInt();
+            if (version != FrameRecorder.VERSION) {
+                throw new IOException(
+                        "Unsupported recording version: " + version);
+            }
+            mWidth = mBuffer.getInt();
+            mHeight = mBuffer.getInt();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mPosition = FrameRecorder.HEADER_SIZE;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isPaced() {
+        return mPaced;
+    }
+
+    // Sets whether each frame is held until as long after the first
+    // one as it was recorded, or returned at once.
+    public void setPaced(final boolean paced) {
+        mPaced = paced;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Moves to the next frame, waiting until it is due if the replay
+    // is paced. Returns false at the end of the recording.
+    public boolean next() throws IOException {
+        if (mPosition + INT_BYTES > mFileSize) {
+            return false;
+        }
+        ensureMapped(mPosition, INT_BYTES);
+        final int length = mBuffer.getInt((int)(mPosition - mBufferStart));
+        if (length <= 0) {
+            // The recording was cut short.
+            return false;
+        }
+        final long recordEnd = mPosition + INT_BYTES + length;
+        if (recordEnd > mFileSize) {
+            return false;
+        }
+        ensureMapped(mPosition, INT_BYTES + length);
+        mBuffer.position((int)(mPosition - mBufferStart) + INT_BYTES);
+
+        mTimeMicros = mBuffer.getLong();
+        mDetections.clear();
+        final int faceCount = mBuffer.getInt();
+        for (int i = 0; i < faceCount; i++) {
+            final int id = mBuffer.getInt();
+            final int face = mDetections.addFace(mBuffer.getInt(),
+                    mBuffer.getInt(), mBuffer.getInt(), mBuffer.getInt());
+            mDetections.setFaceId(face, id);
+            final int eyeCount = mBuffer.getInt();
+            for (int eye = 0; eye < eyeCount; eye++) {
+                mDetections.addEye(face, mBuffer.getInt(),
+                        mBuffer.getInt(), mBuffer.getInt(),
+                        mBuffer.getInt());
+            }
+            final int mouthCount = mBuffer.getInt();
+            for (int mouth = 0; mouth < mouthCount; mouth++) {
+                mDetections.addMouth(face, mBuffer.getInt(),
+                        mBuffer.getInt(), mBuffer.getInt(),
+                        mBuffer.getInt());
+            }
+        }
+        if (recordEnd - (mBufferStart + mBuffer.position()) !=
+                mWidth * mHeight) {
+            throw new IOException("Malformed record at " + mPosition);
+        }
+        mBuffer.limit((int)(recordEnd - mBufferStart));
+        mFrame = mBuffer.slice();
+        mBuffer.clear();
+        mPosition = recordEnd;
+
+        if (mFrameCount == 0L) {
+            mFirstTimeMicros = mTimeMicros;
+            mFirstReplayNanos = System.nanoTime();
+        } else if (mPaced) {
+            waitUntilDue();
+        }
+        mFrameCount++;
+        return true;
+    }
+
+    // Returns the time at which the current frame was recorded, in
+    // microseconds.
+    public long getTimeMicros() {
+        return mTimeMicros;
+    }
+
+    // Returns the detections that were shown on the current frame.
+    // They are replaced by the next frame's.
+    public FaceDetections getDetections() {
+        return mDetections;
+    }
+
+    // Returns the current frame's pixels, row by row, as a read-only
+    // view of the recording. It is valid until the next frame.
+    public ByteBuffer getFrame() {
+        return mFrame.asReadOnlyBuffer();
+    }
+
+    // Copies the current frame's pixels into an array of at least
+    // width * height bytes.
+    public void getFrame(final byte[] pixels) {
+        mFrame.get(pixels, 0, mWidth * mHeight);
+        mFrame.rewind();
+    }
+
+    // Feeds the current frame through the pipeline, as the camera
+    // thread would, and returns the pipeline's detections.
+    public FaceDetections process(final FacePipeline pipeline) {
+        return pipeline.processGray(mFrame);
+    }
+
+    public void close() throws IOException {
+        mBuffer = null;
+        mFrame = null;
+        mFile.close();
+    }
+
+    private void waitUntilDue() {
+        final long dueNanos = mFirstReplayNanos +
+                1000L * (mTimeMicros - mFirstTimeMicros);
+        long waitNanos;
+        while ((waitNanos = dueNanos - System.nanoTime()) > 0L) {
+            try {
+                Thread.sleep(waitNanos / 1000000L,
+                        (int)(waitNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Moves the mapping, if needed, so that it holds the given range
+    // of the file.
+    private void ensureMapped(final long start, final int size)
+            throws IOException {
+        if (mBuffer != null && start >= mBufferStart &&
+                start + size <= mBufferStart + mBuffer.capacity()) {
+            return;
+        }
+        map(start, (int)Math.min(mFileSize - start,
+                Math.max(WINDOW_SIZE, size)));
+    }
+
+    private void map(final long start, final int size)
+            throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                size);
+        mBuffer.order(FrameRecorder.BYTE_ORDER);
+        mBufferStart = start;
+    }
+}
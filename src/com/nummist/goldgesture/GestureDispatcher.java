@@ -0,0 +1,193 @@
+package com.nummist.goldgesture;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Hands gestures from the thread that processes frames to a thread of
+// their own, on which slow work such as preparing audio is done.
+//
+// The gestures pass through a lock-free queue with one producer and
+// one consumer: a fixed ring of primitives with a head that only the
+// consumer moves and a tail that only the producer moves. Posting a
+// gesture never blocks and never allocates. If the queue is full, the
+// gesture is dropped and counted rather than waited for.
+public final class GestureDispatcher implements GestureRecognizer.Listener {
+
+    private static final GestureRecognizer.Gesture[] GESTURES =
+            GestureRecognizer.Gesture.values();
+
+    // The listener that receives the gestures on the consumer thread,
+    // and the clock by which dispatch latency is measured.
+    private final GestureRecognizer.Listener mTarget;
+    private final FrameClock mClock;
+
+    // The queued gestures, with the track that made each one, when
+    // it was made, and when it was posted.
+    private final int mMask;
+    private final int[] mTrackIds;
+    private final int[] mGestures;
+    private final long[] mGestureTimes;
+    private final long[] mPostTimes;
+
+    // The number of gestures ever taken by the consumer and ever
+    // posted by the producer. Their difference is the queue depth.
+    private volatile long mHead;
+    private volatile long mTail;
+
+    // Counters that are written only by the producer.
+    private volatile long mDroppedCount;
+    private volatile int mMaxDepth;
+
+    // The number of gestures handed to the target, written only by
+    // the consumer, and the number that were still queued when the
+    // dispatcher stopped, written only by stop().
+    private volatile long mDispatchedCount;
+    private volatile long mDiscardedCount;
+
+    // The time from posting to dispatch, and the time that the
+    // target took for each gesture, both written only by the
+    // consumer.
+    private final LatencyHistogram mDispatchLatency =
+            new LatencyHistogram();
+    private final LatencyHistogram mHandlingTime = new LatencyHistogram();
+
+    private volatile boolean mStopped;
+    private Thread mConsumer;
+
+    // Creates a dispatcher whose queue holds at least the given
+    // number of gestures.
+    public GestureDispatcher(final GestureRecognizer.Listener target,
+            final int capacity, final FrameClock clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "capacity must be positive: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mTarget = target;
+        mClock = clock;
+        mMask = size - 1;
+        mTrackIds = new int[size];
+        mGestures = new int[size];
+        mGestureTimes = new long[size];
+        mPostTimes = new long[size];
+    }
+
+    public void start() {
+        mStopped = false;
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchGestures();
+            }
+        }, "GestureDispatcher");
+        mConsumer.start();
+    }
+
+    // Stops the consumer once it has dispatched the gesture in hand,
+    // and waits for it. Gestures that are still queued are dropped.
+    public void stop() {
+        mStopped = true;
+        final Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mConsumer = null;
+        }
+        final long tail = mTail;
+        mDiscardedCount = mDiscardedCount + (tail - mHead);
+        mHead = tail;
+    }
+
+    // Posts a gesture. This is the producer side, which must only be
+    // called by one thread at a time.
+    @Override
+    public void onGesture(final int trackId,
+            final GestureRecognizer.Gesture gesture,
+            final long timeMicros) {
+        final long tail = mTail;
+        final int depth = (int)(tail - mHead);
+        if (depth > mMask) {
+            mDroppedCount = mDroppedCount + 1;
+            return;
+        }
+        final int i = (int)tail & mMask;
+        mTrackIds[i] = trackId;
+        mGestures[i] = gesture.ordinal();
+        mGestureTimes[i] = timeMicros;
+        mPostTimes[i] = mClock.nowMicros();
+        // Publishing the new tail makes the writes above visible to
+        // the consumer.
+        mTail = tail + 1;
+        if (depth + 1 > mMaxDepth) {
+            mMaxDepth = depth + 1;
+        }
+        final Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    public int getQueueDepth() {
+        return (int)(mTail - mHead);
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public long getPostedCount() {
+        return mTail + mDroppedCount;
+    }
+
+    // Returns the number of gestures that were dropped, because the
+    // queue was full or because they were still queued when the
+    // dispatcher stopped.
+    public long getDroppedCount() {
+        return mDroppedCount + mDiscardedCount;
+    }
+
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    public LatencyHistogram getHandlingTime() {
+        return mHandlingTime;
+    }
+
+    private void dispatchGestures() {
+        while (!mStopped) {
+            final long head = mHead;
+            if (head == mTail) {
+                // Wait for the producer to post. A wakeup may be
+                // spurious, so the queue is checked again.
+                LockSupport.park(this);
+                continue;
+            }
+            final int i = (int)head & mMask;
+            final int trackId = mTrackIds[i];
+            final GestureRecognizer.Gesture gesture =
+                    GESTURES[mGestures[i]];
+            final long gestureTime = mGestureTimes[i];
+            final long postTime = mPostTimes[i];
+            // Freeing the slot before the slow work lets the producer
+            // reuse it at once.
+            mHead = head + 1;
+
+            final long start = mClock.nowMicros();
+            mDispatchLatency.record(start - postTime);
+            mTarget.onGesture(trackId, gesture, gestureTime);
+            mHandlingTime.record(mClock.nowMicros() - start);
+            mDispatchedCount = mDispatchedCount + 1;
+        }
+    }
+}
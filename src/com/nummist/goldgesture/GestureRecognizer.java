@@ -0,0 +1,333 @@
+package com.nummist.goldgesture;
+
+// Recognizes head gestures from a stream of timestamped positions of
+// one face, in the coordinates of the detection image:
+//
+// - A nod swings back and forth in y, and a shake in x. Each swing
+//   must cover a minimum distance, at a minimum speed, within a
+//   time window. Swings add to a score that decays over time, so
+//   only swings in quick succession make a gesture.
+// - A tilt moves the face to one side of its resting position, which
+//   follows the face slowly, and holds it there.
+//
+// The samples are kept in a fixed ring buffer of primitives. Each
+// sample takes constant time and allocates nothing.
+public final class GestureRecognizer {
+
+    public enum Gesture { NOD, SHAKE, TILT }
+
+    // Receives recognized gestures, on the thread that adds samples.
+    public interface Listener {
+        void onGesture(int trackId, Gesture gesture, long timeMicros);
+    }
+
+    // The number of samples that are kept.
+    private static final int CAPACITY = 64;
+
+    private static final double MICROS_PER_SECOND = 1000000.0;
+
+    // The span over which velocity is measured, which smooths out
+    // the jitter of single frames.
+    private static final long VELOCITY_SPAN_MICROS = 100000L;
+
+    // The least speed at which a face must move to be swinging,
+    // in minimum swing distances per second.
+    private static final double MIN_SWING_SPEED_PROPORTIONAL = 1.5;
+
+    // The shortest and longest time that one swing may take.
+    private static final long MIN_SWING_MICROS = 60000L;
+    private static final long MAX_SWING_MICROS = 700000L;
+
+    // The time constant at which the swing score decays, and the
+    // score at which the swings make a gesture. With a swing adding
+    // 1, this needs three swings in about a second.
+    private static final double SWING_DECAY_MICROS = 1500000.0;
+    private static final double MIN_SWING_SCORE = 2.2;
+
+    // The time constant at which the resting position follows the
+    // face, and the time for which a tilt must be held.
+    private static final double REST_DECAY_MICROS = 3000000.0;
+    private static final long MIN_TILT_MICROS = 500000L;
+
+    // The time after a gesture in which no other gesture is
+    // recognized.
+    private static final long REFRACTORY_MICROS = 800000L;
+
+    // The samples, oldest first from the tail.
+    private final long[] mTimes = new long[CAPACITY];
+    private final double[] mXs = new double[CAPACITY];
+    private final double[] mYs = new double[CAPACITY];
+    private int mHead;
+    private int mCount;
+
+    // The oldest sample that lies within the velocity span.
+    private int mVelocityTail;
+
+    private final Axis mShakeAxis = new Axis();
+    private final Axis mNodAxis = new Axis();
+
+    // The minimum distance of a tilt, the resting position in x, and
+    // the time since which the face has been held to one side, or -1.
+    private double mMinTiltDistance;
+    private double mRestX;
+    private long mTiltStartTime = -1L;
+    private boolean mTiltArmed;
+
+    private long mLastGestureTime;
+    private boolean mHasGesture;
+
+    private Listener mListener;
+    private int mTrackId;
+
+    public GestureRecognizer(final double minShakeDistance,
+            final double minNodDistance, final double minTiltDistance) {
+        setDistances(minShakeDistance, minNodDistance, minTiltDistance);
+    }
+
+    public void setDistances(final double minShakeDistance,
+            final double minNodDistance, final double minTiltDistance) {
+        mShakeAxis.setMinDistance(minShakeDistance);
+        mNodAxis.setMinDistance(minNodDistance);
+        mMinTiltDistance = minTiltDistance;
+    }
+
+    public void setListener(final Listener listener, final int trackId) {
+        mListener = listener;
+        mTrackId = trackId;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    // Returns the swing scores, which reach MIN_SWING_SCORE when a
+    // gesture is recognized.
+    public double getShakeScore() {
+        return mShakeAxis.mScore;
+    }
+
+    public double getNodScore() {
+        return mNodAxis.mScore;
+    }
+
+    // Forgets every sample and all progress toward any gesture, as
+    // when the face is lost or a gesture has been answered.
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mVelocityTail = 0;
+        mShakeAxis.reset();
+        mNodAxis.reset();
+        mTiltStartTime = -1L;
+        mTiltArmed = false;
+        mHasGesture = false;
+    }
+
+    // Adds a sample, and reports any gesture that it completes.
+    public void addSample(final long timeMicros, final double x,
+            final double y) {
+
+        // Store the sample, overwriting the oldest one if the buffer
+        // is full.
+        final int i = (mHead + mCount) % CAPACITY;
+        if (mCount == CAPACITY) {
+            mHead = (mHead + 1) % CAPACITY;
+            if (mVelocityTail == i) {
+                mVelocityTail = mHead;
+            }
+        } else {
+            mCount++;
+        }
+        mTimes[i] = timeMicros;
+        mXs[i] = x;
+        mYs[i] = y;
+        if (mCount == 1) {
+            mVelocityTail = i;
+            mShakeAxis.start(timeMicros, x);
+            mNodAxis.start(timeMicros, y);
+            mRestX = x;
+            mTiltArmed = true;
+            return;
+        }
+
+        // Measure the velocity since the oldest sample in the span.
+        // The tail only moves forward, so this is constant time over
+        // any run of samples.
+        while (mVelocityTail != i && timeMicros -
+                mTimes[(mVelocityTail + 1) % CAPACITY] >=
+                VELOCITY_SPAN_MICROS) {
+            mVelocityTail = (mVelocityTail + 1) % CAPACITY;
+        }
+        final long spanMicros = timeMicros - mTimes[mVelocityTail];
+        if (spanMicros <= 0L) {
+            return;
+        }
+        final double seconds = spanMicros / MICROS_PER_SECOND;
+        final double velocityX = (x - mXs[mVelocityTail]) / seconds;
+        final double velocityY = (y - mYs[mVelocityTail]) / seconds;
+
+        final int previous = (i + CAPACITY - 1) % CAPACITY;
+        final long dt = timeMicros - mTimes[previous];
+        mShakeAxis.update(timeMicros, dt, x, velocityX);
+        mNodAxis.update(timeMicros, dt, y, velocityY);
+
+        // Let the resting position follow the face, but not while it
+        // is held to one side.
+        final double offsetX = x - mRestX;
+        if (mTiltStartTime < 0L) {
+            mRestX += offsetX * (1.0 - Math.exp(-dt / REST_DECAY_MICROS));
+        }
+
+        if (mHasGesture &&
+                timeMicros - mLastGestureTime < REFRACTORY_MICROS) {
+            // Swings this soon after a gesture belong to it, so they
+            // do not count toward another one.
+            mShakeAxis.clearScore();
+            mNodAxis.clearScore();
+            return;
+        }
+
+        final boolean shaking = mShakeAxis.mScore >= MIN_SWING_SCORE;
+        final boolean nodding = mNodAxis.mScore >= MIN_SWING_SCORE;
+        if (shaking && nodding) {
+            // The gesture is ambiguous. Ignore it.
+            mShakeAxis.clearScore();
+            mNodAxis.clearScore();
+        } else if (shaking) {
+            emit(Gesture.SHAKE, timeMicros);
+        } else if (nodding) {
+            emit(Gesture.NOD, timeMicros);
+        } else {
+            updateTilt(timeMicros, offsetX, velocityX);
+        }
+    }
+
+    private void updateTilt(final long timeMicros, final double offsetX,
+            final double velocityX) {
+        final double distance = Math.abs(offsetX);
+        if (distance < 0.5 * mMinTiltDistance) {
+            // The face is back at rest, so it may tilt again.
+            mTiltArmed = true;
+            mTiltStartTime = -1L;
+        } else if (distance >= mMinTiltDistance && mTiltArmed &&
+                Math.abs(velocityX) < mShakeAxis.mMinSpeed) {
+            if (mTiltStartTime < 0L) {
+                mTiltStartTime = timeMicros;
+            } else if (timeMicros - mTiltStartTime >= MIN_TILT_MICROS) {
+                mTiltArmed = false;
+                emit(Gesture.TILT, timeMicros);
+            }
+        } else {
+            mTiltStartTime = -1L;
+        }
+    }
+
+    private void emit(final Gesture gesture, final long timeMicros) {
+        mShakeAxis.clearScore();
+        mNodAxis.clearScore();
+        mTiltStartTime = -1L;
+        mLastGestureTime = timeMicros;
+        mHasGesture = true;
+        if (mListener != null) {
+            mListener.onGesture(mTrackId, gesture, timeMicros);
+        }
+    }
+
+    // The swings along one axis. A swing ends where the motion turns
+    // back, at the farthest position that it reached.
+    private static final class Axis {
+
+        double mMinDistance;
+        double mMinSpeed;
+
+        // The direction of the current swing (-1, 0 or 1), the
+        // position and time at which it started, and the farthest
+        // position that it has reached.
+        int mDirection;
+        double mStart;
+        long mStartTime;
+        double mExtreme;
+        long mExtremeTime;
+
+        double mScore;
+
+        void setMinDistance(final double minDistance) {
+            mMinDistance = minDistance;
+            mMinSpeed = minDistance * MIN_SWING_SPEED_PROPORTIONAL;
+        }
+
+        void reset() {
+            mDirection = 0;
+            mScore = 0.0;
+        }
+
+        void clearScore() {
+            mScore = 0.0;
+        }
+
+        void start(final long timeMicros, final double position) {
+            mDirection = 0;
+            mStart = position;
+            mStartTime = timeMicros;
+            mExtreme = position;
+            mExtremeTime = timeMicros;
+        }
+
+        void update(final long timeMicros, final long dt,
+                final double position, final double velocity) {
+
+            mScore *= Math.exp(-dt / SWING_DECAY_MICROS);
+
+            final int direction;
+            if (velocity >= mMinSpeed) {
+                direction = 1;
+            } else if (velocity <= -mMinSpeed) {
+                direction = -1;
+            } else {
+                direction = 0;
+            }
+
+            if (mDirection == 0) {
+                if (direction != 0) {
+                    // The first swing starts where the face was last
+                    // at its farthest, or at rest.
+                    mDirection = direction;
+                    mStart = mExtreme;
+                    mStartTime = mExtremeTime;
+                    mExtreme = position;
+                    mExtremeTime = timeMicros;
+                } else {
+                    mExtreme = position;
+                    mExtremeTime = timeMicros;
+                }
+                return;
+            }
+
+            if ((mDirection > 0 && position > mExtreme) ||
+                    (mDirection < 0 && position < mExtreme)) {
+                mExtreme = position;
+                mExtremeTime = timeMicros;
+            }
+
+            if (direction == -mDirection) {
+                // The motion turned back, ending the swing.
+                final long swingMicros = mExtremeTime - mStartTime;
+                if (Math.abs(mExtreme - mStart) >= mMinDistance &&
+                        swingMicros >= MIN_SWING_MICROS &&
+                        swingMicros <= MAX_SWING_MICROS) {
+                    mScore += 1.0;
+                }
+                mDirection = direction;
+                mStart = mExtreme;
+                mStartTime = mExtremeTime;
+                mExtreme = position;
+                mExtremeTime = timeMicros;
+            } else if (timeMicros - mExtremeTime > MAX_SWING_MICROS) {
+                // The face has come to rest.
+                mDirection = 0;
+                mExtreme = position;
+                mExtremeTime = timeMicros;
+            }
+        }
+    }
+}
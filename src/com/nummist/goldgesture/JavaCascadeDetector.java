@@ -0,0 +1,47 @@
+package com.nummist.goldgesture;
+
+import java.util.concurrent.ExecutorService;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+// A CascadeEvaluator as a detector backend, so that the pure-Java
+// path can stand in for, or be calibrated against, an OpenCV
+// cascade.
+public final class JavaCascadeDetector implements ObjectDetector {
+
+    private final String mName;
+    private final CascadeEvaluator mEvaluator;
+
+    // The pixels of the image being searched, which are copied out of
+    // the Mat.
+    private byte[] mPixels = new byte[0];
+
+    public JavaCascadeDetector(final String name,
+            final CascadeModel model, final ExecutorService executor) {
+        mName = name;
+        mEvaluator = new CascadeEvaluator(model, executor);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int detect(final Mat gray, final double scaleFactor,
+            final int minNeighbors, final Size minSize,
+            final Size maxSize, final int[] rects) {
+        final int width = gray.cols();
+        final int height = gray.rows();
+        if (mPixels.length < width * height) {
+            mPixels = new byte[width * height];
+        }
+        gray.get(0, 0, mPixels);
+        // OpenCV truncates the sizes when it converts them to
+        // integers.
+        return mEvaluator.detect(mPixels, width, height, scaleFactor,
+                minNeighbors, (int) minSize.width, (int) minSize.height,
+                (int) maxSize.width, (int) maxSize.height, rects);
+    }
+}
@@ -0,0 +1,102 @@
+package com.nummist.goldgesture;
+
+// A histogram of latencies in microseconds, with a fixed set of
+// buckets. Small values get a bucket each; larger values fall into
+// sixteen buckets per power of two, so every bucket is within about
+// 6% of its values. Recording is a few integer operations and never
+// allocates.
+//
+// A histogram is written by one thread. Other threads may read it
+// at any time, and may see the last few samples missing.
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values up to 2^27 microseconds (over two minutes) are kept
+    // apart. Larger values share the last bucket.
+    private static final int MAX_SHIFT = 27 - SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT =
+            (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mCount;
+    private long mTotal;
+    private long mMax;
+
+    public void record(final long micros) {
+        final long value = Math.max(micros, 0L);
+        mCounts[getBucket(value)]++;
+        mCount++;
+        mTotal += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotal = 0;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public double getMean() {
+        if (mCount == 0) {
+            return 0.0;
+        }
+        return (double)mTotal / mCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    // Returns the value, in microseconds, below which the given
+    // fraction of samples fall. The value is the middle of the
+    // bucket that holds that sample.
+    public double getPercentile(final double fraction) {
+        if (mCount == 0) {
+            return 0.0;
+        }
+        final long rank = Math.max(1L,
+                (long)Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                final long lower = getBucketLowerBound(i);
+                final long upper = getBucketLowerBound(i + 1);
+                return Math.min(0.5 * (lower + upper - 1), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    static int getBucket(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int)value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        return (shift << SUB_BUCKET_BITS) + (int)(value >> shift);
+    }
+
+    static long getBucketLowerBound(final int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        final long mantissa = bucket - (shift << SUB_BUCKET_BITS);
+        return mantissa << shift;
+    }
+}
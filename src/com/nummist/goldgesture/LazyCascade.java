@@ -0,0 +1,12 @@
+package com.nummist.goldgesture;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+// A cascade that may still be loading. The frame path polls it and
+// skips the search until the cascade is ready, rather than waiting.
+public interface LazyCascade {
+
+    // Returns the loaded cascade, or null if it is not ready yet. The
+    // first call may start loading it.
+    CascadeClassifier poll();
+}
@@ -0,0 +1,39 @@
+package com.nummist.goldgesture;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+
+import org.opencv.core.Mat;
+
+// Views of a Mat's pixels as direct byte buffers, so that pixels in
+// another buffer, such as a memory mapping, can be copied into a Mat
+// with one native copy. OpenCV's Java API in 2.4 only copies pixels
+// in from arrays, so the view is made with the constructor by which
+// JNI wraps native memory in a direct buffer. Where that constructor
+// cannot be reached, as on Android or on a JVM that does not open
+// java.nio to the app, no view is made.
+final class MatBuffers {
+
+    private MatBuffers() {
+    }
+
+    // Returns a view of a continuous 8-bit Mat's pixels, or null if
+    // none can be made. The view is only valid while the Mat keeps
+    // its data.
+    static ByteBuffer wrap(final Mat mat) {
+        final long address = mat.dataAddr();
+        if (address == 0L || !mat.isContinuous()) {
+            return null;
+        }
+        final int size = mat.rows() * mat.cols() * mat.channels();
+        try {
+            final Constructor<?> constructor =
+                    Class.forName("java.nio.DirectByteBuffer")
+                    .getDeclaredConstructor(long.class, int.class);
+            constructor.setAccessible(true);
+            return (ByteBuffer)constructor.newInstance(address, size);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
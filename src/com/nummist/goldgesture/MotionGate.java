@@ -0,0 +1,180 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Measures how much each region of the scene has changed since a
+// reference frame, on a thumbnail of a few hundred pixels, so that
+// detections of regions that have not changed can be reused instead
+// of running the cascades again.
+//
+// Each pixel of the thumbnail is the mean of a block of the frame,
+// and its absolute difference from the reference thumbnail measures
+// the change of that block. A region has not changed if the mean
+// difference of the blocks that it touches is within a threshold.
+// Averaging over blocks hides the sensor noise that differs in every
+// frame, while a moving head still changes many blocks.
+//
+// The gate also counts how often detections were reused.
+public final class MotionGate {
+
+    // The width of the thumbnail. Its height keeps the frame's aspect
+    // ratio.
+    private static final int THUMBNAIL_WIDTH = 32;
+
+    // The greatest mean difference, in gray levels, at which a region
+    // has not changed.
+    private static final double MAX_STATIC_DIFFERENCE = 4.0;
+
+    private final Mat mThumbnail = new Mat();
+    private final Size mThumbnailSize = new Size();
+    private int mCols;
+    private int mRows;
+
+    // The blocks per pixel of the frame, across and down.
+    private double mScaleX;
+    private double mScaleY;
+
+    // The current and reference thumbnails, the difference of each
+    // block, and the sum of the differences.
+    private byte[] mPixels = new byte[0];
+    private byte[] mReference = new byte[0];
+    private int[] mDifferences = new int[0];
+    private long mTotalDifference;
+    private boolean mHasReference;
+
+    // The frames on which detection was due and there was a
+    // reference to compare with, the frames whose detections were
+    // reused whole, and the faces and part searches that were
+    // reused on other frames. The part counters are each written by
+    // one thread, since the two kinds of part may be searched on
+    // different threads.
+    private long mCheckedFrameCount;
+    private long mReusedFrameCount;
+    private long mReusedFaceCount;
+    private long mReusedEyeSearchCount;
+    private long mReusedMouthSearchCount;
+
+    public long getCheckedFrameCount() {
+        return mCheckedFrameCount;
+    }
+
+    public long getReusedFrameCount() {
+        return mReusedFrameCount;
+    }
+
+    public long getReusedFaceCount() {
+        return mReusedFaceCount;
+    }
+
+    public long getReusedEyeSearchCount() {
+        return mReusedEyeSearchCount;
+    }
+
+    public long getReusedMouthSearchCount() {
+        return mReusedMouthSearchCount;
+    }
+
+    // Forgets the reference frame, so that nothing is reused until
+    // another one is set.
+    void reset() {
+        mHasReference = false;
+    }
+
+    boolean hasReference() {
+        return mHasReference;
+    }
+
+    // Makes a thumbnail of a frame and measures how much each of its
+    // blocks differs from the reference.
+    void measure(final Mat gray) {
+        final int cols = THUMBNAIL_WIDTH;
+        final int rows = Math.max(1, (int)Math.round(
+                (double)gray.rows() * cols / gray.cols()));
+        if (cols != mCols || rows != mRows) {
+            // The frames have a new size, so the reference is stale.
+            mCols = cols;
+            mRows = rows;
+            mThumbnailSize.width = cols;
+            mThumbnailSize.height = rows;
+            mPixels = new byte[cols * rows];
+            mReference = new byte[cols * rows];
+            mDifferences = new int[cols * rows];
+            mHasReference = false;
+        }
+        mScaleX = (double)cols / gray.cols();
+        mScaleY = (double)rows / gray.rows();
+        Imgproc.resize(gray, mThumbnail, mThumbnailSize, 0.0, 0.0,
+                Imgproc.INTER_AREA);
+        mThumbnail.get(0, 0, mPixels);
+
+        if (!mHasReference) {
+            return;
+        }
+        long total = 0L;
+        for (int i = 0; i < mPixels.length; i++) {
+            final int difference =
+                    Math.abs((mPixels[i] & 0xff) - (mReference[i] & 0xff));
+            mDifferences[i] = difference;
+            total += difference;
+        }
+        mTotalDifference = total;
+        mCheckedFrameCount++;
+    }
+
+    // Makes the last measured frame the reference.
+    void setReference() {
+        System.arraycopy(mPixels, 0, mReference, 0, mPixels.length);
+        mHasReference = true;
+    }
+
+    // Returns whether the whole scene is the same as the reference.
+    boolean isStatic() {
+        return mHasReference &&
+                mTotalDifference <= MAX_STATIC_DIFFERENCE * mPixels.length;
+    }
+
+    // Returns whether a region of the frame, in the frame's
+    // coordinates, is the same as in the reference.
+    boolean isRegionStatic(final int x, final int y, final int width,
+            final int height) {
+        if (!mHasReference) {
+            return false;
+        }
+        final int minCol = Math.max((int)Math.floor(x * mScaleX), 0);
+        final int minRow = Math.max((int)Math.floor(y * mScaleY), 0);
+        final int maxCol = Math.min(
+                (int)Math.ceil((x + width) * mScaleX), mCols);
+        final int maxRow = Math.min(
+                (int)Math.ceil((y + height) * mScaleY), mRows);
+        if (minCol >= maxCol || minRow >= maxRow) {
+            return false;
+        }
+        long total = 0L;
+        for (int row = minRow; row < maxRow; row++) {
+            final int end = row * mCols + maxCol;
+            for (int i = row * mCols + minCol; i < end; i++) {
+                total += mDifferences[i];
+            }
+        }
+        return total <= MAX_STATIC_DIFFERENCE *
+                (maxCol - minCol) * (maxRow - minRow);
+    }
+
+    void countReusedFrame() {
+        mReusedFrameCount++;
+    }
+
+    void countReusedFace() {
+        mReusedFaceCount++;
+    }
+
+    void countReusedEyeSearch() {
+        mReusedEyeSearchCount++;
+    }
+
+    void countReusedMouthSearch() {
+        mReusedMouthSearchCount++;
+    }
+}
@@ -0,0 +1,21 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+// A backend that searches a gray image for objects at multiple
+// scales, such as a Haar or LBP cascade. Results are read into a
+// primitive array, so a backend need not be an OpenCV cascade.
+public interface ObjectDetector {
+
+    // Returns a short name for logs and reports.
+    String getName();
+
+    // Searches the image for objects between the given sizes, with
+    // the given step between scales and number of neighboring
+    // detections required, and reads them as x, y, width and height
+    // into the given array. Objects that do not fit in the array are
+    // ignored. Returns the number of objects read.
+    int detect(Mat gray, double scaleFactor, int minNeighbors,
+            Size minSize, Size maxSize, int[] rects);
+}
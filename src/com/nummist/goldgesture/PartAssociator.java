@@ -0,0 +1,226 @@
+package com.nummist.goldgesture;
+
+// Gives detected parts of one kind (eyes or mouths) to the faces in
+// which they lie, in one pass. The parts are bucketed into a coarse
+// grid over the image, and each face looks only in the cells that
+// its acceptance region covers, so the cost is linear in the number
+// of detections rather than their product. A part that lies in more
+// than one face goes only to the face in which it lies nearest the
+// middle of the acceptance region, so no part belongs to two faces.
+//
+// Each kind of part has its own associator, so that the kinds can be
+// associated on different threads.
+final class PartAssociator {
+
+    enum Kind {
+        // An eye's top lies in the upper part of the face, and its
+        // center lies inside the face.
+        EYE,
+        // A mouth's center lies in the lower middle of the face.
+        MOUTH
+    }
+
+    private static final int RECT_SIZE = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // The number of grid cells along each side of the image.
+    private static final int GRID_SIDE = 8;
+
+    // The portion of the face's width, from its top, in which an
+    // eye's top lies.
+    private static final double EYE_TOP_PROPORTIONAL = 0.3;
+
+    private final Kind mKind;
+
+    // The parts, as x, y, width and height, and the point of each by
+    // which it is bucketed and tested.
+    private int[] mRects = new int[INITIAL_CAPACITY * RECT_SIZE];
+    private int[] mAnchors = new int[INITIAL_CAPACITY * 2];
+    private int mCount;
+
+    // The grid, as the first part in each cell and the next part in
+    // the same cell, or -1.
+    private final int[] mCellHeads = new int[GRID_SIDE * GRID_SIDE];
+    private int[] mNextParts = new int[INITIAL_CAPACITY];
+    private double mCellWidth;
+    private double mCellHeight;
+
+    // The face that each part goes to, or -1, and how far from the
+    // middle of that face's acceptance region it lies, relative to
+    // the face's size.
+    private int[] mFaces = new int[INITIAL_CAPACITY];
+    private double[] mDistances = new double[INITIAL_CAPACITY];
+
+    PartAssociator(final Kind kind) {
+        mKind = kind;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    // Adds parts that were detected in the image.
+    void add(final int[] rects, final int count) {
+        ensureCapacity(mCount + count);
+        for (int i = 0; i < count * RECT_SIZE; i += RECT_SIZE) {
+            final int r = mCount * RECT_SIZE;
+            System.arraycopy(rects, i, mRects, r, RECT_SIZE);
+            mAnchors[2 * mCount] = rects[i] + rects[i + 2] / 2;
+            if (mKind == Kind.EYE) {
+                mAnchors[2 * mCount + 1] = rects[i + 1];
+            } else {
+                mAnchors[2 * mCount + 1] =
+                        rects[i + 1] + rects[i + 3] / 2;
+            }
+            mCount++;
+        }
+    }
+
+    // Gives the parts to the given faces, which are the first faces of
+    // the detections, in the same order, and adds them to the
+    // detections. Returns the number of parts that were given to a
+    // face.
+    int associate(final int[] faceRects, final int faceCount,
+            final int imageWidth, final int imageHeight,
+            final FaceDetections detections) {
+
+        // Bucket the parts by their anchors. A part that is found
+        // again in its cell, as when the search regions of two faces
+        // overlap, is bucketed only once.
+        mCellWidth = Math.max(imageWidth, 1) / (double)GRID_SIDE;
+        mCellHeight = Math.max(imageHeight, 1) / (double)GRID_SIDE;
+        for (int cell = 0; cell < mCellHeads.length; cell++) {
+            mCellHeads[cell] = -1;
+        }
+        for (int part = 0; part < mCount; part++) {
+            final int cell = getCellRow(mAnchors[2 * part + 1]) *
+                    GRID_SIDE + getCellColumn(mAnchors[2 * part]);
+            mFaces[part] = -1;
+            if (!containsRect(mCellHeads[cell], part)) {
+                mNextParts[part] = mCellHeads[cell];
+                mCellHeads[cell] = part;
+            }
+        }
+
+        // Let each face claim the parts in its acceptance region,
+        // unless a face in which they lie nearer the middle has
+        // claimed them.
+        for (int face = 0; face < faceCount; face++) {
+            final int r = face * RECT_SIZE;
+            final int x = faceRects[r];
+            final int y = faceRects[r + 1];
+            final int width = faceRects[r + 2];
+            final int height = faceRects[r + 3];
+            final int minX;
+            final int maxX;
+            final int minY;
+            final int maxY;
+            if (mKind == Kind.EYE) {
+                minX = x;
+                maxX = x + width;
+                minY = y;
+                maxY = (int)Math.ceil(y + EYE_TOP_PROPORTIONAL * width);
+            } else {
+                minX = x + width / 3 + 1;
+                maxX = x + width - width / 3;
+                minY = y + width / 2 + 1;
+                maxY = y + height;
+            }
+            if (maxX <= minX || maxY <= minY) {
+                continue;
+            }
+            final double middleX = 0.5 * (minX + maxX);
+            final double middleY = 0.5 * (minY + maxY);
+            final int lastRow = getCellRow(maxY - 1);
+            final int lastColumn = getCellColumn(maxX - 1);
+            for (int row = getCellRow(minY); row <= lastRow; row++) {
+                for (int column = getCellColumn(minX);
+                        column <= lastColumn; column++) {
+                    int part = mCellHeads[row * GRID_SIDE + column];
+                    while (part >= 0) {
+                        final int anchorX = mAnchors[2 * part];
+                        final int anchorY = mAnchors[2 * part + 1];
+                        if (anchorX >= minX && anchorX < maxX &&
+                                anchorY >= minY && anchorY < maxY) {
+                            final double dx =
+                                    (anchorX - middleX) / width;
+                            final double dy =
+                                    (anchorY - middleY) / width;
+                            final double distance = dx * dx + dy * dy;
+                            if (mFaces[part] < 0 ||
+                                    distance < mDistances[part]) {
+                                mFaces[part] = face;
+                                mDistances[part] = distance;
+                            }
+                        }
+                        part = mNextParts[part];
+                    }
+                }
+            }
+        }
+
+        // Add the parts to their faces, in the order of detection.
+        int associatedCount = 0;
+        for (int part = 0; part < mCount; part++) {
+            final int face = mFaces[part];
+            if (face < 0) {
+                continue;
+            }
+            final int r = part * RECT_SIZE;
+            if (mKind == Kind.EYE) {
+                detections.addEye(face, mRects[r], mRects[r + 1],
+                        mRects[r + 2], mRects[r + 3]);
+            } else {
+                detections.addMouth(face, mRects[r], mRects[r + 1],
+                        mRects[r + 2], mRects[r + 3]);
+            }
+            associatedCount++;
+        }
+        return associatedCount;
+    }
+
+    private int getCellColumn(final int x) {
+        return Math.min(Math.max((int)(x / mCellWidth), 0),
+                GRID_SIDE - 1);
+    }
+
+    private int getCellRow(final int y) {
+        return Math.min(Math.max((int)(y / mCellHeight), 0),
+                GRID_SIDE - 1);
+    }
+
+    // Returns whether a cell's list, from the given part on, holds a
+    // part with the same rect as another part.
+    private boolean containsRect(final int firstPart, final int part) {
+        final int r = part * RECT_SIZE;
+        for (int other = firstPart; other >= 0;
+                other = mNextParts[other]) {
+            final int o = other * RECT_SIZE;
+            if (mRects[o] == mRects[r] && mRects[o + 1] == mRects[r + 1] &&
+                    mRects[o + 2] == mRects[r + 2] &&
+                    mRects[o + 3] == mRects[r + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(final int count) {
+        if (count > mFaces.length) {
+            final int capacity = Math.max(count, 2 * mFaces.length);
+            final int[] rects = new int[capacity * RECT_SIZE];
+            System.arraycopy(mRects, 0, rects, 0, mCount * RECT_SIZE);
+            mRects = rects;
+            final int[] anchors = new int[capacity * 2];
+            System.arraycopy(mAnchors, 0, anchors, 0, mCount * 2);
+            mAnchors = anchors;
+            mNextParts = new int[capacity];
+            mFaces = new int[capacity];
+            mDistances = new double[capacity];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.nummist.goldgesture;
+
+// Plays the guessing game over a CharacterTable: it keeps the
+// characters that the answers so far allow, and asks the question
+// that best splits them.
+//
+// The candidates are a bitset, so an answer eliminates the
+// characters that disagree with it in one pass over the words that
+// may still hold candidates. The next question is the one whose yes
+// and no sides are closest in size, found by counting bits over the
+// same words. Once one candidate is left, or the candidates can no
+// longer be told apart, the engine asks the remaining questions to
+// which the guess would answer yes, so that a person who is not in
+// the table is not mistaken for a character. Nothing is allocated
+// after construction.
+public final class QuestionEngine {
+
+    private final CharacterTable mTable;
+
+    // The characters that the answers so far allow, their number,
+    // and the range of words outside of which every word is 0.
+    private final long[] mCandidates;
+    private int mCandidateCount;
+    private int mFirstWord;
+    private int mEndWord;
+
+    private final boolean[] mAsked;
+
+    // The question to ask next, or -1 if the game is over.
+    private int mQuestion;
+
+    public QuestionEngine(final CharacterTable table) {
+        mTable = table;
+        mCandidates = new long[table.mWordCount];
+        mAsked = new boolean[table.mQuestions.length];
+        reset();
+    }
+
+    public CharacterTable getTable() {
+        return mTable;
+    }
+
+    // Starts a new game, with every character as a candidate.
+    public void reset() {
+        final int characterCount = mTable.mCharacters.length;
+        final int fullWords = characterCount >>> 6;
+        for (int w = 0; w < fullWords; w++) {
+            mCandidates[w] = -1L;
+        }
+        if (fullWords < mCandidates.length) {
+            mCandidates[fullWords] = (1L << characterCount) - 1L;
+        }
+        mCandidateCount = characterCount;
+        mFirstWord = 0;
+        mEndWord = mCandidates.length;
+        for (int q = 0; q < mAsked.length; q++) {
+            mAsked[q] = false;
+        }
+        mQuestion = chooseQuestion();
+    }
+
+    // Takes the state of another engine over the same table, as when
+    // looking ahead at the outcome of an answer.
+    public void copyFrom(final QuestionEngine other) {
+        if (other.mTable != mTable) {
+            throw new IllegalArgumentException(
+                    "The engines have different tables");
+        }
+        System.arraycopy(other.mCandidates, 0, mCandidates, 0,
+                mCandidates.length);
+        System.arraycopy(other.mAsked, 0, mAsked, 0, mAsked.length);
+        mCandidateCount = other.mCandidateCount;
+        mFirstWord = other.mFirstWord;
+        mEndWord = other.mEndWord;
+        mQuestion = other.mQuestion;
+    }
+
+    // Returns the question to ask next, or -1 if the game is over.
+    public int getQuestion() {
+        return mQuestion;
+    }
+
+    public int getCandidateCount() {
+        return mCandidateCount;
+    }
+
+    // Returns the character that the engine guesses, which is the
+    // first candidate, or -1 if there is none. Once the game is over,
+    // the guess is the answer.
+    public int getGuess() {
+        for (int w = mFirstWord; w < mEndWord; w++) {
+            if (mCandidates[w] != 0L) {
+                return (w << 6) +
+                        Long.numberOfTrailingZeros(mCandidates[w]);
+            }
+        }
+        return -1;
+    }
+
+    // Eliminates the candidates that would have answered the current
+    // question otherwise, and chooses the next question.
+    public void answer(final boolean yes) {
+        if (mQuestion < 0) {
+            throw new IllegalStateException("The game is over");
+        }
+        final long[] yesBits = mTable.mYesBits;
+        final int offset = mQuestion * mTable.mWordCount;
+        final long flip = yes ? 0L : -1L;
+        int count = 0;
+        int firstWord = mEndWord;
+        int endWord = mFirstWord;
+        for (int w = mFirstWord; w < mEndWord; w++) {
+            final long candidates =
+                    mCandidates[w] & (yesBits[offset + w] ^ flip);
+            mCandidates[w] = candidates;
+            if (candidates != 0L) {
+                count += Long.bitCount(candidates);
+                if (firstWord > w) {
+                    firstWord = w;
+                }
+                endWord = w + 1;
+            }
+        }
+        mCandidateCount = count;
+        mFirstWord = (count > 0) ? firstWord : 0;
+        mEndWord = (count > 0) ? endWord : 0;
+        mAsked[mQuestion] = true;
+        mQuestion = chooseQuestion();
+    }
+
+    // Returns the unasked question that splits the candidates most
+    // evenly, or if none splits them, a question that confirms the
+    // guess.
+    private int chooseQuestion() {
+        if (mCandidateCount == 0) {
+            return -1;
+        }
+        final long[] yesBits = mTable.mYesBits;
+        final int wordCount = mTable.mWordCount;
+        // A split cannot be more even than this.
+        final int bestPossible = mCandidateCount & 1;
+        int best = -1;
+        int bestImbalance = Integer.MAX_VALUE;
+        if (mCandidateCount > 1) {
+            for (int q = 0; q < mAsked.length; q++) {
+                if (mAsked[q]) {
+                    continue;
+                }
+                final int offset = q * wordCount;
+                int yesCount = 0;
+                for (int w = mFirstWord; w < mEndWord; w++) {
+                    yesCount +=
+                            Long.bitCount(mCandidates[w] & yesBits[offset + w]);
+                }
+                if (yesCount == 0 || yesCount == mCandidateCount) {
+                    // The question does not tell the candidates apart.
+                    continue;
+                }
+                final int imbalance =
+                        Math.abs(2 * yesCount - mCandidateCount);
+                if (imbalance < bestImbalance) {
+                    best = q;
+                    bestImbalance = imbalance;
+                    if (imbalance == bestPossible) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (best >= 0) {
+            return best;
+        }
+        final int guess = getGuess();
+        for (int q = 0; q < mAsked.length; q++) {
+            if (!mAsked[q] && mTable.hasYes(guess, q)) {
+                return q;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,28 @@
+package com.nummist.goldgesture;
+
+// Geometry of rects that are packed into primitive arrays, as x, y,
+// width and height from a given index, the way that detections are
+// stored throughout the pipeline.
+final class Rects {
+
+    private Rects() {
+    }
+
+    // Returns the intersection over union of two rects.
+    static double getOverlap(final int[] rects1, final int i,
+            final int[] rects2, final int j) {
+        final int minX = Math.max(rects1[i], rects2[j]);
+        final int minY = Math.max(rects1[i + 1], rects2[j + 1]);
+        final int maxX = Math.min(rects1[i] + rects1[i + 2],
+                rects2[j] + rects2[j + 2]);
+        final int maxY = Math.min(rects1[i + 1] + rects1[i + 3],
+                rects2[j + 1] + rects2[j + 3]);
+        if (maxX <= minX || maxY <= minY) {
+            return 0.0;
+        }
+        final double intersection = (double)(maxX - minX) * (maxY - minY);
+        final double union = (double)rects1[i + 2] * rects1[i + 3] +
+                (double)rects2[j + 2] * rects2[j + 3] - intersection;
+        return intersection / union;
+    }
+}
@@ -0,0 +1,334 @@
+package com.nummist.goldgesture;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Equalizes only the regions of a frame that are searched, with a
+// lookup table that is kept from frame to frame, instead of the whole
+// frame with a new table every frame.
+//
+// The table is that of Imgproc.equalizeHist, but it is built from the
+// histogram of a sample of the frame's pixels, one from each small
+// block, which takes a fraction of the time of a full histogram. The
+// histogram is sampled every frame, but the table is only rebuilt
+// when some gray level would move by more than a threshold, as when
+// the lighting or the exposure changes. Otherwise, the last table is
+// reused, which also keeps the equalized frames steady over time.
+//
+// Optionally, regions are equalized adaptively instead, with
+// contrast-limited equalization in tiles (CLAHE), which brings out a
+// face in front of a bright background. Each tile's histogram is
+// clipped, with the clipped counts spread over all the levels, and
+// gives a table as above, and each pixel is mapped by the tables of
+// the four nearest tiles, weighted by its distance from their
+// centers. OpenCV's Java API has no CLAHE in 2.4, so this is done
+// here, on the region's pixels. No table is kept between frames
+// then, since each region has tables of its own.
+public final class RegionEqualizer {
+
+    // The side of the blocks of which one pixel is sampled for the
+    // histogram.
+    private static final int SAMPLE_STEP = 4;
+
+    // The most gray levels by which the table may be out of date
+    // before it is rebuilt. This is above the drift that sampling
+    // alone causes between similar frames.
+    private static final int MAX_TABLE_DRIFT = 4;
+
+    // Parameters for adaptive equalization: the most times the mean
+    // count that a level of a tile's histogram may have, and the
+    // tiles across and down. The regions are small, so they are split
+    // into fewer tiles than a whole frame would be.
+    private static final double CLIP_LIMIT = 2.0;
+    private static final int TILES_PER_SIDE = 4;
+
+    private static final int LEVELS = 256;
+
+    // The sample of the frame and its pixels.
+    private final Mat mSample = new Mat();
+    private final Size mSampleSize = new Size();
+    private byte[] mSamplePixels = new byte[0];
+
+    // The sample's histogram, the table that it gives, and the table
+    // in use, as an array and as a matrix for Core.LUT.
+    private final int[] mHistogram = new int[LEVELS];
+    private final int[] mNewTable = new int[LEVELS];
+    private final int[] mTable = new int[LEVELS];
+    private final byte[] mTableBytes = new byte[LEVELS];
+    private final Mat mTableMat = new Mat(1, LEVELS, CvType.CV_8UC1);
+    private boolean mHasTable;
+
+    // Whether regions are equalized adaptively.
+    private boolean mAdaptive;
+
+    // The frames that were sampled, and the times that the table
+    // was built.
+    private long mFrameCount;
+    private long mTableBuildCount;
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getTableBuildCount() {
+        return mTableBuildCount;
+    }
+
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    // Sets whether regions are equalized adaptively, in tiles, rather
+    // than with one table for the whole frame. This must be called
+    // while no frames are processed.
+    public void setAdaptive(final boolean adaptive) {
+        mAdaptive = adaptive;
+        mHasTable = false;
+    }
+
+    // Samples a frame's histogram and rebuilds the table if it has
+    // drifted too far. This must be called for each frame before any
+    // of its regions is equalized.
+    void update(final Mat gray) {
+        if (mAdaptive) {
+            return;
+        }
+        mFrameCount++;
+        mSampleSize.width = Math.max(gray.cols() / SAMPLE_STEP, 1);
+        mSampleSize.height = Math.max(gray.rows() / SAMPLE_STEP, 1);
+        Imgproc.resize(gray, mSample, mSampleSize, 0.0, 0.0,
+                Imgproc.INTER_NEAREST);
+        final int sampleCount = (int)mSample.total();
+        if (mSamplePixels.length != sampleCount) {
+            mSamplePixels = new byte[sampleCount];
+        }
+        mSample.get(0, 0, mSamplePixels);
+
+        final int[] histogram = mHistogram;
+        for (int i = 0; i < LEVELS; i++) {
+            histogram[i] = 0;
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            histogram[mSamplePixels[i] & 0xff]++;
+        }
+        buildTable(histogram, 0, sampleCount, mNewTable, 0);
+
+        if (mHasTable && getDrift(mNewTable, mTable) <= MAX_TABLE_DRIFT) {
+            // The last table is still close enough.
+            return;
+        }
+        for (int i = 0; i < LEVELS; i++) {
+            mTable[i] = mNewTable[i];
+            mTableBytes[i] = (byte)mNewTable[i];
+        }
+        mTableMat.put(0, 0, mTableBytes);
+        mHasTable = true;
+        mTableBuildCount++;
+    }
+
+    // Equalizes a whole frame into another image. Adaptive
+    // equalization works in the given buffers, which belong to the
+    // calling thread.
+    void equalize(final Mat gray, final Mat equalized,
+            final TileBuffers buffers) {
+        if (mAdaptive) {
+            gray.copyTo(equalized);
+            equalizeAdaptively(equalized, buffers);
+        } else {
+            Core.LUT(gray, mTableMat, equalized);
+        }
+    }
+
+    // Equalizes a copy of a region in place. This may be called from
+    // the threads that search parts, each with its own buffers, since
+    // the table only changes between frames.
+    void equalizeRegion(final Mat region, final TileBuffers buffers) {
+        if (mAdaptive) {
+            equalizeAdaptively(region, buffers);
+        } else {
+            Core.LUT(region, mTableMat, region);
+        }
+    }
+
+    // The buffers in which a thread equalizes images adaptively. The
+    // pixel and column buffers grow to fit the largest image.
+    static final class TileBuffers {
+        private byte[] mPixels = new byte[0];
+        private final int[] mHistograms =
+                new int[TILES_PER_SIDE * TILES_PER_SIDE * LEVELS];
+        private final int[] mTables =
+                new int[TILES_PER_SIDE * TILES_PER_SIDE * LEVELS];
+        private int[] mColumnTiles = new int[0];
+        private float[] mColumnWeights = new float[0];
+    }
+
+    // Equalizes a continuous image in place, in tiles.
+    private static void equalizeAdaptively(final Mat image,
+            final TileBuffers buffers) {
+        final int cols = image.cols();
+        final int rows = image.rows();
+        if (cols == 0 || rows == 0) {
+            return;
+        }
+        final int count = cols * rows;
+        if (buffers.mPixels.length < count) {
+            buffers.mPixels = new byte[count];
+        }
+        if (buffers.mColumnTiles.length < cols) {
+            buffers.mColumnTiles = new int[cols];
+            buffers.mColumnWeights = new float[cols];
+        }
+        final byte[] pixels = buffers.mPixels;
+        final int[] histograms = buffers.mHistograms;
+        final int[] tables = buffers.mTables;
+        // Reads and writes stop at the end of the image, so the buffer
+        // may be larger than it.
+        image.get(0, 0, pixels);
+
+        // Count the levels of each tile. Small images have fewer
+        // tiles, so that no tile is empty.
+        final int tilesX = Math.min(TILES_PER_SIDE, cols);
+        final int tilesY = Math.min(TILES_PER_SIDE, rows);
+        final int tileCount = tilesX * tilesY;
+        for (int i = 0; i < tileCount * LEVELS; i++) {
+            histograms[i] = 0;
+        }
+        for (int y = 0; y < rows; y++) {
+            final int tileRow = y * tilesY / rows * tilesX;
+            final int rowStart = y * cols;
+            for (int x = 0; x < cols; x++) {
+                final int tile = tileRow + x * tilesX / cols;
+                histograms[tile * LEVELS +
+                        (pixels[rowStart + x] & 0xff)]++;
+            }
+        }
+
+        // Clip each tile's histogram, spread the clipped counts, and
+        // build the tile's table.
+        for (int ty = 0; ty < tilesY; ty++) {
+            final int tileRows = (ty + 1) * rows / tilesY -
+                    ty * rows / tilesY;
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int tileCols = (tx + 1) * cols / tilesX -
+                        tx * cols / tilesX;
+                final int tileSize = tileCols * tileRows;
+                final int offset = (ty * tilesX + tx) * LEVELS;
+                clip(histograms, offset, Math.max(1,
+                        (int)(CLIP_LIMIT * tileSize / LEVELS)));
+                buildTable(histograms, offset, tileSize, tables, offset);
+            }
+        }
+
+        // The tiles on either side of each column, and the weight of
+        // the one on the right. Pixels beyond the outer tiles' centers
+        // take those tiles' tables alone.
+        final int[] columnTiles = buffers.mColumnTiles;
+        final float[] columnWeights = buffers.mColumnWeights;
+        final float tileWidth = (float)cols / tilesX;
+        for (int x = 0; x < cols; x++) {
+            final float position = (x + 0.5f) / tileWidth - 0.5f;
+            final int left = (int)Math.floor(position);
+            columnTiles[x] = left;
+            columnWeights[x] = position - left;
+        }
+
+        // Map each pixel by the tables of the nearest tiles.
+        final float tileHeight = (float)rows / tilesY;
+        for (int y = 0; y < rows; y++) {
+            final float position = (y + 0.5f) / tileHeight - 0.5f;
+            final int top = (int)Math.floor(position);
+            final float bottomWeight = position - top;
+            final int topRow = Math.max(top, 0) * tilesX;
+            final int bottomRow = Math.min(top + 1, tilesY - 1) * tilesX;
+            final int rowStart = y * cols;
+            for (int x = 0; x < cols; x++) {
+                final int left = Math.max(columnTiles[x], 0);
+                final int right = Math.min(columnTiles[x] + 1, tilesX - 1);
+                final float rightWeight = columnWeights[x];
+                final int level = pixels[rowStart + x] & 0xff;
+                final float topValue =
+                        tables[(topRow + left) * LEVELS + level] +
+                        rightWeight * (
+                        tables[(topRow + right) * LEVELS + level] -
+                        tables[(topRow + left) * LEVELS + level]);
+                final float bottomValue =
+                        tables[(bottomRow + left) * LEVELS + level] +
+                        rightWeight * (
+                        tables[(bottomRow + right) * LEVELS + level] -
+                        tables[(bottomRow + left) * LEVELS + level]);
+                pixels[rowStart + x] = (byte)Math.round(topValue +
+                        bottomWeight * (bottomValue - topValue));
+            }
+        }
+        image.put(0, 0, pixels);
+    }
+
+    // Clips the counts of a histogram to a limit, and spreads the
+    // clipped counts evenly over all the levels, so that the total
+    // stays the same.
+    private static void clip(final int[] histogram, final int offset,
+            final int limit) {
+        int clipped = 0;
+        for (int i = offset; i < offset + LEVELS; i++) {
+            if (histogram[i] > limit) {
+                clipped += histogram[i] - limit;
+                histogram[i] = limit;
+            }
+        }
+        final int share = clipped / LEVELS;
+        final int remainder = clipped % LEVELS;
+        for (int i = 0; i < LEVELS; i++) {
+            histogram[offset + i] += share;
+        }
+        if (remainder > 0) {
+            // Spread what is left evenly across the levels.
+            final int step = LEVELS / remainder;
+            for (int i = 0, left = remainder; left > 0; i += step, left--) {
+                histogram[offset + i]++;
+            }
+        }
+    }
+
+    // Builds the table that Imgproc.equalizeHist would build from a
+    // histogram: the first gray level that occurs maps to 0, and the
+    // rest are spread by their cumulative counts.
+    private static void buildTable(final int[] histogram,
+            final int histogramOffset, final int count, final int[] table,
+            final int tableOffset) {
+        int first = 0;
+        while (histogram[histogramOffset + first] == 0) {
+            first++;
+        }
+        if (histogram[histogramOffset + first] == count) {
+            // The sample has one gray level.
+            for (int i = 0; i < LEVELS; i++) {
+                table[tableOffset + i] = first;
+            }
+            return;
+        }
+        final double scale = (LEVELS - 1.0) /
+                (count - histogram[histogramOffset + first]);
+        int sum = 0;
+        for (int i = 0; i <= first; i++) {
+            table[tableOffset + i] = 0;
+        }
+        for (int i = first + 1; i < LEVELS; i++) {
+            sum += histogram[histogramOffset + i];
+            table[tableOffset + i] =
+                    Math.min((int)Math.round(sum * scale), LEVELS - 1);
+        }
+    }
+
+    // Returns the most gray levels by which any level differs between
+    // two tables.
+    private static int getDrift(final int[] table1, final int[] table2) {
+        int drift = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            drift = Math.max(drift, Math.abs(table1[i] - table2[i]));
+        }
+        return drift;
+    }
+}
@@ -0,0 +1,140 @@
+package com.nummist.goldgesture;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+// Times each stage of the frame path into a latency histogram. When
+// disabled, timing a stage costs one branch.
+public final class StageProfiler {
+
+    public enum Stage {
+        CVT_COLOR("cvtColor"),
+        TRANSPOSE("transpose"),
+        FLIP("flip"),
+        EQUALIZE("equalizeHist"),
+        MOTION("motion"),
+        DETECT_FACES("detectFaces"),
+        DETECT_EYES("detectEyes"),
+        DETECT_MOUTH("detectMouth"),
+        ASSOCIATE_PARTS("associateParts"),
+        ASSOCIATE_FACES("associateFaces"),
+        TRACK("track"),
+        FILTER("filter"),
+        DRAW("draw"),
+        MIRROR("mirror"),
+        FRAME("frame");
+
+        private final String mLabel;
+
+        private Stage(final String label) {
+            mLabel = label;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // Parameters for drawing the statistics on the preview.
+    private static final double TEXT_SCALE = 1.0;
+    private static final int TEXT_LINE_HEIGHT = 20;
+
+    private final LatencyHistogram[] mHistograms =
+            new LatencyHistogram[STAGES.length];
+
+    private volatile boolean mEnabled;
+
+    // Colors and geometry for drawing.
+    private final Scalar mTextColor = new Scalar(255.0, 255.0, 0.0);
+    private final Point mTextOrigin = new Point();
+
+    public StageProfiler() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    // Returns a start time to pass to stop(), or 0 if profiling is
+    // disabled.
+    public long start() {
+        if (!mEnabled) {
+            return 0L;
+        }
+        return System.nanoTime();
+    }
+
+    // Records the time since the given start time for a stage.
+    public void stop(final Stage stage, final long startNanos) {
+        if (startNanos == 0L) {
+            return;
+        }
+        mHistograms[stage.ordinal()].record(
+                (System.nanoTime() - startNanos) / 1000L);
+    }
+
+    public LatencyHistogram getHistogram(final Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mHistograms[i].reset();
+        }
+    }
+
+    // Writes one line per stage that has samples, with times in
+    // microseconds.
+    public void writeCsv(final Writer writer) throws IOException {
+        writer.write("stage,count,mean_us,p50_us,p95_us,p99_us,max_us\n");
+        for (int i = 0; i < STAGES.length; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            writer.write(String.format(Locale.US,
+                    "%s,%d,%.1f,%.1f,%.1f,%.1f,%d\n",
+                    STAGES[i].getLabel(), histogram.getCount(),
+                    histogram.getMean(), histogram.getPercentile(0.5),
+                    histogram.getPercentile(0.95),
+                    histogram.getPercentile(0.99), histogram.getMax()));
+        }
+    }
+
+    // Draws p50/p95/p99 in milliseconds for each stage that has
+    // samples. This formats strings, so it is only for debugging.
+    public void draw(final Mat rgba) {
+        mTextOrigin.x = TEXT_LINE_HEIGHT;
+        mTextOrigin.y = 0;
+        for (int i = 0; i < STAGES.length; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            mTextOrigin.y += TEXT_LINE_HEIGHT;
+            Core.putText(rgba, String.format(Locale.US,
+                    "%s %.1f / %.1f / %.1f ms",
+                    STAGES[i].getLabel(),
+                    histogram.getPercentile(0.5) / 1000.0,
+                    histogram.getPercentile(0.95) / 1000.0,
+                    histogram.getPercentile(0.99) / 1000.0),
+                    mTextOrigin, Core.FONT_HERSHEY_PLAIN, TEXT_SCALE,
+                    mTextColor);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.nummist.goldgesture;
+
+// A thread that runs one posted task at a time and lets the poster
+// wait for it. Unlike an executor, posting and waiting allocate
+// nothing, so a frame can be split across threads every frame
+// without producing garbage.
+//
+// Anything that a task throws, errors included, is rethrown to the
+// poster by await(). If the thread stops early, as when it is
+// interrupted, posting and waiting fail instead of blocking forever.
+public final class WorkerThread {
+
+    private final Object mLock = new Object();
+    private final Thread mThread;
+
+    private Runnable mTask;
+    private Throwable mFailure;
+    private boolean mQuit;
+
+    // Whether the thread has stopped, so that no task will run.
+    private boolean mStopped;
+
+    public WorkerThread(final String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTasks();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    // Starts a task, after waiting for any earlier task to finish.
+    public void post(final Runnable task) {
+        synchronized (mLock) {
+            awaitLocked();
+            if (mStopped) {
+                throw new IllegalStateException(
+                        "Worker thread has stopped: " + mThread.getName());
+            }
+            mTask = task;
+            mLock.notifyAll();
+        }
+    }
+
+    // Waits for the posted task to finish and rethrows any failure.
+    public void await() {
+        synchronized (mLock) {
+            awaitLocked();
+            if (mFailure != null) {
+                final Throwable failure = mFailure;
+                mFailure = null;
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException)failure;
+                } else if (failure instanceof Error) {
+                    throw (Error)failure;
+                }
+                throw new IllegalStateException("Task failed", failure);
+            }
+        }
+    }
+
+    // Stops the thread once any posted task has finished.
+    public void quit() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitLocked() {
+        while (mTask != null) {
+            if (mStopped) {
+                throw new IllegalStateException(
+                        "Worker thread has stopped: " + mThread.getName());
+            }
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                        "Interrupted while waiting for a task", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        try {
+            runTasksUntilQuit();
+        } finally {
+            synchronized (mLock) {
+                mStopped = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void runTasksUntilQuit() {
+        while (true) {
+            final Runnable task;
+            synchronized (mLock) {
+                while (mTask == null && !mQuit) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mTask == null) {
+                    return;
+                }
+                task = mTask;
+            }
+
+            Throwable failure = null;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            synchronized (mLock) {
+                mFailure = failure;
+                mTask = null;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
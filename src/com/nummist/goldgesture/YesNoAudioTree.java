@@ -1,293 +1,209 @@
 package com.nummist.goldgesture;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import android.content.Context;
+import android.content.res.Resources;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 
+// The game's questions and answers, as audio clips. The characters
+// and the questions that tell them apart are read from a table in
+// the raw resources, and a QuestionEngine chooses each question. The
+// branches may be taken on a thread other than the one on which the
+// clips complete, so the tree is synchronized.
 public final class YesNoAudioTree {
     
-    private enum Affiliation { UNKNOWN, MI6, CIA, KGB, CRIMINAL }
+    private static final String RAW_TYPE = "raw";
     
     private int mLastAudioResource;
-    private Affiliation mAffiliation;
     
-    private Context mContext;
-    private MediaPlayer mMediaPlayer;
+    // The game, and a copy of it that is used to look ahead at the
+    // clips that may follow the last one.
+    private final QuestionEngine mEngine;
+    private final QuestionEngine mLookahead;
+    
+    // The clips that ask each question, and that name each character.
+    private final int[] mQuestionClips;
+    private final int[] mCharacterClips;
+    
+    // The clip that is playing, and the clips that are prepared to
+    // follow it. The pool holds the children of the current clip:
+    // the clips that follow a yes, a no, or no answer at all.
+    private AudioClipPool.Clip mClip;
+    private final AudioClipPool mPool;
+    private static final int POOL_CAPACITY = 3;
+    
+    private final OnCompletionListener mCompletionListener =
+            new OnCompletionListener() {
+        @Override
+        public void onCompletion(final MediaPlayer mediaPlayer) {
+            synchronized (YesNoAudioTree.this) {
+                if (mClip != null && mClip.mPlayer == mediaPlayer) {
+                    mClip.release();
+                    mClip = null;
+                }
+                takeAutoBranch();
+            }
+        }
+    };
     
     public YesNoAudioTree(final Context context) {
-        mContext = context;
+        final Resources resources = context.getResources();
+        final CharacterTable table;
+        try {
+            final InputStream input =
+                    resources.openRawResource(R.raw.characters);
+            try {
+                table = CharacterTable.parse(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mEngine = new QuestionEngine(table);
+        mLookahead = new QuestionEngine(table);
+        
+        final String packageName = context.getPackageName();
+        mQuestionClips = new int[table.getQuestionCount()];
+        for (int q = 0; q < mQuestionClips.length; q++) {
+            mQuestionClips[q] = getClip(resources, table.getQuestion(q),
+                    packageName);
+        }
+        mCharacterClips = new int[table.getCharacterCount()];
+        for (int c = 0; c < mCharacterClips.length; c++) {
+            mCharacterClips[c] = getClip(resources, table.getCharacter(c),
+                    packageName);
+        }
+        
+        mPool = new AudioClipPool(context, POOL_CAPACITY);
     }
     
-    public void start() {
-        mAffiliation = Affiliation.UNKNOWN;
+    public synchronized void start() {
+        mEngine.reset();
         play(R.raw.intro);
     }
     
-    public void stop() {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.release();
+    public synchronized void stop() {
+        if (mClip != null) {
+            mClip.release();
+            mClip = null;
         }
+        mPool.clear();
     }
     
-    public void takeYesBranch() {
-        
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-            // Do not interrupt the audio that is already playing.
-            return;
-        }
-        
-        switch (mAffiliation) {
-        case UNKNOWN:
-            switch (mLastAudioResource) {
-            case R.raw.q_mi6:
-                mAffiliation = Affiliation.MI6;
-                play(R.raw.q_martinis);
-                break;
-            case R.raw.q_cia:
-                mAffiliation = Affiliation.CIA;
-                play(R.raw.q_bond_friend);
-                break;
-            case R.raw.q_kgb:
-                mAffiliation = Affiliation.KGB;
-                play(R.raw.q_chief);
-                break;
-            case R.raw.q_criminal:
-                mAffiliation = Affiliation.CRIMINAL;
-                play(R.raw.q_chief);
-                break;
-            }
-            break;
-        case MI6:
-            // The person works for MI6.
-            switch (mLastAudioResource) {
-            case R.raw.q_martinis:
-                // The person drinks shaken martinis (007).
-                play(R.raw.win_007);
-                break;
-            case R.raw.q_abbreviate:
-                // The person's name is abbreviated to one letter.
-                // Ask whether the person is the chief (M).
-                play(R.raw.q_chief);
-                break;
-            case R.raw.q_chief:
-                // The person is the chief (M).
-                play(R.raw.win_m);
-                break;
-            case R.raw.q_secretary:
-                // The person is the secretary (Miss Moneypenny).
-                play(R.raw.win_moneypenny);
-                break;
-            case R.raw.q_bond_friend:
-                // The person is Bond's friend (Bill Tanner).
-                play(R.raw.win_tanner);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case CIA:
-            // The person works for the CIA.
-            switch (mLastAudioResource) {
-            case R.raw.q_bond_friend:
-                // The person is Bond's friend (Felix Leiter).
-                play(R.raw.win_leiter);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case KGB:
-            // The person works for the KGB.
-            switch (mLastAudioResource) {
-            case R.raw.q_chief:
-                // The person is the chief (General Gogol).
-                play(R.raw.win_gogol);
-                break;
-            case R.raw.q_secretary:
-                // The person is the secretary (Miss Rublevitch).
-                play(R.raw.win_rublevitch);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case CRIMINAL:
-            // The person works for a criminal organization.
-            switch (mLastAudioResource) {
-            case R.raw.q_chief:
-                // The person is the chief.
-                // Ask whether the person has an Angora cat.
-                play(R.raw.q_angora);
-                break;
-            case R.raw.q_angora:
-                // The person has an Angora cat.
-                // The person must be Ernst Stavro Blofeld.
-                play(R.raw.win_blofeld);
-                break;
-            case R.raw.q_dentures:
-                // The person has steel dentures (Jaws).
-                play(R.raw.win_jaws);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        }
+    public synchronized void takeYesBranch() {
+        takeAnswerBranch(true);
+    }
+    
+    public synchronized void takeNoBranch() {
+        takeAnswerBranch(false);
     }
     
-    public void takeNoBranch() {
+    private void takeAnswerBranch(final boolean yes) {
         
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
+        if (isPlaying()) {
             // Do not interrupt the audio that is already playing.
             return;
         }
         
-        switch (mAffiliation) {
-        case UNKNOWN:
-            switch (mLastAudioResource) {
-            case R.raw.q_mi6:
-                // The person does not work for MI6.
-                // Ask whether the person works for a criminal
-                // organization.
-                play(R.raw.q_criminal);
-                break;
-            case R.raw.q_kgb:
-                // The person does not work for the KGB.
-                // Ask whether the person work for the CIA.
-                play(R.raw.q_cia);
-                break;
-            case R.raw.q_criminal:
-                // The person does not work for a criminal
-                // organization.
-                // Ask whether the person works for the KGB.
-                play(R.raw.q_kgb);
-                break;
-            case R.raw.q_cia:
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case MI6:
-            // The person works for MI6.
-            switch (mLastAudioResource) {
-            case R.raw.q_martinis:
-                // The person does not drink shaken martinis (007).
-                // Ask whether the person's name is abbreviated to
-                // one letter (M or Q).
-                play(R.raw.q_abbreviate);
-                break;
-            case R.raw.q_abbreviate:
-                // The person's name is not abbreviated to one
-                // letter (M or Q).
-                // Ask whether the person is the secretary (Miss
-                // Moneypenny).
-                play(R.raw.q_secretary);
-                break;
-            case R.raw.q_chief:
-                // The person's name is abbreviated to one letter (M
-                // or Q) but the person is not the chief (M).
-                // The person must be Q.
-                play(R.raw.win_q);
-                break;
-            case R.raw.q_secretary:
-                // The person is not the secretary (Miss
-                // Moneypenny).
-                // Ask whether the person is Bond's friend (Bill
-                // Tanner).
-                play(R.raw.q_bond_friend);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case CIA:
-            // The person works for the CIA.
-            switch (mLastAudioResource) {
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case KGB:
-            // The person works for the KGB.
-            switch (mLastAudioResource) {
-            case R.raw.q_chief:
-                // The person is not the chief (General Gogol).
-                // Ask whether the person is the secretary (Miss
-                // Rublevitch).
-                play(R.raw.q_secretary);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
-        case CRIMINAL:
-            // The person works for a criminal organization.
-            switch (mLastAudioResource) {
-            case R.raw.q_chief:
-                // The person is not the chief.
-                // Ask whether the person has steel dentures.
-                play(R.raw.q_dentures);
-                break;
-            default:
-                // The person remains unknown.
-                play(R.raw.lose);
-                break;
-            }
-            break;
+        if (!isAsking()) {
+            // No question is waiting for an answer.
+            return;
         }
+        
+        mEngine.answer(yes);
+        play(getNextClip(mEngine));
     }
     
     private void takeAutoBranch() {
-        switch (mLastAudioResource) {
-        case R.raw.intro:
-            play(R.raw.q_mi6);
-            break;
-        case R.raw.win_007:
-        case R.raw.win_blofeld:
-        case R.raw.win_gogol:
-        case R.raw.win_jaws:
-        case R.raw.win_leiter:
-        case R.raw.win_m:
-        case R.raw.win_moneypenny:
-        case R.raw.win_q:
-        case R.raw.win_rublevitch:
-        case R.raw.win_tanner:
-        case R.raw.lose:
+        if (mLastAudioResource == R.raw.intro) {
+            // Ask the first question.
+            play(getNextClip(mEngine));
+        } else if (!isAsking()) {
+            // The game is over. Start again.
             start();
-            break;
         }
     }
     
+    private boolean isPlaying() {
+        return mClip != null && mClip.isPlaying();
+    }
+    
+    // Returns whether the last clip asked the current question.
+    private boolean isAsking() {
+        final int question = mEngine.getQuestion();
+        return question >= 0 &&
+                mLastAudioResource == mQuestionClips[question];
+    }
+    
+    // Returns the clip that follows the given state of the game: the
+    // next question, or else the guessed character, or else the clip
+    // for a person who is not in the table.
+    private int getNextClip(final QuestionEngine engine) {
+        final int question = engine.getQuestion();
+        if (question >= 0) {
+            return mQuestionClips[question];
+        }
+        final int guess = engine.getGuess();
+        if (guess >= 0) {
+            return mCharacterClips[guess];
+        }
+        return R.raw.lose;
+    }
+    
+    // Returns the clip that follows the last one if the person gives
+    // the given answer, or 0 if there is none.
+    private int getAnswerChild(final boolean yes) {
+        if (!isAsking()) {
+            return 0;
+        }
+        mLookahead.copyFrom(mEngine);
+        mLookahead.answer(yes);
+        return getNextClip(mLookahead);
+    }
+    
+    // Returns the clip that follows the last one without an answer,
+    // or 0 if there is none.
+    private int getAutoChild() {
+        if (mLastAudioResource == R.raw.intro) {
+            return getNextClip(mEngine);
+        }
+        if (!isAsking()) {
+            return R.raw.intro;
+        }
+        return 0;
+    }
+    
     private void play(final int audioResource) {
         mLastAudioResource = audioResource;
-        mMediaPlayer = MediaPlayer.create(mContext, audioResource);
-        mMediaPlayer.setOnCompletionListener(
-                new OnCompletionListener() {
-            @Override
-            public void onCompletion(final MediaPlayer mediaPlayer) {
-                mediaPlayer.release();
-                if (mMediaPlayer == mediaPlayer) {
-                    mMediaPlayer = null;
-                }
-                takeAutoBranch();
-            }
-        });   
-        mMediaPlayer.start();
+        if (mClip != null) {
+            mClip.release();
+        }
+        mClip = mPool.play(audioResource, mCompletionListener);
+        
+        // Prepare whichever clips may follow this one, so that they
+        // start as soon as the person answers.
+        prepare(getAnswerChild(true));
+        prepare(getAnswerChild(false));
+        prepare(getAutoChild());
+    }
+    
+    private void prepare(final int audioResource) {
+        if (audioResource != 0) {
+            mPool.prepare(audioResource);
+        }
+    }
+    
+    private static int getClip(final Resources resources,
+            final String name, final String packageName) {
+        final int clip = resources.getIdentifier(name, RAW_TYPE,
+                packageName);
+        if (clip == 0) {
+            throw new IllegalStateException("No clip named " + name);
+        }
+        return clip;
     }
 }